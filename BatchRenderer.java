@@ -0,0 +1,251 @@
+package textcollage;
+
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A headless main program that renders saved collage files to PNG images
+ * without opening a window.  Each command-line argument is either a collage
+ * file in the "New textImage" format or a directory; every collage file in
+ * a directory is rendered (other files are skipped).  The image for a file
+ * named name.txt is written as name.png, either next to the input file or
+ * in the directory given with the -o option.  Files are rendered in parallel
+ * by a fixed number of worker threads, which by default is the number of
+ * available processors.  The time taken for each file is printed as it
+ * finishes, followed by a summary of the overall throughput.
+ * <p>Images are normally the size of the drawing area of a DrawTextPanel.
+ * The -scale option makes them larger by a given factor, and the -size
+ * option gives the size in pixels, such as 20000x15000; the drawing area
+ * is then scaled to fit that size.  Scaled images are written by a
+ * TiledRenderer, which renders each image in parallel strips and does not
+ * need memory for the whole image.
+ * <p>Usage:  java textcollage.BatchRenderer [-o outputDir] [-threads n] [-scale s | -size WxH] file-or-directory...
+ */
+public class BatchRenderer {
+
+	private static final String USAGE =
+			"Usage:  java textcollage.BatchRenderer [-o outputDir] [-threads n] [-scale s | -size WxH] "
+			+ "file-or-directory...";
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		File outputDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		double scale = 1;
+		int imageWidth = 0, imageHeight = 0;  // zero unless -size was given
+		ArrayList<File> inputs = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-o"))
+					outputDir = new File(args[++i]);
+				else if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-scale"))
+					scale = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-size")) {
+					String[] size = args[++i].toLowerCase().split("x");
+					imageWidth = Integer.parseInt(size[0]);
+					imageHeight = Integer.parseInt(size[1]);
+					scale = TiledRenderer.scaleToFit(CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT, 
+							imageWidth, imageHeight);
+				}
+				else
+					inputs.add(new File(args[i]));
+			}
+		}
+		catch (RuntimeException e) {  // missing or non-numeric option value
+			inputs.clear();
+		}
+		if (imageWidth == 0) {
+			imageWidth = (int)Math.ceil(CollageRenderer.DEFAULT_WIDTH * scale);
+			imageHeight = (int)Math.ceil(CollageRenderer.DEFAULT_HEIGHT * scale);
+		}
+		if (inputs.isEmpty() || threads < 1 || !(scale > 0) || Double.isInfinite(scale) 
+				|| imageWidth <= 0 || imageHeight <= 0) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+			System.err.println("Can't create output directory " + outputDir);
+			System.exit(1);
+		}
+		List<File> files = findCollageFiles(inputs);
+		if (files.isEmpty()) {
+			System.err.println("No collage files found.");
+			System.exit(1);
+		}
+		BatchRenderer renderer = new BatchRenderer(outputDir, threads);
+		if (scale != 1)
+			renderer.setImageSize(scale, imageWidth, imageHeight);
+		int failures = renderer.renderAll(files);
+		System.exit(failures == 0 ? 0 : 2);
+	}
+
+	/**
+	 * Expand a list of files and directories into the list of collage files
+	 * that they name.  Files that are named explicitly are always included;
+	 * files inside a directory are included only if they start with the
+	 * "New textImage" header.
+	 */
+	public static List<File> findCollageFiles(List<File> inputs) {
+		ArrayList<File> files = new ArrayList<File>();
+		for (File f : inputs) {
+			if (f.isDirectory()) {
+				File[] contents = f.listFiles();
+				if (contents == null)
+					continue;
+				Arrays.sort(contents);
+				for (File c : contents)
+					if (CollageIO.isTextCollage(c))
+						files.add(c);
+			}
+			else
+				files.add(f);
+		}
+		return files;
+	}
+
+	private final File outputDir;  // Where images are written; if null, next to each input file.
+	private final int threads;  // The number of worker threads.
+	private TiledRenderer tiledRenderer;  // If non-null, used for writing scaled images.
+	private double scale = 1;
+	private int imageWidth = CollageRenderer.DEFAULT_WIDTH;
+	private int imageHeight = CollageRenderer.DEFAULT_HEIGHT;
+
+	/**
+	 * Create a renderer that uses the given number of worker threads.
+	 * @param outputDir the directory where images are written.  If null, each
+	 *   image is written to the same directory as the file it was made from.
+	 * @param threads the number of worker threads, which must be positive.
+	 */
+	public BatchRenderer(File outputDir, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of threads must be positive.");
+		this.outputDir = outputDir;
+		this.threads = threads;
+	}
+
+	/**
+	 * Make the images a different size from the drawing area of a
+	 * DrawTextPanel.  The collages are drawn magnified by the scale factor,
+	 * using a TiledRenderer that runs on a ForkJoinPool with one thread for
+	 * each worker thread of this renderer.
+	 * @param scale the magnification, which must be positive.
+	 * @param imageWidth the width of the images, in pixels.
+	 * @param imageHeight the height of the images, in pixels.
+	 */
+	public void setImageSize(double scale, int imageWidth, int imageHeight) {
+		if (!(scale > 0) || Double.isInfinite(scale))
+			throw new IllegalArgumentException("Scale must be positive.");
+		if (imageWidth <= 0 || imageHeight <= 0)
+			throw new IllegalArgumentException("Image size must be positive.");
+		this.scale = scale;
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+		if (tiledRenderer == null)
+			tiledRenderer = new TiledRenderer(new ForkJoinPool(threads));
+	}
+
+	/**
+	 * Returns the image file that will be written for a given collage file.
+	 */
+	public File imageFileFor(File collageFile) {
+		String name = collageFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		File dir = outputDir != null ? outputDir : collageFile.getAbsoluteFile().getParentFile();
+		return new File(dir, name + ".png");
+	}
+
+	/**
+	 * Render all of the files in a list, printing a line for each file and
+	 * a summary at the end.  The work queue is bounded, so at most a few
+	 * collages per thread are waiting in memory at any time.
+	 * @return the number of files that could not be rendered.
+	 */
+	public int renderAll(List<File> files) {
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicLong itemCount = new AtomicLong();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(2*threads), new ThreadPoolExecutor.CallerRunsPolicy());
+		long start = System.nanoTime();
+		for (final File file : files) {
+			pool.execute(new Runnable() {
+				public void run() {
+					int items = renderFile(file);
+					if (items < 0)
+						failures.incrementAndGet();
+					else
+						itemCount.addAndGet(items);
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				;
+		}
+		catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int rendered = files.size() - failures.get();
+		System.out.printf("Rendered %d of %d files (%d items) in %.2f s with %d threads: "
+				+ "%.1f files/s, %.0f items/s%n",
+				rendered, files.size(), itemCount.get(), seconds, threads,
+				rendered / seconds, itemCount.get() / seconds);
+		System.out.printf("Text metrics caches: %d hits, %d misses%n",
+				TextMetricsCache.getTotalHits(), TextMetricsCache.getTotalMisses());
+		return failures.get();
+	}
+
+	/**
+	 * Read one collage file and write it as a PNG image.  A line reporting
+	 * the time taken, or the error that occurred, is printed.
+	 * @return the number of items in the collage, or -1 if an error occurred.
+	 */
+	public int renderFile(File file) {
+		long start = System.nanoTime();
+		try {
+			Collage collage = CollageIO.readText(file);
+			long loaded = System.nanoTime();
+			File imageFile = imageFileFor(file);
+			long drawn;
+			if (tiledRenderer != null) {  // draws and writes in one step, so the draw time is included in write
+				drawn = loaded;
+				tiledRenderer.writePNG(collage, scale, imageWidth, imageHeight, imageFile);
+			}
+			else {
+				BufferedImage image = CollageRenderer.render(collage);
+				drawn = System.nanoTime();
+				if (!ImageIO.write(image, "PNG", imageFile))
+					throw new Exception("PNG format not supported (this shouldn't happen!).");
+			}
+			long done = System.nanoTime();
+			int items = collage.getItems().size();
+			System.out.printf("%s -> %s: %d items, %.1f ms (load %.1f, draw %.1f, write %.1f)%n",
+					file.getPath(), imageFile.getName(), items, (done - start) / 1e6,
+					(loaded - start) / 1e6, (drawn - loaded) / 1e6, (done - drawn) / 1e6);
+			return items;
+		}
+		catch (Exception e) {
+			System.out.println(file.getPath() + ": FAILED: " + e.getMessage());
+			return -1;
+		}
+	}
+
+}
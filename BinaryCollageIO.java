@@ -0,0 +1,460 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes collages in a compact binary format, which holds the
+ * same information as the "New textImage" text format but is much smaller
+ * and faster to read and write.  All numbers are big-endian.  The file
+ * consists of:
+ * <ul>
+ * <li>A 32-byte header: the magic bytes "TCLB", a 2-byte version number
+ *     (currently 1), 2 bytes of flags (bit 0 is set if the body is
+ *     compressed), the background color as an ARGB int, the number of
+ *     items, the number of strings, the number of fonts, and 8 reserved bytes.
+ * <li>The string table: each distinct string as an int byte count
+ *     followed by its UTF-8 bytes.
+ * <li>The font table: each distinct font as its name (int byte count and
+ *     UTF-8 bytes), its style as an int, and its size as a float.
+ * <li>One 60-byte record per item: string number, font number (-1 for
+ *     none), x, y, text color ARGB, flags (bit 0: has a text color,
+ *     bit 1: has a background, bit 2: border), background ARGB, then
+ *     rotation angle, magnification, text transparency and background
+ *     transparency as doubles.
+ * </ul>
+ * If the body (everything after the header) is compressed, it is stored
+ * as a sequence of blocks, each with an int uncompressed length, an int
+ * compressed length, and the deflated bytes.  Files are read and written
+ * through FileChannels using direct buffers.
+ */
+public class BinaryCollageIO {
+
+	/**
+	 * The first four bytes of every collage file in the binary format.
+	 */
+	public static final byte[] MAGIC = { 'T', 'C', 'L', 'B' };
+
+	/**
+	 * The version of the format that is written by this class.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_SIZE = 60;
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int ITEM_HAS_TEXT_COLOR = 1, ITEM_HAS_BACKGROUND = 2, ITEM_BORDER = 4;
+	private static final int BLOCK_SIZE = 64*1024;  // uncompressed size of a body block
+
+	/**
+	 * Tests whether a file starts with the magic bytes of the binary format.
+	 * Returns false if the file can't be read.
+	 */
+	public static boolean isBinaryCollage(File file) {
+		if (!file.isFile())
+			return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(MAGIC.length);
+			while (buf.hasRemaining() && channel.read(buf) > 0)
+				;
+			return !buf.hasRemaining() && hasMagic(buf, 0);
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a collage to a file in the binary format.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @param background the background color of the drawing area
+	 * @param items the items to save, in drawing order.  Can be null.
+	 *   Every item must have a font and a text color, as in the text format.
+	 * @param compress if true, the body of the file is compressed.
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public static void write(File file, Color background, List<DrawTextItem> items, boolean compress)
+			throws IOException {
+		long start = System.nanoTime();
+		ArrayList<String> strings = new ArrayList<String>();
+		HashMap<String,Integer> stringNumbers = new HashMap<String,Integer>();
+		ArrayList<Font> fonts = new ArrayList<Font>();
+		HashMap<Font,Integer> fontNumbers = new HashMap<Font,Integer>();
+		int itemCount = 0;
+		if (items != null)
+			for (DrawTextItem s : items) {
+				if (!stringNumbers.containsKey(s.getString())) {
+					stringNumbers.put(s.getString(), strings.size());
+					strings.add(s.getString());
+				}
+				if (s.getFont() != null && !fontNumbers.containsKey(s.getFont())) {
+					fontNumbers.put(s.getFont(), fonts.size());
+					fonts.add(s.getFont());
+				}
+				itemCount++;
+			}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putShort((short)VERSION);
+			header.putShort((short)(compress ? FLAG_COMPRESSED : 0));
+			header.putInt(background.getRGB());
+			header.putInt(itemCount);
+			header.putInt(strings.size());
+			header.putInt(fonts.size());
+			header.putLong(0);
+			header.flip();
+			writeFully(channel, header);
+			BodyWriter out = new BodyWriter(channel, compress);
+			for (String str : strings)
+				out.putString(str);
+			for (Font f : fonts) {
+				out.putString(f.getName());
+				out.need(8).putInt(f.getStyle()).putFloat(f.getSize2D());
+			}
+			if (items != null)
+				for (DrawTextItem s : items) {
+					Color textColor = s.getTextColor();
+					Color bg = s.getBackground();
+					int flags = (textColor != null ? ITEM_HAS_TEXT_COLOR : 0)
+							| (bg != null ? ITEM_HAS_BACKGROUND : 0) | (s.getBorder() ? ITEM_BORDER : 0);
+					out.need(RECORD_SIZE)
+						.putInt(stringNumbers.get(s.getString()))
+						.putInt(s.getFont() == null ? -1 : fontNumbers.get(s.getFont()))
+						.putInt(s.getX())
+						.putInt(s.getY())
+						.putInt(textColor == null ? 0 : textColor.getRGB())
+						.putInt(flags)
+						.putInt(bg == null ? 0 : bg.getRGB())
+						.putDouble(s.getRotationAngle())
+						.putDouble(s.getMagnification())
+						.putDouble(s.getTextTransparency())
+						.putDouble(s.getBackgroundTransparency());
+				}
+			out.finish();
+		}
+		RenderMetrics.getShared().saveDone(itemCount, file.length(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Read a collage from a file in the binary format.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   binary collage file.
+	 */
+	public static Collage read(File file) throws IOException {
+		return read(file, new ArrayList<DrawTextItem>());
+	}
+
+	/**
+	 * Read a collage from a file in the binary format, adding the items
+	 * to a given list.
+	 * @return a Collage with the background color from the file and the
+	 *   given list of items.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   binary collage file.
+	 */
+	public static Collage read(File file, List<DrawTextItem> items) throws IOException {
+		CollageReader reader = openReader(file);
+		try {
+			return reader.readAll(items);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Open a file in the binary format for reading one item at a time.
+	 * The header, string table and font table are read immediately.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   binary collage file.
+	 */
+	public static CollageReader openReader(File file) throws IOException {
+		BinaryReader reader = new BinaryReader(file);
+		try {
+			reader.readTables();
+			return reader;
+		}
+		catch (IOException | RuntimeException e) {
+			reader.close();
+			if (e instanceof IOException)
+				throw (IOException)e;
+			throw new IOException("Corrupted tables in " + file.getName() + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Reads the tables of a binary file, and then the item records one at a time.
+	 */
+	private static class BinaryReader extends CollageReader {
+		private final FileChannel channel;
+		private BodyReader in;
+		private Color background;
+		private int itemCount;
+		private String[] strings;
+		private Font[] fonts;
+
+		BinaryReader(File file) throws IOException {
+			super(file);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+
+		void readTables() throws IOException {
+			ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+			readFully(channel, header);
+			header.flip();
+			if (!hasMagic(header, 0))
+				throw new IOException("This is not a binary collage file.");
+			header.position(MAGIC.length);
+			int version = header.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported binary collage version " + version + ".");
+			boolean compressed = (header.getShort() & FLAG_COMPRESSED) != 0;
+			background = new Color(header.getInt(), true);
+			itemCount = header.getInt();
+			int stringCount = header.getInt();
+			int fontCount = header.getInt();
+			if (itemCount < 0 || stringCount < 0 || fontCount < 0)
+				throw new IOException("Corrupted binary collage header.");
+			in = new BodyReader(channel, compressed);
+			strings = new String[stringCount];
+			for (int i = 0; i < stringCount; i++)
+				strings[i] = in.getString();
+			fonts = new Font[fontCount];
+			for (int i = 0; i < fontCount; i++) {
+				String name = in.getString();
+				ByteBuffer buf = in.need(8);
+				int style = buf.getInt();
+				float size = buf.getFloat();
+				if (size == (int)size)
+					fonts[i] = new Font(name, style, (int)size);
+				else
+					fonts[i] = new Font(name, style, 1).deriveFont(size);
+			}
+		}
+
+		public Color getBackground() {
+			return background;
+		}
+
+		public int getItemCount() {
+			return itemCount;
+		}
+
+		public long getBytesRead() {
+			try {
+				return channel.position();
+			}
+			catch (IOException e) {
+				return 0;
+			}
+		}
+
+		protected DrawTextItem readItem() throws IOException {
+			if (getRecordNumber() == itemCount)
+				return null;
+			ByteBuffer buf = in.need(RECORD_SIZE);
+			int stringNumber = buf.getInt();
+			int fontNumber = buf.getInt();
+			DrawTextItem s = new DrawTextItem(strings[stringNumber], buf.getInt(), buf.getInt());
+			s.setFont(fontNumber < 0 ? null : fonts[fontNumber]);
+			int textColor = buf.getInt();
+			int flags = buf.getInt();
+			int bg = buf.getInt();
+			s.setTextColor((flags & ITEM_HAS_TEXT_COLOR) != 0 ? StyleRegistry.getShared().color(textColor) : null);
+			s.setBackground((flags & ITEM_HAS_BACKGROUND) != 0 ? StyleRegistry.getShared().color(bg) : null);
+			s.setBorder((flags & ITEM_BORDER) != 0);
+			s.setRotationAngle(buf.getDouble());
+			s.setMagnification(buf.getDouble());
+			s.setTextTransparency(buf.getDouble());
+			s.setBackgroundTransparency(buf.getDouble());
+			return s;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private static boolean hasMagic(ByteBuffer buf, int offset) {
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buf.get(offset + i) != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			if (channel.read(buf) < 0)
+				throw new EOFException("Unexpected end of binary collage file.");
+	}
+
+	/**
+	 * Collects the body of the file in a direct buffer and writes it to
+	 * the channel, deflating each full buffer as a block if compression is on.
+	 */
+	private static class BodyWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+		private final Deflater deflater;
+		private final ByteBuffer compressed;
+
+		BodyWriter(FileChannel channel, boolean compress) {
+			this.channel = channel;
+			deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+			compressed = compress ? ByteBuffer.allocateDirect(BLOCK_SIZE + BLOCK_SIZE/8 + 8) : null;
+		}
+
+		/**
+		 * Make sure there are n free bytes in the buffer and return it.
+		 */
+		ByteBuffer need(int n) throws IOException {
+			if (buf.remaining() < n)
+				flush();
+			return buf;
+		}
+
+		void putString(String str) throws IOException {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			need(4).putInt(bytes.length);
+			int pos = 0;
+			while (pos < bytes.length) {
+				if (!buf.hasRemaining())
+					flush();
+				int n = Math.min(buf.remaining(), bytes.length - pos);
+				buf.put(bytes, pos, n);
+				pos += n;
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			if (deflater == null)
+				writeFully(channel, buf);
+			else if (buf.hasRemaining()) {
+				int rawLength = buf.remaining();
+				deflater.reset();
+				deflater.setInput(buf);
+				deflater.finish();
+				compressed.clear();
+				compressed.position(8);
+				while (!deflater.finished())
+					deflater.deflate(compressed);
+				compressed.putInt(0, rawLength);
+				compressed.putInt(4, compressed.position() - 8);
+				compressed.flip();
+				writeFully(channel, compressed);
+			}
+			buf.clear();
+		}
+
+		void finish() throws IOException {
+			flush();
+			if (deflater != null)
+				deflater.end();
+		}
+	}
+
+	/**
+	 * Reads the body of the file from the channel through a direct buffer,
+	 * inflating one block at a time if the body is compressed.
+	 */
+	private static class BodyReader {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE + RECORD_SIZE);  // room for a block plus leftovers
+		private final Inflater inflater;
+		private final ByteBuffer compressed;
+
+		BodyReader(FileChannel channel, boolean compressed) {
+			this.channel = channel;
+			inflater = compressed ? new Inflater() : null;
+			this.compressed = compressed ? ByteBuffer.allocateDirect(BLOCK_SIZE + BLOCK_SIZE/8 + 8) : null;
+			buf.limit(0);
+		}
+
+		/**
+		 * Make sure that the next n bytes of the body are in the buffer and return it.
+		 */
+		ByteBuffer need(int n) throws IOException {
+			while (buf.remaining() < n) {
+				buf.compact();
+				boolean more = fill();
+				buf.flip();
+				if (!more && buf.remaining() < n)
+					throw new EOFException("Unexpected end of binary collage file.");
+			}
+			return buf;
+		}
+
+		String getString() throws IOException {
+			int length = need(4).getInt();
+			if (length < 0)
+				throw new IOException("Corrupted string table.");
+			byte[] bytes = new byte[length];
+			int pos = 0;
+			while (pos < length) {
+				int n = Math.min(need(1).remaining(), length - pos);
+				buf.get(bytes, pos, n);
+				pos += n;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Add more data to the buffer, which is in write mode.  Returns
+		 * false at the end of the file.
+		 */
+		private boolean fill() throws IOException {
+			if (inflater == null)
+				return channel.read(buf) >= 0;
+			ByteBuffer blockHeader = ByteBuffer.allocate(8);
+			while (blockHeader.hasRemaining())
+				if (channel.read(blockHeader) < 0) {
+					if (blockHeader.position() == 0)
+						return false;
+					throw new EOFException("Unexpected end of binary collage file.");
+				}
+			int rawLength = blockHeader.getInt(0);
+			int compressedLength = blockHeader.getInt(4);
+			if (rawLength < 0 || rawLength > buf.remaining()
+					|| compressedLength < 0 || compressedLength > compressed.capacity())
+				throw new IOException("Corrupted compressed block.");
+			compressed.clear().limit(compressedLength);
+			readFully(channel, compressed);
+			compressed.flip();
+			inflater.reset();
+			inflater.setInput(compressed);
+			int end = buf.position() + rawLength;
+			try {
+				while (buf.position() < end && !inflater.finished())
+					if (inflater.inflate(buf) == 0 && inflater.needsInput())
+						throw new IOException("Corrupted compressed block.");
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Corrupted compressed block: " + e.getMessage(), e);
+			}
+			return true;
+		}
+	}
+
+}
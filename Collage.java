@@ -0,0 +1,43 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Collage holds the data that is stored in a saved collage file:
+ * the background color of the drawing area and the list of
+ * DrawTextItems that are drawn on it, in the order in which they
+ * are drawn.
+ */
+public class Collage {
+
+	private Color background;  // Background color of the drawing area.
+	private List<DrawTextItem> items;  // The strings, in drawing order.
+
+	/**
+	 * Create a Collage with the given background color and items.
+	 * @param background the background color; if null, light gray is used.
+	 * @param items the items in the collage; if null, an empty list is used.
+	 */
+	public Collage(Color background, List<DrawTextItem> items) {
+		this.background = background == null ? Color.LIGHT_GRAY : background;
+		this.items = items == null ? new ArrayList<DrawTextItem>() : items;
+	}
+
+	/**
+	 * returns the background color of the collage
+	 */
+	public Color getBackground() {
+		return background;
+	}
+
+	/**
+	 * returns the list of items in the collage, in drawing order
+	 */
+	public List<DrawTextItem> getItems() {
+		return items;
+	}
+
+}
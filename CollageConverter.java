@@ -0,0 +1,94 @@
+package textcollage;
+
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * A main program that converts collage files between the "New textImage"
+ * text format and the binary format of BinaryCollageIO.  The format of
+ * the input file is detected automatically, and the output is written in
+ * the other format.  With the -compress option, binary output is compressed.
+ * With the -tiled option, a file in any format is written in the tiled
+ * format of TiledCollageFile, and a tiled file is converted to binary.
+ * If the name of the output file ends with ".svg", the collage is written
+ * instead as an SVG document the size of the drawing area of a DrawTextPanel.
+ * <p>Usage:  java textcollage.CollageConverter [-compress | -tiled] inputFile outputFile
+ */
+public class CollageConverter {
+
+	public static void main(String[] args) {
+		boolean compress = false, tiled = false;
+		int first = 0;
+		if (args.length > 0 && args[0].equals("-compress")) {
+			compress = true;
+			first = 1;
+		}
+		else if (args.length > 0 && args[0].equals("-tiled")) {
+			tiled = true;
+			first = 1;
+		}
+		if (args.length - first != 2) {
+			System.err.println("Usage:  java textcollage.CollageConverter [-compress | -tiled] inputFile outputFile");
+			System.exit(1);
+		}
+		File in = new File(args[first]);
+		File out = new File(args[first+1]);
+		try {
+			long start = System.nanoTime();
+			String format = tiled ? convertTiled(in, out) : convert(in, out, compress);
+			System.out.printf("Wrote %s (%s, %d bytes) from %s (%d bytes) in %.1f ms%n",
+					out, format, out.length(), in, in.length(), (System.nanoTime() - start) / 1e6);
+		}
+		catch (Exception e) {
+			System.err.println("Conversion failed: " + e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Convert a collage file to the other format, or to SVG if the name of
+	 * the output file ends with ".svg".
+	 * @param compress whether to compress the output, if it is binary
+	 * @return "binary", "text" or "svg", the format of the output file
+	 * @throws Exception if the input can't be read or the output can't be written
+	 */
+	public static String convert(File in, File out, boolean compress) throws Exception {
+		if (out.getName().toLowerCase().endsWith(".svg")) {
+			Collage collage = CollageIO.read(in, new ArrayList<DrawTextItem>());
+			SvgExporter.write(out, collage.getBackground(), collage.getItems(),
+					CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT);
+			return "svg";
+		}
+		else if (TiledCollageFile.isTiledCollage(in)) {
+			Collage collage = CollageIO.read(in, new ArrayList<DrawTextItem>());
+			BinaryCollageIO.write(out, collage.getBackground(), collage.getItems(), compress);
+			return "binary";
+		}
+		else if (BinaryCollageIO.isBinaryCollage(in)) {
+			Collage collage = BinaryCollageIO.read(in);
+			CollageIO.writeText(out, collage.getBackground(), collage.getItems());
+			return "text";
+		}
+		else {
+			Collage collage = CollageIO.readText(in);
+			BinaryCollageIO.write(out, collage.getBackground(), collage.getItems(), compress);
+			return "binary";
+		}
+	}
+
+	/**
+	 * Convert a collage file in any format to the tiled format, or a tiled
+	 * file to the binary format.
+	 * @return "tiled" or "binary", the format of the output file
+	 * @throws Exception if the input can't be read or the output can't be written
+	 */
+	public static String convertTiled(File in, File out) throws Exception {
+		if (TiledCollageFile.isTiledCollage(in))
+			return convert(in, out, true);
+		Collage collage = CollageIO.read(in, new ArrayList<DrawTextItem>());
+		TiledCollageFile.write(out, collage.getBackground(), collage.getItems());
+		return "tiled";
+	}
+
+}
@@ -0,0 +1,87 @@
+package textcollage;
+
+
+import java.awt.Rectangle;
+import java.util.EventObject;
+
+/**
+ * A CollageEvent describes one change to the collage in a DrawTextPanel.
+ * A change can affect many items, such as a bulk insert of generated
+ * items, but it is still reported as a single event.  The affected items
+ * are the ones at positions first through first + count - 1 in the list
+ * of items (for a removal, these are the positions they had before they
+ * were removed).  The bounds give the area of the canvas that changed,
+ * or null if the whole canvas changed.
+ */
+public class CollageEvent extends EventObject {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The kinds of changes that can be made to a collage.
+	 */
+	public enum Type {
+		/** Items were added to the end of the list. */
+		ADDED,
+		/** Items were removed from the end of the list. */
+		REMOVED,
+		/** Properties of items already in the list were changed. */
+		CHANGED,
+		/** All items were removed. */
+		CLEARED,
+		/** The whole collage was replaced, for example by opening a file. */
+		LOADED,
+		/** The background color of the canvas was changed. */
+		BACKGROUND_CHANGED
+	}
+
+	private final Type type;
+	private final int first;
+	private final int count;
+	private final Rectangle bounds;
+
+	/**
+	 * Create an event describing a change to the collage.
+	 * @param source the DrawTextPanel that contains the collage
+	 * @param type the kind of change
+	 * @param first the position of the first affected item
+	 * @param count the number of affected items
+	 * @param bounds the area of the canvas that changed, or null for all of it
+	 */
+	public CollageEvent(Object source, Type type, int first, int count, Rectangle bounds) {
+		super(source);
+		this.type = type;
+		this.first = first;
+		this.count = count;
+		this.bounds = bounds == null ? null : new Rectangle(bounds);
+	}
+
+	/**
+	 * returns the kind of change
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * returns the position in the list of the first affected item
+	 */
+	public int getFirst() {
+		return first;
+	}
+
+	/**
+	 * returns the number of affected items
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * returns the area of the canvas that changed, or null if the whole canvas changed
+	 */
+	public Rectangle getBounds() {
+		return bounds == null ? null : new Rectangle(bounds);
+	}
+
+}
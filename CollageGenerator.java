@@ -0,0 +1,247 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A CollageGenerator makes items with random positions and styles, as
+ * used by the "Generate Random" command.  The random numbers come from a
+ * SplittableRandom with a seed, so a generator that is given the same
+ * seed and asked for the same items makes exactly the same collage; the
+ * seed can be saved to reproduce a collage later, or to make the same
+ * input for every run of a benchmark.
+ * <p>Fonts and background colors are chosen from palettes, and items
+ * that get the same font or color share one Font or Color object.  The
+ * font families and the background colors can be set; the sizes and
+ * styles are fixed.
+ * <p>generate() makes large numbers of items in parallel in a ForkJoinPool.
+ * The items are made in chunks of CHUNK_SIZE, and each chunk gets its own
+ * random number stream, split from the generator's stream in the order of
+ * the chunks before any work is forked, so the result does not depend on
+ * the number of threads or on the order in which the chunks are done.
+ * <p>A CollageGenerator is not thread-safe; it is meant to be used by one
+ * thread, which can then use all the processors through generate().
+ */
+public class CollageGenerator {
+
+	/**
+	 * The font families that are used if setFontFamilies() is not called.
+	 * The names are passed through resolveFontFamily().
+	 */
+	public static final String[] DEFAULT_FONT_FAMILIES =
+			{"Monospace", "Helvetica", "TimesRoman", "Courier", "Serif", "Sans_Serif"};
+
+	private static final int MIN_FONT_SIZE = 7, MAX_FONT_SIZE = 14;
+	private static final int[] FONT_STYLES = { Font.ITALIC, Font.BOLD, Font.ITALIC + Font.BOLD };
+
+	/**
+	 * The number of items that are made by one task in generate().
+	 */
+	private static final int CHUNK_SIZE = 4096;
+
+	private final ForkJoinPool pool;
+	private long seed;
+	private SplittableRandom random;  // split once for each call to generate()
+	private Font[] fonts;  // for each family, style and size, in that order
+	private int familyCount;
+	private Color[] backgrounds;
+
+	/**
+	 * Create a generator with a seed that is chosen at random.  The seed
+	 * can be found with getSeed().
+	 */
+	public CollageGenerator() {
+		this(new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * Create a generator with a given seed, which uses the common ForkJoinPool.
+	 */
+	public CollageGenerator(long seed) {
+		this(seed, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a generator with a given seed, which uses a given pool to make
+	 * items in parallel.
+	 */
+	public CollageGenerator(long seed, ForkJoinPool pool) {
+		this.pool = pool;
+		setSeed(seed);
+		setFontFamilies(DEFAULT_FONT_FAMILIES);
+		setBackgroundColors(defaultBackgroundColors());
+	}
+
+	/**
+	 * Restart the random numbers from a seed.  After this, the generator
+	 * makes the same items as a new generator with this seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * returns the seed that was last set
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Set the font families that are chosen from.  Each name is passed
+	 * through resolveFontFamily().
+	 * @throws IllegalArgumentException if no families are given
+	 */
+	public void setFontFamilies(String... families) {
+		if (families.length == 0)
+			throw new IllegalArgumentException("At least one font family is needed.");
+		int sizes = MAX_FONT_SIZE - MIN_FONT_SIZE + 1;
+		Font[] fonts = new Font[families.length * FONT_STYLES.length * sizes];
+		int n = 0;
+		for (String family : families) {
+			String name = resolveFontFamily(family);
+			for (int style : FONT_STYLES)
+				for (int size = MIN_FONT_SIZE; size <= MAX_FONT_SIZE; size++)
+					fonts[n++] = new Font(name, style, size);
+		}
+		this.fonts = fonts;
+		familyCount = families.length;
+	}
+
+	/**
+	 * Set the colors that are chosen from for the backgrounds of the items.
+	 * @throws IllegalArgumentException if no colors are given
+	 */
+	public void setBackgroundColors(Color... colors) {
+		if (colors.length == 0)
+			throw new IllegalArgumentException("At least one color is needed.");
+		backgrounds = colors.clone();
+	}
+
+	/**
+	 * Returns the colors that are used if setBackgroundColors() is not
+	 * called: 216 colors, with six levels of red, green and blue.
+	 */
+	public static Color[] defaultBackgroundColors() {
+		int[] levels = { 0, 51, 102, 153, 204, 254 };
+		Color[] colors = new Color[levels.length * levels.length * levels.length];
+		int n = 0;
+		for (int r : levels)
+			for (int g : levels)
+				for (int b : levels)
+					colors[n++] = new Color(r, g, b);
+		return colors;
+	}
+
+	/**
+	 * Give an item a random style, using the generator's own random numbers.
+	 */
+	public void randomStyle(DrawTextItem s) {
+		randomStyle(s, random);
+	}
+
+	/**
+	 * Make items with a given string, at random positions in an area and
+	 * with random styles.  If there are more than CHUNK_SIZE items, they
+	 * are made in parallel.
+	 * @param text the string for all of the items
+	 * @param count the number of items
+	 * @param area the area in which the centers of the items are placed
+	 * @param textColor the text color for all of the items
+	 * @return the items, in the order in which they were generated
+	 */
+	public List<DrawTextItem> generate(final String text, int count, final Rectangle area, final Color textColor) {
+		final DrawTextItem[] items = new DrawTextItem[count];
+		SplittableRandom stream = random.split();
+		final SplittableRandom[] chunkRandoms = new SplittableRandom[(count + CHUNK_SIZE - 1) / CHUNK_SIZE];
+		for (int i = 0; i < chunkRandoms.length; i++)
+			chunkRandoms[i] = stream.split();  // in order, so that every run splits the same way
+		class Chunks extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final int first, last;  // the range of chunks, first inclusive, last exclusive
+			Chunks(int first, int last) {
+				this.first = first;
+				this.last = last;
+			}
+			protected void compute() {
+				if (last - first == 1) {
+					SplittableRandom r = chunkRandoms[first];
+					int end = Math.min(items.length, (first + 1) * CHUNK_SIZE);
+					for (int i = first * CHUNK_SIZE; i < end; i++) {
+						int x = area.x + r.nextInt(Math.max(1, area.width));
+						int y = area.y + r.nextInt(Math.max(1, area.height));
+						DrawTextItem s = new DrawTextItem(text, x, y);
+						s.setTextColor(textColor);
+						randomStyle(s, r);
+						items[i] = s;
+					}
+				}
+				else {
+					int middle = (first + last) >>> 1;
+					invokeAll(new Chunks(first, middle), new Chunks(middle, last));
+				}
+			}
+		}
+		if (chunkRandoms.length == 1)
+			new Chunks(0, 1).compute();
+		else if (chunkRandoms.length > 1)
+			pool.invoke(new Chunks(0, chunkRandoms.length));
+		return Arrays.asList(items);
+	}
+
+	/**
+	 * Give an item a random font, rotation, magnification, border and
+	 * background, using a given random number stream.  The choices are made
+	 * with the same probabilities as in earlier versions of the program,
+	 * except that the background is chosen from the palette.
+	 */
+	private void randomStyle(DrawTextItem s, SplittableRandom r) {
+		int family = r.nextInt(familyCount);
+		int style;
+		if (r.nextDouble() > 0.25)
+			style = 0;  // italic
+		else if (r.nextDouble() > 0.5)
+			style = 1;  // bold
+		else
+			style = 2;  // bold italic
+		int size = Math.max(MIN_FONT_SIZE, r.nextInt(MAX_FONT_SIZE + 1));
+		int sizes = MAX_FONT_SIZE - MIN_FONT_SIZE + 1;
+		s.setFont(fonts[(family * FONT_STYLES.length + style) * sizes + size - MIN_FONT_SIZE]);
+		s.setRotationAngle(r.nextInt(359));
+		s.setMagnification(Math.max(1, r.nextInt(5)));
+		s.setBorder(r.nextBoolean());
+		s.setTextTransparency(0.3);
+		s.setBackground(backgrounds[r.nextInt(backgrounds.length)]);
+		s.setBackgroundTransparency(r.nextDouble() * 0.90 + 0.10);
+	}
+
+	/**
+	 * Returns a font name that Java will actually use for a given family name.
+	 * If Java does not know the name, so that a font with that name would
+	 * silently be drawn in the Dialog font, the name is compared to Java's
+	 * logical font names, ignoring case, underscores and spaces, and the first
+	 * logical name that starts with it is returned ("Sans_Serif" becomes
+	 * "SansSerif" and "Monospace" becomes "Monospaced").  If there is no
+	 * match, the name is returned unchanged.
+	 */
+	static String resolveFontFamily(String name) {
+		Font f = new Font(name, Font.PLAIN, 12);
+		if (!f.getFamily().equals(Font.DIALOG) || name.equalsIgnoreCase(Font.DIALOG))
+			return name;
+		String squashed = name.replaceAll("[_\\s]", "").toLowerCase();
+		String[] logicalNames = { Font.SERIF, Font.SANS_SERIF, Font.MONOSPACED, Font.DIALOG_INPUT };
+		for (String logical : logicalNames)
+			if (squashed.length() > 0 && logical.toLowerCase().startsWith(squashed))
+				return logical;
+		return name;
+	}
+
+}
@@ -0,0 +1,306 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes collages in the "New textImage" text format that
+ * is used by the Save and Open commands of DrawTextPanel.  The file
+ * starts with the line "New textImage" and the red, green and blue
+ * components of the background color.  Each item is then written as
+ * the line "theString:" followed by one property per line.
+ * The read() methods also accept files in the binary format that is
+ * handled by BinaryCollageIO.
+ */
+public class CollageIO {
+
+	/**
+	 * The first line of every collage file in the text format.
+	 */
+	public static final String TEXT_HEADER = "New textImage";
+
+	/**
+	 * Tests whether a file starts with the "New textImage" header line.
+	 * Returns false if the file can't be read.
+	 */
+	public static boolean isTextCollage(File file) {
+		if (!file.isFile())
+			return false;
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			return TEXT_HEADER.equals(in.readLine());
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a collage to a file in the text format.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @param background the background color of the drawing area
+	 * @param items the items to save, in drawing order.  Can be null.
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public static void writeText(File file, Color background, List<DrawTextItem> items) throws IOException {
+		long start = System.nanoTime();
+		PrintWriter write = new PrintWriter(file);
+		try {
+			write.println(TEXT_HEADER);
+			write.println(background.getRed());
+			write.println(background.getGreen());
+			write.println(background.getBlue());
+			if (items != null)
+				for (DrawTextItem s: items) {
+					write.println("theString:");
+					write.println(s.getString());
+					write.println(s.getX());
+					write.println(s.getY());
+					write.println(s.getFont().getName());
+					write.println(s.getFont().getStyle());
+					write.println(s.getFont().getSize());
+					write.println(s.getTextColor().getRed());
+					write.println(s.getTextColor().getGreen());
+					write.println(s.getTextColor().getBlue());
+					write.println(s.getTextTransparency());
+					if (s.getBackground() == null) {
+						write.println(-1);
+						write.println(-1);
+						write.println(-1);
+					} else {
+						write.println(s.getBackground().getRed());
+						write.println(s.getBackground().getGreen());
+						write.println(s.getBackground().getBlue());
+					}
+					write.println(s.getBackgroundTransparency());
+					write.println(s.getBorder());
+					write.println(s.getMagnification());
+					write.println(s.getRotationAngle());
+				}
+			if (write.checkError())
+				throw new IOException("Error while writing " + file.getName() + ".");
+		}
+		finally {
+			write.close();
+		}
+		RenderMetrics.getShared().saveDone(items == null ? 0 : items.size(), file.length(), 
+				System.nanoTime() - start);
+	}
+
+	/**
+	 * Tests whether a file is a collage file in the text, binary or
+	 * tiled format.
+	 */
+	public static boolean isCollage(File file) {
+		return isTextCollage(file) || BinaryCollageIO.isBinaryCollage(file)
+				|| TiledCollageFile.isTiledCollage(file);
+	}
+
+	/**
+	 * Read a collage from a file in the text, binary or tiled format.
+	 * The format is determined from the start of the file.
+	 * @param file the file to read.
+	 * @param items the list where the items are added.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   collage file.
+	 */
+	public static Collage read(File file, List<DrawTextItem> items) throws IOException {
+		if (BinaryCollageIO.isBinaryCollage(file))
+			return BinaryCollageIO.read(file, items);
+		else if (TiledCollageFile.isTiledCollage(file))
+			return TiledCollageFile.open(file).openReader().readAll(items);
+		else
+			return readText(file, items);
+	}
+
+	/**
+	 * Read a collage from a file in the text format.
+	 * @param file the file to read.
+	 * @return the background color and items that were read from the file.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   collage file.  (A malformed item is also reported as an IOException.)
+	 */
+	public static Collage readText(File file) throws IOException {
+		return readText(file, new ArrayList<DrawTextItem>());
+	}
+
+	/**
+	 * Read a collage from a file in the text format, adding the items
+	 * to a given list.  This can be used to load items directly into a
+	 * PackedItemList.
+	 * @param file the file to read.
+	 * @param newStrings the list where the items are added.
+	 * @return a Collage with the background color from the file and the
+	 *   given list of items.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   collage file.  The message tells which item could not be read.
+	 */
+	public static Collage readText(File file, List<DrawTextItem> newStrings) throws IOException {
+		CollageReader read = openTextReader(file);
+		try {
+			return read.readAll(newStrings);
+		}
+		finally {
+			read.close();
+		}
+	}
+
+	/**
+	 * Read a collage in the text format from a stream, such as the body
+	 * of a network request.  The stream is read to the end of the collage
+	 * but it is not closed.
+	 * @param in the stream to read
+	 * @param name a name for the stream, used in error messages
+	 * @param newStrings the list where the items are added.
+	 * @throws IOException if the stream can't be read or does not contain
+	 *   a valid collage.
+	 */
+	public static Collage readText(InputStream in, String name, List<DrawTextItem> newStrings) throws IOException {
+		TextReader read = new TextReader(in, name);
+		readHeader(read, name);
+		return read.readAll(newStrings);
+	}
+
+	/**
+	 * Open a file in the text format for reading one item at a time.
+	 * The header and background color are read immediately.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   collage file.
+	 */
+	public static CollageReader openTextReader(File file) throws IOException {
+		TextReader reader = new TextReader(file);
+		try {
+			readHeader(reader, file.getName());
+			return reader;
+		}
+		catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+	}
+
+	private static void readHeader(TextReader reader, String name) throws IOException {
+		try {
+			reader.readHeader();
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Malformed header in " + name + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Reads the text format one line at a time.  Each property of an item
+	 * is on a line of its own.
+	 */
+	private static class TextReader extends CollageReader {
+		private final BufferedReader in;
+		private Color background;
+		private long bytesRead;  // the number of bytes that have been passed to the buffer
+
+		TextReader(File file) throws IOException {
+			super(file);
+			in = new BufferedReader(new InputStreamReader(counted(new FileInputStream(file))), 64*1024);
+		}
+
+		TextReader(InputStream stream, String name) {
+			super(name);
+			in = new BufferedReader(new InputStreamReader(counted(stream)), 64*1024);
+		}
+
+		private InputStream counted(InputStream stream) {
+			return new FilterInputStream(stream) {
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0)
+						bytesRead++;
+					return b;
+				}
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0)
+						bytesRead += n;
+					return n;
+				}
+			};
+		}
+
+		void readHeader() throws IOException {
+			if (!TEXT_HEADER.equals(in.readLine()))
+				throw new IOException("This is not a valid textImage file.");
+			background = new Color(nextInt(), nextInt(), nextInt());
+		}
+
+		public Color getBackground() {
+			return background;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		protected DrawTextItem readItem() throws IOException {
+			String marker = in.readLine();
+			if (marker == null || !marker.equals("theString:"))
+				return null;
+			DrawTextItem newText = new DrawTextItem(nextLine(), nextInt(), nextInt());
+			newText.setFont(new Font(nextLine(), nextInt(), nextInt()));
+			newText.setTextColor(new Color(nextInt(), nextInt(), nextInt()));
+			newText.setTextTransparency(nextDouble());
+
+			int r = nextInt();
+			int g = nextInt();
+			int b = nextInt();
+			if (r == -1)
+				newText.setBackground(null);
+			else
+				newText.setBackground(new Color(r, g, b));
+
+			newText.setBackgroundTransparency(nextDouble());
+			newText.setBorder(nextBoolean());
+			newText.setMagnification(nextDouble());
+			newText.setRotationAngle(nextDouble());
+			return newText;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private String nextLine() throws IOException {
+			String line = in.readLine();
+			if (line == null)
+				throw new EOFException("Unexpected end of file.");
+			return line;
+		}
+
+		private int nextInt() throws IOException {
+			return Integer.parseInt(nextLine().trim());
+		}
+
+		private double nextDouble() throws IOException {
+			return Double.parseDouble(nextLine().trim());
+		}
+
+		private boolean nextBoolean() throws IOException {
+			String line = nextLine().trim();
+			if (line.equalsIgnoreCase("true"))
+				return true;
+			if (line.equalsIgnoreCase("false"))
+				return false;
+			throw new IOException("Expected true or false but found \"" + line + "\".");
+		}
+	}
+
+}
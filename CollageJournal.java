@@ -0,0 +1,723 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A CollageJournal saves the collage in a DrawTextPanel continuously, so
+ * that it can be recovered if the program ends without the user saving
+ * it.  Instead of rewriting the whole collage, the journal listens for
+ * CollageEvents and appends a small record for each change to a journal
+ * file: the new items for an addition, just the positions for a removal,
+ * and so on.  The cost of saving therefore depends on how fast the
+ * collage is edited, not on how big it is.
+ * <p>Records are encoded on the event dispatch thread and written by a
+ * background thread.  The file is forced to the disk at most every
+ * FSYNC_MILLIS milliseconds, so several records share one fsync.  Each
+ * record has a checksum, so a record that was only partly written when
+ * the program died is recognized and ignored.
+ * <p>When a journal file grows past COMPACT_BYTES, the journal moves on to
+ * a new file, and another background thread compacts the old ones: it
+ * replays them on top of the last snapshot and writes the result as a new
+ * snapshot, in the binary format of BinaryCollageIO, then deletes the
+ * files that the snapshot replaces.  recover() reads the newest snapshot
+ * and replays the journal files that came after it.
+ * <p>Opening a file, or undoing a Clear, replaces the whole collage.  That
+ * is not recorded as a record with all of the items; instead the writer
+ * thread writes a snapshot of the new collage, from a copy that the panel
+ * makes with getSnapshot(), and goes on with a new journal file.  The
+ * event dispatch thread only has to make the copy.  A collage that is
+ * shown from a TiledCollageFile is not written as a snapshot, since that
+ * would read every item of the file: the new journal file starts with a
+ * TILED record, which names the file, followed by records for the ways in
+ * which the collage differs from the file.  recover() opens the file
+ * again, and fails if it has been changed since.  A journal file that
+ * starts with a TILED record does not need a snapshot, so compaction
+ * replaces such a file with one that holds only those records.
+ * <p>The files in the directory are named snapshot-N.tcb and journal-N.log,
+ * where the snapshot numbered N includes the changes from every journal
+ * file up to number N.
+ */
+public class CollageJournal implements CollageListener {
+
+	private static final int FSYNC_MILLIS = 250;
+	private static final long COMPACT_BYTES = 8 * 1024 * 1024;
+
+	private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)\\.tcb");
+	private static final Pattern JOURNAL_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+	// Record types.  RESET records, which hold a whole collage, are only
+	// read, from journal files that were written by earlier versions.
+	private static final byte ADD = 1, REMOVE = 2, CHANGE = 3, CLEAR = 4, RESET = 5, BACKGROUND = 6, TILED = 7;
+
+	/**
+	 * Returns the directory that is used for autosave files: the value of
+	 * the system property textcollage.autosaveDir, or a directory named
+	 * .textcollage in the user's home directory.
+	 */
+	public static File defaultDirectory() {
+		String dir = System.getProperty("textcollage.autosaveDir");
+		if (dir != null)
+			return new File(dir);
+		return new File(System.getProperty("user.home"), ".textcollage");
+	}
+
+	/**
+	 * Read the collage that was saved in a directory, by reading the
+	 * newest snapshot and replaying the journal files that came after it.
+	 * A damaged record at the end of the last journal file is ignored.
+	 * @return the collage, or null if there are no autosave files.
+	 * @throws IOException if the files can't be read.
+	 */
+	public static Collage recover(File dir) throws IOException {
+		int snapshot = latest(dir, SNAPSHOT_NAME);
+		List<Integer> journals = numbers(dir, JOURNAL_NAME, snapshot);
+		if (snapshot < 0 && journals.isEmpty())
+			return null;
+		return replay(dir, Math.max(snapshot, 0), journals);
+	}
+
+	private final File dir;
+	private final ScheduledExecutorService writer;  // writes records; all file operations of the journal happen here
+	private final ExecutorService compactor;  // writes snapshots
+	private final Object snapshotLock = new Object();  // held while snapshots are written and old files deleted
+	private int segment;  // the number of the journal file that is being written
+	private FileChannel channel;  // the journal file
+	private long segmentBytes;
+	private boolean forceScheduled;
+	private volatile IOException error;  // the first error that happened in the background, if any
+
+	/**
+	 * Create a journal that writes its files in a given directory.  If
+	 * continueExisting is true, the files that are already there are
+	 * kept, and new records are written to a new journal file after them;
+	 * this is used after the collage has been recovered from those files.
+	 * Otherwise, any existing files are deleted.
+	 * @throws IOException if the directory can't be created or the first
+	 *   journal file can't be opened.
+	 */
+	public CollageJournal(File dir, boolean continueExisting) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create the directory " + dir + ".");
+		if (continueExisting)
+			segment = Math.max(latest(dir, SNAPSHOT_NAME), latest(dir, JOURNAL_NAME)) + 1;
+		else {
+			deleteFiles(Integer.MAX_VALUE);
+			segment = 1;
+		}
+		channel = openSegment(segment);
+		writer = Executors.newSingleThreadScheduledExecutor(daemonThreads("CollageJournal writer"));
+		compactor = Executors.newSingleThreadExecutor(daemonThreads("CollageJournal compactor"));
+	}
+
+	/**
+	 * Start recording the changes to the collage in a panel.  The journal
+	 * should be created after the panel's collage is set up, so that the
+	 * journal files describe it.
+	 */
+	public void attach(DrawTextPanel panel) {
+		panel.addCollageListener(this);
+	}
+
+	/**
+	 * Returns the first error that happened while writing the journal, or
+	 * null if there has been none.  After an error, nothing more is written.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Record a change to the collage.  This is called on the event dispatch
+	 * thread; it encodes the change and passes it to the writer thread.
+	 */
+	public void collageChanged(CollageEvent evt) {
+		if (error != null)
+			return;
+		DrawTextPanel panel = (DrawTextPanel)evt.getSource();
+		RecordBuffer recordBytes = new RecordBuffer();
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		try {
+			switch (evt.getType()) {
+			case ADDED:
+				record.writeByte(ADD);
+				record.writeInt(evt.getCount());
+				for (int i = evt.getFirst(); i < evt.getFirst() + evt.getCount(); i++)
+					writeItem(record, panel.getItem(i));
+				break;
+			case REMOVED:
+				record.writeByte(REMOVE);
+				record.writeInt(evt.getFirst());
+				record.writeInt(evt.getCount());
+				break;
+			case CHANGED:
+				record.writeByte(CHANGE);
+				record.writeInt(evt.getFirst());
+				record.writeInt(evt.getCount());
+				for (int i = evt.getFirst(); i < evt.getFirst() + evt.getCount(); i++)
+					writeItem(record, panel.getItem(i));
+				break;
+			case CLEARED:
+				record.writeByte(CLEAR);
+				break;
+			case LOADED:
+				final Collage collage = panel.getSnapshot();
+				writer.execute(new Runnable() {
+					public void run() {
+						reset(collage);
+					}
+				});
+				return;
+			case BACKGROUND_CHANGED:
+				record.writeByte(BACKGROUND);
+				record.writeInt(panel.getCollageBackground().getRGB());
+				break;
+			}
+			record.flush();
+		}
+		catch (IOException e) {  // can't happen with a ByteArrayOutputStream
+			error = e;
+			return;
+		}
+		final ByteBuffer data = recordBytes.frame();
+		writer.execute(new Runnable() {
+			public void run() {
+				append(data);
+			}
+		});
+	}
+
+	/**
+	 * Write all the records that have been passed to the writer thread,
+	 * force them to the disk, and stop the background threads.  A
+	 * compaction that is in progress is allowed to finish.
+	 */
+	public void close() {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					channel.force(false);
+					channel.close();
+				}
+				catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		writer.shutdown();
+		compactor.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+			compactor.awaitTermination(60, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Close the journal and delete all of its files.  This is done when the
+	 * program ends normally, since then there is nothing to recover.
+	 */
+	public void discard() {
+		close();
+		deleteFiles(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Append a record to the journal file.  Runs on the writer thread.
+	 */
+	private void append(ByteBuffer data) {
+		if (error != null)
+			return;
+		try {
+			segmentBytes += data.remaining();
+			while (data.hasRemaining())
+				channel.write(data);
+			if (segmentBytes >= COMPACT_BYTES)
+				startNewSegment();
+			else if (!forceScheduled) {
+				forceScheduled = true;
+				writer.schedule(new Runnable() {
+					public void run() {
+						force();
+					}
+				}, FSYNC_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Force the journal file to the disk.  Runs on the writer thread.
+	 */
+	private void force() {
+		forceScheduled = false;
+		if (error != null || !channel.isOpen())
+			return;
+		try {
+			channel.force(false);
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Close the current journal file and start writing to a new one, then
+	 * ask the compactor to write a snapshot that includes the closed file.
+	 * Runs on the writer thread.
+	 */
+	private void startNewSegment() throws IOException {
+		channel.force(false);
+		channel.close();
+		final int upTo = segment;
+		segment++;
+		segmentBytes = 0;
+		channel = openSegment(segment);
+		compactor.execute(new Runnable() {
+			public void run() {
+				compact(upTo);
+			}
+		});
+	}
+
+	/**
+	 * Replace the whole collage: close the current journal file, write the
+	 * new collage as the snapshot with the same number, delete the files
+	 * that it replaces, and go on with a new journal file.  The records
+	 * that come after the reset wait for the snapshot to be written.  If
+	 * the program dies in the middle, recover() finds the collage as it
+	 * was either before the reset or after it.  Runs on the writer thread.
+	 */
+	private void reset(Collage collage) {
+		if (error != null)
+			return;
+		try {
+			channel.force(false);
+			channel.close();
+			if (collage.getItems() instanceof TiledItemList) {
+				// The new journal file describes the whole collage by itself.
+				int replaced = segment;
+				segment++;
+				channel = openSegment(segment);
+				segmentBytes = writeTiled(channel, collage.getBackground(), (TiledItemList)collage.getItems());
+				channel.force(false);
+				synchronized (snapshotLock) {
+					deleteFiles(replaced);
+				}
+				return;
+			}
+			synchronized (snapshotLock) {
+				writeSnapshot(collage, segment);
+				deleteFiles(segment - 1);
+				new File(dir, "journal-" + segment + ".log").delete();
+			}
+			segment++;
+			segmentBytes = 0;
+			channel = openSegment(segment);
+		}
+		catch (IOException | RuntimeException e) {
+			fail(e instanceof IOException ? (IOException)e : new IOException(e.toString(), e));
+		}
+	}
+
+	/**
+	 * Write a snapshot that includes every journal file up to a given
+	 * number, and delete the files that it replaces.  If the collage is
+	 * shown from a tiled file, the journal file with that number is
+	 * rewritten instead, with the records that describe the collage by
+	 * themselves.  Nothing is done if a reset has already replaced the
+	 * journal file.  Runs on the compactor thread.
+	 */
+	private void compact(int upTo) {
+		try {
+			synchronized (snapshotLock) {
+				File journal = new File(dir, "journal-" + upTo + ".log");
+				if (!journal.exists())
+					return;
+				int snapshot = Math.max(latest(dir, SNAPSHOT_NAME), 0);
+				List<Integer> journals = new ArrayList<Integer>();
+				for (int n : numbers(dir, JOURNAL_NAME, snapshot))
+					if (n <= upTo)
+						journals.add(n);
+				Collage collage = replay(dir, snapshot, journals);
+				if (collage.getItems() instanceof TiledItemList) {
+					File temp = new File(dir, "journal-" + upTo + ".tmp");
+					try (FileChannel c = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+							StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						writeTiled(c, collage.getBackground(), (TiledItemList)collage.getItems());
+						c.force(true);
+					}
+					Files.move(temp.toPath(), journal.toPath(),
+							StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					deleteFiles(upTo - 1);
+				}
+				else {
+					writeSnapshot(collage, upTo);
+					deleteFiles(upTo - 1);
+					journal.delete();
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			fail(e instanceof IOException ? (IOException)e : new IOException(e.toString(), e));
+		}
+	}
+
+	/**
+	 * Write the records that describe a collage that is shown from a tiled
+	 * file: a TILED record with the file's path, length and time of last
+	 * change and the background color, then records for the items of the
+	 * file that were removed from the end or replaced, and for the items
+	 * that were added after them.  Only those items are written; nothing is
+	 * read from the file.  Returns the number of bytes that were written.
+	 */
+	private static long writeTiled(FileChannel channel, Color background, TiledItemList items) 
+			throws IOException {
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		File file = items.getFile().getFile();
+		RecordBuffer recordBytes = new RecordBuffer();
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeByte(TILED);
+		writeString(record, file.getAbsolutePath());
+		record.writeLong(file.length());
+		record.writeLong(file.lastModified());
+		record.writeInt(background.getRGB());
+		record.flush();
+		records.add(recordBytes.frame());
+		int fileItems = items.getFile().getItemCount();
+		if (items.getBaseSize() < fileItems) {
+			recordBytes = new RecordBuffer();
+			record = new DataOutputStream(recordBytes);
+			record.writeByte(REMOVE);
+			record.writeInt(items.getBaseSize());
+			record.writeInt(fileItems - items.getBaseSize());
+			record.flush();
+			records.add(recordBytes.frame());
+		}
+		for (int position : items.getReplacedPositions()) {
+			recordBytes = new RecordBuffer();
+			record = new DataOutputStream(recordBytes);
+			record.writeByte(CHANGE);
+			record.writeInt(position);
+			record.writeInt(1);
+			writeItem(record, items.get(position));
+			record.flush();
+			records.add(recordBytes.frame());
+		}
+		if (items.size() > items.getBaseSize()) {
+			recordBytes = new RecordBuffer();
+			record = new DataOutputStream(recordBytes);
+			record.writeByte(ADD);
+			record.writeInt(items.size() - items.getBaseSize());
+			for (int i = items.getBaseSize(); i < items.size(); i++)
+				writeItem(record, items.get(i));
+			record.flush();
+			records.add(recordBytes.frame());
+		}
+		long bytes = 0;
+		for (ByteBuffer data : records) {
+			bytes += data.remaining();
+			while (data.hasRemaining())
+				channel.write(data);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Write a collage as the snapshot with a given number.  The snapshot
+	 * is written to a temporary file, forced to the disk and then renamed,
+	 * so that a complete snapshot always exists.
+	 */
+	private void writeSnapshot(Collage collage, int n) throws IOException {
+		File temp = new File(dir, "snapshot-" + n + ".tmp");
+		BinaryCollageIO.write(temp, collage.getBackground(), collage.getItems(), false);
+		try (FileChannel c = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+			c.force(true);
+		}
+		Files.move(temp.toPath(), new File(dir, "snapshot-" + n + ".tcb").toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void fail(IOException e) {
+		if (error == null)
+			error = e;
+		System.err.println("Autosave stopped because of an error: " + e);
+	}
+
+	private FileChannel openSegment(int n) throws IOException {
+		return FileChannel.open(new File(dir, "journal-" + n + ".log").toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Delete the snapshots and journal files whose numbers are at most upTo.
+	 */
+	private void deleteFiles(int upTo) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			Matcher m = SNAPSHOT_NAME.matcher(f.getName());
+			if (!m.matches())
+				m = JOURNAL_NAME.matcher(f.getName());
+			if (m.matches() && Integer.parseInt(m.group(1)) <= upTo)
+				f.delete();
+		}
+	}
+
+	/**
+	 * Returns the largest number of the files in a directory whose names
+	 * match a pattern, or -1 if there are none.
+	 */
+	private static int latest(File dir, Pattern pattern) {
+		int max = -1;
+		for (int n : numbers(dir, pattern, -1))
+			max = Math.max(max, n);
+		return max;
+	}
+
+	/**
+	 * Returns the numbers, in increasing order, of the files in a directory
+	 * whose names match a pattern and whose numbers are greater than after.
+	 */
+	private static List<Integer> numbers(File dir, Pattern pattern, int after) {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names != null)
+			for (String name : names) {
+				Matcher m = pattern.matcher(name);
+				if (m.matches() && Integer.parseInt(m.group(1)) > after)
+					list.add(Integer.parseInt(m.group(1)));
+			}
+		list.sort(null);
+		return list;
+	}
+
+	/**
+	 * Read a snapshot (or start with an empty collage if its number is 0)
+	 * and apply the records of some journal files to it.  Replaying stops at
+	 * the first damaged or incomplete record.
+	 */
+	private static Collage replay(File dir, int snapshot, List<Integer> journals) throws IOException {
+		Color background = Color.LIGHT_GRAY;
+		List<DrawTextItem> items = new PackedItemList();
+		if (snapshot > 0) {
+			Collage c = BinaryCollageIO.read(new File(dir, "snapshot-" + snapshot + ".tcb"), items);
+			background = c.getBackground();
+		}
+		for (int n : journals) {
+			byte[] data = Files.readAllBytes(new File(dir, "journal-" + n + ".log").toPath());
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (true) {
+				byte[] body = unframe(buf);
+				if (body == null) {
+					if (buf.hasRemaining())  // a damaged record; nothing after it can be trusted
+						return new Collage(background, items);
+					break;
+				}
+				DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(body));
+				byte type = in.readByte();
+				switch (type) {
+				case ADD:
+					for (int count = in.readInt(); count > 0; count--)
+						items.add(readItem(in));
+					break;
+				case REMOVE: {
+					int first = in.readInt();
+					int count = in.readInt();
+					for (int i = first + count - 1; i >= first; i--)
+						items.remove(i);
+					break;
+				}
+				case CHANGE: {
+					int first = in.readInt();
+					int count = in.readInt();
+					for (int i = first; i < first + count; i++)
+						items.set(i, readItem(in));
+					break;
+				}
+				case CLEAR:
+					items.clear();
+					break;
+				case RESET:
+					background = new Color(in.readInt(), true);
+					items.clear();
+					for (int count = in.readInt(); count > 0; count--)
+						items.add(readItem(in));
+					break;
+				case BACKGROUND:
+					background = new Color(in.readInt(), true);
+					break;
+				case TILED: {
+					File file = new File(readString(in));
+					long length = in.readLong();
+					long modified = in.readLong();
+					background = new Color(in.readInt(), true);
+					if (!file.isFile() || file.length() != length || file.lastModified() != modified)
+						throw new IOException("The collage file " + file + " has been changed or removed since it was opened.");
+					items = new TiledItemList(TiledCollageFile.open(file));
+					break;
+				}
+				default:
+					throw new IOException("Unknown record type " + type + " in journal-" + n + ".log.");
+				}
+			}
+		}
+		return new Collage(background, items);
+	}
+
+	/**
+	 * The bytes of one record, with room for its length in front of it.
+	 * frame() fills in the length and adds the checksum in the same array,
+	 * so the record is not copied on its way to the file.  A new buffer is
+	 * used for each record, so the memory of a large record is freed once
+	 * the record has been written.
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(256);
+			count = 4;  // the length goes here
+		}
+		/**
+		 * Returns the record with its length in front of it and its
+		 * checksum after it.  Nothing more can be written to the buffer.
+		 */
+		ByteBuffer frame() {
+			int length = count - 4;
+			CRC32 crc = new CRC32();
+			crc.update(buf, 4, length);
+			int checksum = (int)crc.getValue();
+			for (int shift = 24; shift >= 0; shift -= 8)
+				write(checksum >>> shift);
+			ByteBuffer framed = ByteBuffer.wrap(buf, 0, count);
+			framed.putInt(0, length);
+			return framed;
+		}
+	}
+
+	/**
+	 * Returns the body of the next record in a buffer, or null if there is
+	 * no complete record with a correct checksum.
+	 */
+	private static byte[] unframe(ByteBuffer buf) {
+		if (buf.remaining() < 8)
+			return null;
+		buf.mark();
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining() - 4) {
+			buf.reset();
+			return null;
+		}
+		byte[] body = new byte[length];
+		buf.get(body);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if (buf.getInt() != (int)crc.getValue()) {
+			buf.reset();
+			return null;
+		}
+		return body;
+	}
+
+	private static void writeItem(DataOutputStream out, DrawTextItem s) throws IOException {
+		writeString(out, s.getString());
+		out.writeInt(s.getX());
+		out.writeInt(s.getY());
+		Font font = s.getFont();
+		Color textColor = s.getTextColor();
+		Color background = s.getBackground();
+		out.writeByte((font != null ? 1 : 0) | (textColor != null ? 2 : 0) | (background != null ? 4 : 0)
+				| (s.getBorder() ? 8 : 0));
+		if (font != null) {
+			writeString(out, font.getName());
+			out.writeInt(font.getStyle());
+			out.writeFloat(font.getSize2D());
+		}
+		if (textColor != null)
+			out.writeInt(textColor.getRGB());
+		if (background != null)
+			out.writeInt(background.getRGB());
+		out.writeDouble(s.getRotationAngle());
+		out.writeDouble(s.getMagnification());
+		out.writeDouble(s.getTextTransparency());
+		out.writeDouble(s.getBackgroundTransparency());
+	}
+
+	private static DrawTextItem readItem(DataInputStream in) throws IOException {
+		DrawTextItem s = new DrawTextItem(readString(in), in.readInt(), in.readInt());
+		int flags = in.readByte();
+		if ((flags & 1) != 0) {
+			String name = readString(in);
+			int style = in.readInt();
+			float size = in.readFloat();
+			if (size == (int)size)
+				s.setFont(new Font(name, style, (int)size));
+			else
+				s.setFont(new Font(name, style, 1).deriveFont(size));
+		}
+		if ((flags & 2) != 0)
+			s.setTextColor(StyleRegistry.getShared().color(in.readInt()));
+		if ((flags & 4) != 0)
+			s.setBackground(StyleRegistry.getShared().color(in.readInt()));
+		s.setBorder((flags & 8) != 0);
+		s.setRotationAngle(in.readDouble());
+		s.setMagnification(in.readDouble());
+		s.setTextTransparency(in.readDouble());
+		s.setBackgroundTransparency(in.readDouble());
+		return s;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new EOFException("Bad string length.");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+}
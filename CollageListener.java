@@ -0,0 +1,18 @@
+package textcollage;
+
+
+import java.util.EventListener;
+
+/**
+ * A CollageListener can be registered with a DrawTextPanel to be
+ * notified whenever the items or the background of the collage change.
+ */
+public interface CollageListener extends EventListener {
+
+	/**
+	 * Called after a change to the collage.  The event tells what kind
+	 * of change was made and which items and area of the canvas it affected.
+	 */
+	void collageChanged(CollageEvent evt);
+
+}
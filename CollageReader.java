@@ -0,0 +1,145 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A CollageReader reads the items of a collage file one at a time, so
+ * that a large file can be loaded without holding all of it in memory at
+ * once and the items can be shown while the rest of the file is read.
+ * The background color is read when the reader is opened.  A reader
+ * keeps track of the number of the record (item) that it is reading, so
+ * that errors can say where in the file they happened, and of how much
+ * of the file has been read, so that progress can be reported.  A reader
+ * can also read from a stream, such as the body of a network request,
+ * instead of from a file.
+ */
+public abstract class CollageReader implements Closeable {
+
+	private final File file;  // null if the collage is read from a stream
+	private final String name;  // the file name, or a name for the stream, for error messages
+	private int recordNumber;  // the number of items returned by next() so far
+	private final long openTime = System.nanoTime();
+	private boolean finished;  // set when next() reaches the end of the file
+
+	/**
+	 * Open a collage file in the text, binary or tiled format.  The
+	 * format is determined from the start of the file.
+	 * @throws IOException if the file can't be read or is not a valid collage file.
+	 */
+	public static CollageReader open(File file) throws IOException {
+		if (BinaryCollageIO.isBinaryCollage(file))
+			return BinaryCollageIO.openReader(file);
+		else if (TiledCollageFile.isTiledCollage(file))
+			return TiledCollageFile.open(file).openReader();
+		else
+			return CollageIO.openTextReader(file);
+	}
+
+	protected CollageReader(File file) {
+		this.file = file;
+		name = file.getName();
+	}
+
+	/**
+	 * Create a reader for a collage that is not read from a file.
+	 * @param name a name for the source of the collage, used in error messages
+	 */
+	protected CollageReader(String name) {
+		this.file = null;
+		this.name = name;
+	}
+
+	/**
+	 * returns the file that is being read, or null if the collage is read from a stream
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * returns the background color of the collage
+	 */
+	public abstract Color getBackground();
+
+	/**
+	 * Returns the number of items in the file, or -1 if that is not
+	 * known until the whole file has been read.
+	 */
+	public int getItemCount() {
+		return -1;
+	}
+
+	/**
+	 * Returns the number of bytes of the file that have been read so far.
+	 * This can be an estimate, since the file is read through a buffer.
+	 */
+	public abstract long getBytesRead();
+
+	/**
+	 * Returns the number of items that have been read so far.  While
+	 * next() is reading an item, this is the number of the previous one.
+	 */
+	public int getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * Read the next item from the file.
+	 * @return the item, or null if there are no more items.
+	 * @throws IOException if an error occurs.  The message includes the
+	 *   number of the item that could not be read.
+	 */
+	public DrawTextItem next() throws IOException {
+		DrawTextItem item;
+		try {
+			item = readItem();
+		}
+		catch (IOException | RuntimeException e) {
+			throw new IOException("Error in item " + (recordNumber + 1) + " of " + name
+					+ ": " + e.getMessage(), e);
+		}
+		if (item != null)
+			recordNumber++;
+		else if (!finished) {
+			finished = true;
+			RenderMetrics.getShared().loadDone(recordNumber, getBytesRead(), System.nanoTime() - openTime);
+		}
+		return item;
+	}
+
+	/**
+	 * Read up to max items and add them to a list.
+	 * @return the number of items that were added; this is less than max
+	 *   only at the end of the file.
+	 */
+	public int next(List<DrawTextItem> items, int max) throws IOException {
+		int count = 0;
+		DrawTextItem item;
+		while (count < max && (item = next()) != null) {
+			items.add(item);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Read the rest of the file into a list, and return a Collage that
+	 * holds the background color and that list.  The reader is not closed.
+	 */
+	public Collage readAll(List<DrawTextItem> items) throws IOException {
+		next(items, Integer.MAX_VALUE);
+		return new Collage(getBackground(), items);
+	}
+
+	/**
+	 * Read the next item from the file, or return null at the end of the file.
+	 * Errors are reported by next(), which adds the record number to the message.
+	 */
+	protected abstract DrawTextItem readItem() throws IOException;
+
+}
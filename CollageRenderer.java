@@ -0,0 +1,76 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Draws a collage into an off-screen image, the same way that the
+ * drawing area of a DrawTextPanel draws it on the screen.  This class
+ * does not need a window, so it can be used in a headless program.
+ */
+public class CollageRenderer {
+
+	/**
+	 * The width of the drawing area in a DrawTextPanel.
+	 */
+	public static final int DEFAULT_WIDTH = 800;
+
+	/**
+	 * The height of the drawing area in a DrawTextPanel.
+	 */
+	public static final int DEFAULT_HEIGHT = 600;
+
+	/**
+	 * The font that is used for items that don't have a font of their own.
+	 */
+	public static final Font DEFAULT_FONT = new Font( "Serif", Font.BOLD, 24 );
+
+	/**
+	 * Fill the given area with a background color and draw a list of items
+	 * on top of it, with antialiasing turned on.  The font and color of the
+	 * graphics context are set to the default font and to black before the
+	 * items are drawn.
+	 */
+	public static void paint(Graphics2D g2, Color background, List<DrawTextItem> items, int width, int height) {
+		g2.setColor(background);
+		g2.fillRect(0, 0, width, height);
+		g2.setFont(DEFAULT_FONT);
+		g2.setColor(Color.BLACK);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		if (items != null) {
+			ItemPainter painter = new ItemPainter(g2);
+			for (DrawTextItem s: items)
+				painter.paint(s);
+		}
+	}
+
+	/**
+	 * Render a collage into a new image that has the size of the
+	 * drawing area of a DrawTextPanel.
+	 */
+	public static BufferedImage render(Collage collage) {
+		return render(collage, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	/**
+	 * Render a collage into a new RGB image of the specified size.
+	 */
+	public static BufferedImage render(Collage collage, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2 = image.createGraphics();
+		try {
+			paint(g2, collage.getBackground(), collage.getItems(), width, height);
+		}
+		finally {
+			g2.dispose();
+		}
+		return image;
+	}
+
+}
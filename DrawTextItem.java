@@ -1,12 +1,13 @@
 package textcollage;
 
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 
 /**
  * An object of type DrawText can draw a string in
@@ -14,6 +15,8 @@ import java.awt.Graphics2D;
  * color, magnification, and rotation  The string
  * is specified in the constructor and cannot be changed.
  * The position and other properties can be changed.
+ * The string, font and colors are shared with other items that
+ * have equal ones, through the shared StyleRegistry.
  */
 public class DrawTextItem {
 	
@@ -30,6 +33,8 @@ public class DrawTextItem {
 	private double textTransparency = 0;
 	private double backgroundTransparency = 0;
 	
+	SpriteCache.Key spriteKey;  // Cached key for this item's image in a SpriteCache; null when out of date.
+	
 	/**
 	 * Create a DrawTextItem to draw a specified string.  Initially,
 	 * the position is set to (0,0) and all properties have their
@@ -52,7 +57,7 @@ public class DrawTextItem {
 	public DrawTextItem(String stringToDraw, int x, int y) {
 		if (stringToDraw == null)
 			throw new NullPointerException("String can't be null.");
-		string = stringToDraw;
+		string = StyleRegistry.getShared().intern(stringToDraw);
 		this.x = x;
 		this.y = y;
 	}
@@ -63,42 +68,88 @@ public class DrawTextItem {
 	 * @param g the graphics context in which the string will
 	 * be drawn.  Note that this is assumed to be actually of
 	 * type Graphics2D (which should not be a problem).
+	 * To draw many items, an ItemPainter is faster, since it saves the
+	 * state of the graphics context once for all of them.
 	 */
 	public void draw(Graphics g) {
-		Graphics2D g2 = (Graphics2D)g.create();
-		if (font != null)
-			g2.setFont(font);
-		FontMetrics fm = g2.getFontMetrics();
-		int width = fm.stringWidth(string);
-		int height = fm.getAscent() + fm.getDescent();
-		g2.translate(x,y);
-		if (magnification != 1) {
-		    float pixelSize = 1/(float)magnification;
-			g2.setStroke( new BasicStroke(pixelSize) ); // magnification won't apply to border
-			g2.scale(magnification,magnification);
-		}
+		draw(g, getX(), getY());
+	}
+	
+	/**
+	 * Draw this item's string centered at (x,y) instead of at the
+	 * item's own position.  This is used by SpriteCache to draw the
+	 * item into an image of its own.
+	 */
+	void draw(Graphics g, int x, int y) {
+		new ItemPainter(g).paint(this, x, y);
+	}
+	
+	/**
+	 * Returns a rectangle that contains everything that is drawn by the
+	 * draw() method, taking magnification and rotation into account.  The
+	 * rectangle is slightly larger than necessary, to allow for antialiasing
+	 * and for glyphs such as italics that extend past the string's width.
+	 * @param g a graphics context whose font is used if this item's font
+	 * is null.  It is used only for measuring the string.
+	 */
+	public Rectangle getBounds(Graphics g) {
+		return getBounds(g, getX(), getY());
+	}
+	
+	/**
+	 * Returns the bounds of this item as if it were centered at (x,y).
+	 * @see #getBounds(Graphics)
+	 */
+	Rectangle getBounds(Graphics g, int x, int y) {
+		Font font = getFont();
+		double rotationAngle = getRotationAngle();
+		double magnification = getMagnification();
+		TextMetricsCache.Metrics fm = TextMetricsCache.getShared().get((Graphics2D)g, getString(), 
+				font != null ? font : g.getFont());
+		int width = fm.width;
+		int height = fm.ascent + fm.descent;
+		int pad = 4 + height/4;  // room for the border, the stroke, and italic overhang
+		AffineTransform t = AffineTransform.getTranslateInstance(x,y);
+		if (magnification != 1)
+			t.scale(magnification,magnification);
 		if (rotationAngle > 0)
-			g2.rotate( -Math.PI * (rotationAngle / 180));
-		Color colorToUseForText = textColor;
-		if (colorToUseForText == null)
-			colorToUseForText = g2.getColor();
-		if (background != null) {
-			if (backgroundTransparency == 0)
-				g2.setColor(background);
-			else
-				g2.setColor( new Color( background.getRed(), background.getGreen(), background.getBlue(),
-						(int)(255*(1-backgroundTransparency))) );
-			g2.fillRect(-width/2 - 3, -height/2 - 3, width + 6, height + 6);
+			t.rotate( -Math.PI * (rotationAngle / 180));
+		Rectangle2D box = new Rectangle2D.Double(-width/2 - pad, -height/2 - pad, 
+				width + 2*pad, height + 2*pad);
+		Rectangle bounds = t.createTransformedShape(box).getBounds();
+		bounds.grow(1,1);
+		return bounds;
+	}
+
+	/**
+	 * Tests whether a point is inside the rectangle around the string that
+	 * draw() fills with the background color, taking magnification and
+	 * rotation into account, so that a point in a corner of the bounds of
+	 * a rotated item is not counted as inside it.
+	 * @param g a graphics context whose font is used if this item's font
+	 * is null.  It is used only for measuring the string.
+	 */
+	public boolean contains(Graphics g, int px, int py) {
+		Font font = getFont();
+		double rotationAngle = getRotationAngle();
+		double magnification = getMagnification();
+		TextMetricsCache.Metrics fm = TextMetricsCache.getShared().get((Graphics2D)g, getString(),
+				font != null ? font : g.getFont());
+		int width = fm.width;
+		int height = fm.ascent + fm.descent;
+		// Transform the point into the item's coordinates, the opposite of what draw() does.
+		double dx = (px - getX()) / magnification;
+		double dy = (py - getY()) / magnification;
+		if (rotationAngle > 0) {
+			double radians = Math.PI * (rotationAngle / 180);
+			double cos = Math.cos(radians);
+			double sin = Math.sin(radians);
+			double rx = dx*cos - dy*sin;
+			dy = dx*sin + dy*cos;
+			dx = rx;
 		}
-		if (textTransparency == 0)
-			g2.setColor(colorToUseForText);
-		else
-			g2.setColor( new Color( colorToUseForText.getRed(), 
-					colorToUseForText.getGreen(), colorToUseForText.getBlue(),
-					(int)(255*(1-textTransparency)) ) );
-		if (border)
-			g2.drawRect(-width/2 -3, -height/2 - 3, width + 6, height + 6);
-		g2.drawString(string,-width/2, -height/2 + fm.getAscent());
+		return dx >= -width/2 - 3 && dx <= -width/2 + width + 3
+				&& dy >= -height/2 - 3 && dy <= -height/2 + height + 3;
 	}
 
 	/**
@@ -109,6 +160,23 @@ public class DrawTextItem {
 		return string;
 	}
 
+	/**
+	 * Returns a new DrawTextItem with the same string, position and
+	 * properties as this one.  Changing the copy does not change this item.
+	 */
+	public DrawTextItem copy() {
+		DrawTextItem item = new DrawTextItem(getString(), getX(), getY());
+		item.setFont(getFont());
+		item.setTextColor(getTextColor());
+		item.setBackground(getBackground());
+		item.setBorder(getBorder());
+		item.setRotationAngle(getRotationAngle());
+		item.setMagnification(getMagnification());
+		item.setTextTransparency(getTextTransparency());
+		item.setBackgroundTransparency(getBackgroundTransparency());
+		return item;
+	}
+
 	/**
 	 * Set the background color.  If the value is non-null, then
 	 * a rectangle of this color is drawn behind the string.
@@ -116,7 +184,8 @@ public class DrawTextItem {
 	 * The default value is null.
 	 */
 	public void setBackground(Color background) {
-		this.background = background;
+		this.background = StyleRegistry.getShared().intern(background);
+		spriteKey = null;
 	}
 
 	/**
@@ -132,6 +201,7 @@ public class DrawTextItem {
 		if (backgroundTransparency < 0 || backgroundTransparency > 1)
 			throw new IllegalArgumentException("Transparency must be in the range 0 to 1.");
 		this.backgroundTransparency = backgroundTransparency;
+		spriteKey = null;
 	}
 
 	/**
@@ -140,6 +210,7 @@ public class DrawTextItem {
 	 */
 	public void setBorder(boolean border) {
 		this.border = border;
+		spriteKey = null;
 	}
 
 	/**
@@ -149,7 +220,8 @@ public class DrawTextItem {
 	 * null.
 	 */
 	public void setFont(Font font) {
-		this.font = font;
+		this.font = StyleRegistry.getShared().intern(font);
+		spriteKey = null;
 	}
 
 	/**
@@ -164,6 +236,7 @@ public class DrawTextItem {
 		if (magnification == 0)
 			throw new IllegalArgumentException("Magnification cannot be 0.");
 		this.magnification = magnification;
+		spriteKey = null;
 	}
 
 	/**
@@ -173,6 +246,7 @@ public class DrawTextItem {
 	 */
 	public void setRotationAngle(double rotationAngle) {
 		this.rotationAngle = rotationAngle;
+		spriteKey = null;
 	}
 
 	/**
@@ -181,7 +255,8 @@ public class DrawTextItem {
 	 * graphics context where the string is drawn will be used for drawing the text.
 	 */
 	public void setTextColor(Color textColor) {
-		this.textColor = textColor;
+		this.textColor = StyleRegistry.getShared().intern(textColor);
+		spriteKey = null;
 	}
 
 	/**
@@ -197,6 +272,7 @@ public class DrawTextItem {
 		if (textTransparency < 0 || textTransparency > 1)
 			throw new IllegalArgumentException("Transparency must be in the range 0 to 1.");
 		this.textTransparency = textTransparency;
+		spriteKey = null;
 	}
 
 	/**
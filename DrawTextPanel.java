@@ -3,25 +3,42 @@ package textcollage;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Random;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 
-import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JColorChooser;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -31,6 +48,11 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.UndoableEdit;
 
 /**
  * A panel that contains a large drawing area where strings
@@ -47,36 +69,342 @@ public class DrawTextPanel extends JPanel  {
 	// variable should be replaced by a variable of type
 	// ArrayList<DrawStringItem> that can store multiple items.
 	
-	private ArrayList<DrawTextItem> theString; // ADDED an ArrayList with the type DrawTextItem
+	private List<DrawTextItem> theString; // ADDED an ArrayList with the type DrawTextItem
+	private PackedItemList.Item cursor;  // a reusable view, when theString is a PackedItemList
+	
+	/**
+	 * If true, the items are kept in a PackedItemList instead of an ArrayList,
+	 * which uses much less memory for large collages.  It is set with the
+	 * system property textcollage.packedStore.
+	 */
+	private static final boolean PACKED_STORE = Boolean.getBoolean("textcollage.packedStore");
 	
 	private Color currentTextColor = Color.BLACK;  // Color applied to new strings.
+	private CollageGenerator generator = new CollageGenerator();  // used for all random positions and styles
+	private int generateCount = 150;  // the number of items made by "Generate Random", as last entered
+	private boolean placeWithoutOverlap;  // if true, "Generate Random" moves items so that they don't overlap
 
 	private Canvas canvas;  // the drawing area.
 	private JTextField input;  // where the user inputs the string that will be added to the canvas
 	private SimpleFileChooser fileChooser;  // for letting the user select files
 	private JMenuBar menuBar; // a menu bar with command that affect this panel
 	private MenuHandler menuHandler; // a listener that responds whenever the user selects a menu command
-	private JMenuItem undoMenuItem;  // the "Remove Item" command from the edit menu
+	private JMenuItem removeMenuItem;  // the "Remove Item" command from the edit menu
+	private JMenuItem undoMenuItem, redoMenuItem;  // the "Undo" and "Redo" commands from the edit menu
+	private UndoHistory history = new UndoHistory();  // edits that can be undone and redone
+	private SpriteCache spriteCache;  // if non-null, items are painted from pre-rendered images
+	private SpatialIndex index = new SpatialIndex();  // bounds of the items, by position in theString
+	private CollageLoader loader;  // non-null while a file is being loaded in the background
+	private CollageSaver saver;  // non-null while a file is being saved in the background
+	private ItemMover itemMover;  // lets the user drag items on the canvas
+	
+	/**
+	 * The memory cap for the item image cache, in megabytes.  It can be
+	 * set with the system property textcollage.spriteCacheMB.
+	 */
+	private static final long SPRITE_CACHE_MB = Long.getLong("textcollage.spriteCacheMB", 64);
+	
+	private static final Font METRICS_FONT = new Font("Monospaced", Font.PLAIN, 11);  // for the "Show Metrics" overlay
+	
+	private static final double MIN_SCALE = 1/256.0, MAX_SCALE = 32;  // limits for zooming the canvas
+	private static final double ZOOM_STEP = 1.25;  // the factor for "Zoom In" and "Zoom Out"
 	
 	/**
 	 * An object of type Canvas is used for the drawing area.
-	 * The canvas simply displays all the DrawTextItems that
-	 * are stored in the ArrayList, strings.
+	 * The canvas displays the DrawTextItems that are stored in the
+	 * list, theString.  The items are not drawn on the event-dispatch
+	 * thread: a FrameRenderer draws frames of the canvas on a thread of
+	 * its own, from snapshots that the canvas makes of the items in view,
+	 * and paintComponent() just copies the last finished frame to the
+	 * screen.  Changes are reported to the renderer, which merges the
+	 * ones that arrive while a frame is being drawn into the next frame.
+	 * New items are drawn on top of the previous frame; when items are
+	 * removed or moved, only the area that they covered is drawn again.
+	 * Other changes (clear, open, background color) cause the whole
+	 * frame to be drawn.
+	 * <p>The canvas is a view of a collage that has no edges.  Items have
+	 * positions in the collage's coordinates, which are mapped to the
+	 * canvas by a scale factor (the zoom) and the point of the collage at
+	 * the top left corner.  Only the items that are in view are drawn.
+	 * Items that would be smaller than FrameRenderer.LOD_PIXELS on the
+	 * screen are drawn as filled boxes instead of text, which is much
+	 * faster and looks the same at that size.  When the view is panned,
+	 * the part of the previous frame that is still in view is moved and
+	 * only the rest is drawn.
+	 * <p>While an item is being dragged, it is left out of the frames and
+	 * is drawn on top of them, at its offset from its original position,
+	 * each time the canvas is painted.  Only the area that the item covers
+	 * is repainted as it moves, so the cost of dragging does not depend on
+	 * the number of items.
 	 */
 	private class Canvas extends JPanel {
+		private Graphics2D measureGraphics;  // for measuring items when there is no on-screen graphics
+		private final FrameRenderer renderer;  // draws the frames that are shown, on a thread of its own
+		boolean showMetrics;  // if true, a summary of RenderMetrics is drawn on top of the items
+		private int dragIndex = -1;  // the position of the item that is being dragged, or -1
+		private int dragX, dragY;  // how far the dragged item has been moved from its position
+		private double viewScale = 1;  // pixels on the canvas per unit of the collage's coordinates
+		private double viewX, viewY;  // the point of the collage that is at the top left corner
 		Canvas() {
-			setPreferredSize( new Dimension(800,600) );
+			setPreferredSize( new Dimension(CollageRenderer.DEFAULT_WIDTH,CollageRenderer.DEFAULT_HEIGHT) );
 			setBackground(Color.LIGHT_GRAY);
-			setFont( new Font( "Serif", Font.BOLD, 24 ));
+			setFont( CollageRenderer.DEFAULT_FONT );
+			measureGraphics = new BufferedImage(1,1,BufferedImage.TYPE_INT_ARGB).createGraphics();
+			measureGraphics.setFont(getFont());
+			measureGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, 
+					RenderingHints.VALUE_ANTIALIAS_ON);
+			renderer = new FrameRenderer(new FrameRenderer.SceneSource() {
+				public FrameRenderer.Scene snapshot() {
+					return takeSnapshot();
+				}
+			}, this);
+		}
+		/**
+		 * Start drawing frames when the canvas is added to a window.
+		 */
+		public void addNotify() {
+			super.addNotify();
+			renderer.start();
+		}
+		Rectangle itemBounds(DrawTextItem s) {
+			return s.getBounds(measureGraphics);
+		}
+		public void setBackground(Color c) {
+			super.setBackground(c);
+			if (renderer != null)  // the constructor of JPanel sets the background
+				renderer.redraw(null);
+		}
+		double getScale() {
+			return viewScale;
+		}
+		/**
+		 * Returns the x-coordinate in the collage of a point on the canvas.
+		 */
+		int toCollageX(int x) {
+			return (int)Math.floor(viewX + x / viewScale);
+		}
+		/**
+		 * Returns the y-coordinate in the collage of a point on the canvas.
+		 */
+		int toCollageY(int y) {
+			return (int)Math.floor(viewY + y / viewScale);
+		}
+		/**
+		 * Returns the area of the canvas that shows an area of the collage,
+		 * rounded outwards to whole pixels.
+		 */
+		Rectangle toCanvas(Rectangle r) {
+			return FrameRenderer.Scene.toCanvas(r, viewScale, viewX, viewY);
+		}
+		/**
+		 * Returns the area of the collage that is shown in an area of the
+		 * canvas, rounded outwards to whole units.
+		 */
+		Rectangle toCollage(Rectangle r) {
+			return FrameRenderer.Scene.toCollage(r, viewScale, viewX, viewY);
+		}
+		/**
+		 * Returns the area of the collage that is in view.
+		 */
+		Rectangle getViewArea() {
+			return toCollage(new Rectangle(0, 0, getWidth(), getHeight()));
+		}
+		/**
+		 * Multiply the scale by a factor, keeping the point of the collage
+		 * that is at (x,y) on the canvas in the same place.  The scale is
+		 * kept between MIN_SCALE and MAX_SCALE.
+		 */
+		void zoom(double factor, int x, int y) {
+			double scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, viewScale * factor));
+			if (scale == viewScale)
+				return;
+			double cx = viewX + x / viewScale;
+			double cy = viewY + y / viewScale;
+			viewScale = scale;
+			viewX = cx - x / scale;
+			viewY = cy - y / scale;
+			renderer.refresh();
+		}
+		/**
+		 * Set the scale to 1, keeping the point at the center of the canvas
+		 * in the same place.
+		 */
+		void resetZoom() {
+			zoom(1 / viewScale, getWidth() / 2, getHeight() / 2);
+		}
+		/**
+		 * Move the view so that the collage moves by (dx,dy) pixels on the
+		 * canvas.  The renderer moves the part of the previous frame that
+		 * stays in view, and only draws the strips that come into view.
+		 */
+		void pan(int dx, int dy) {
+			if (dx == 0 && dy == 0)
+				return;
+			viewX -= dx / viewScale;
+			viewY -= dy / viewScale;
+			renderer.refresh();
+		}
+		/**
+		 * Returns the position of the topmost item whose background
+		 * rectangle contains the point (x,y) of the collage, or -1 if
+		 * there is none.
+		 */
+		int itemAtPoint(int x, int y) {
+			if (theString == null)
+				return -1;
+			int[] candidates = index.query(new Rectangle(x, y, 1, 1));  // in drawing order
+			for (int j = candidates.length - 1; j >= 0; j--)
+				if (itemAt(candidates[j]).contains(measureGraphics, x, y))
+					return candidates[j];
+			return -1;
+		}
+		/**
+		 * Start dragging item i: take it out of the frames, so that it can
+		 * be drawn separately on top.
+		 */
+		void startItemDrag(int i) {
+			dragIndex = i;
+			dragX = dragY = 0;
+			redrawArea(index.getBounds(i));
+		}
+		/**
+		 * Move the dragged item to an offset from its position, repainting
+		 * only the area that it left and the area that it now covers.
+		 */
+		void moveItemDrag(int dx, int dy) {
+			Rectangle area = new Rectangle(index.getBounds(dragIndex));
+			area.translate(dragX, dragY);
+			dragX = dx;
+			dragY = dy;
+			Rectangle moved = new Rectangle(index.getBounds(dragIndex));
+			moved.translate(dx, dy);
+			area.add(moved);
+			repaint(toCanvas(area));
+		}
+		/**
+		 * Stop dragging, and repaint the area where the item was being drawn.
+		 * The item is not put back into the frames; the caller does
+		 * that by moving the item with itemChanged(), or by redrawing its area.
+		 */
+		void endItemDrag() {
+			Rectangle area = new Rectangle(index.getBounds(dragIndex));
+			area.translate(dragX, dragY);
+			dragIndex = -1;
+			repaint(toCanvas(area));
+		}
+		boolean isDragging() {
+			return dragIndex >= 0;
+		}
+		/**
+		 * Have the items that have just been added to the end of the list,
+		 * starting at position first, drawn on top of the others in the
+		 * next frame.
+		 */
+		void itemsAdded(int first, Rectangle bounds) {
+			renderer.itemsAppended(first, bounds);
+		}
+		/**
+		 * Have part of the collage drawn again from the current list of
+		 * items in the next frame.
+		 * @param area the area to redraw, in the collage's coordinates
+		 */
+		void redrawArea(Rectangle area) {
+			renderer.redraw(area);
+		}
+		/**
+		 * Have everything drawn again in the next frame.
+		 */
+		void redrawAll() {
+			renderer.redraw(null);
+		}
+		/**
+		 * Draw a whole frame right now, on the event-dispatch thread,
+		 * and copy it to a graphics context.
+		 */
+		void paintNow(Graphics g) {
+			renderer.paintNow(g);
+		}
+		/**
+		 * Returns a snapshot of the view and of the items in view, except
+		 * the one that is being dragged, for the renderer.
+		 */
+		private FrameRenderer.Scene takeSnapshot() {
+			int[] positions = new int[0];
+			if (theString instanceof TiledItemList && getWidth() > 0 && getHeight() > 0) {
+				// Only as many items as the cache holds are read, so a view of a whole huge file shows a sample.
+				int max = ((TiledItemList)theString).getCacheItems();
+				positions = ((TiledIndex)index).query(getViewArea(), max);
+			}
+			else if (theString != null && getWidth() > 0 && getHeight() > 0)
+				positions = index.query(getViewArea());  // in drawing order
+			if (dragIndex >= 0) {
+				int j = Arrays.binarySearch(positions, dragIndex);
+				if (j >= 0) {
+					int[] rest = new int[positions.length - 1];
+					System.arraycopy(positions, 0, rest, 0, j);
+					System.arraycopy(positions, j + 1, rest, j, rest.length - j);
+					positions = rest;
+				}
+			}
+			Rectangle[] bounds = new Rectangle[positions.length];
+			for (int j = 0; j < positions.length; j++)
+				bounds[j] = index.getBounds(positions[j]);  // the index replaces its rectangles, it doesn't modify them
+			List<DrawTextItem> items;
+			if (theString instanceof PackedItemList)
+				items = ((PackedItemList)theString).copyOf(positions);
+			else {
+				DrawTextItem[] array = new DrawTextItem[positions.length];
+				for (int j = 0; j < positions.length; j++)
+					array[j] = theString.get(positions[j]);
+				items = Arrays.asList(array);
+			}
+			return new FrameRenderer.Scene(getWidth(), getHeight(), viewScale, viewX, viewY,
+					getBackground(), getForeground(), getFont(), positions, bounds, items,
+					theString == null ? 0 : theString.size(), spriteCache);
 		}
 		protected void paintComponent(Graphics g) {
-			super.paintComponent(g);
-			((Graphics2D)g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, 
-					RenderingHints.VALUE_ANTIALIAS_ON);
-			if (theString != null)
-				for (DrawTextItem s: theString)
-					s.draw(g);
-
+			if (!renderer.paintFrame(g, getWidth(), getHeight())) {
+				g.setColor(getBackground());
+				g.fillRect(0, 0, getWidth(), getHeight());
+			}
+			if (dragIndex >= 0) {
+				Graphics2D g2 = (Graphics2D)g.create();
+				g2.setFont(getFont());
+				g2.setColor(getForeground());
+				g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, 
+						RenderingHints.VALUE_ANTIALIAS_ON);
+				g2.scale(viewScale, viewScale);
+				g2.translate(dragX - viewX, dragY - viewY);
+				itemAt(dragIndex).draw(g2);
+				g2.dispose();
+			}
+			if (showMetrics)
+				drawMetrics(g);
+		}
+		/**
+		 * Draw the summary of RenderMetrics in a box at the top left corner.
+		 * If only part of the canvas is being repainted, the rest of the box
+		 * is repainted afterwards, so that the numbers stay current.
+		 */
+		private void drawMetrics(Graphics g) {
+			List<String> lines = RenderMetrics.getShared().getSummary();
+			g.setFont(METRICS_FONT);
+			FontMetrics fm = g.getFontMetrics();
+			int width = 0;
+			for (String line : lines)
+				width = Math.max(width, fm.stringWidth(line));
+			Rectangle box = new Rectangle(4, 4, width + 12, lines.size() * fm.getHeight() + 8);
+			g.setColor(new Color(0, 0, 0, 170));
+			g.fillRect(box.x, box.y, box.width, box.height);
+			g.setColor(Color.GREEN);
+			int y = box.y + 4 + fm.getAscent();
+			for (String line : lines) {
+				g.drawString(line, box.x + 6, y);
+				y += fm.getHeight();
+			}
+			Rectangle clip = g.getClipBounds();
+			if (clip != null && !clip.contains(box))
+				repaint(box);
 		}
 	}
 	
@@ -92,16 +420,117 @@ public class DrawTextPanel extends JPanel  {
 		}
 	}
 
+	/**
+	 * An ItemMover lets the user drag the items on the canvas.  Pressing the
+	 * mouse on an item and dragging moves the topmost item under the mouse.
+	 * If the mouse is released without moving, or is pressed where there is
+	 * no item, a new item is added by doMousePress(), as before.  A completed
+	 * move is recorded in the undo history as one edit.
+	 */
+	private class ItemMover extends Movement {
+		private int item = -1;  // the position of the item that was pressed, or -1
+		ItemMover() {
+			super(canvas);
+		}
+		protected boolean startDrag(MouseEvent e) {
+			if (!SwingUtilities.isLeftMouseButton(e))
+				return false;  // the other buttons pan the view
+			int x = canvas.toCollageX(e.getX());
+			int y = canvas.toCollageY(e.getY());
+			item = loader == null ? canvas.itemAtPoint(x, y) : -1;
+			if (item < 0) {
+				doMousePress(x, y);
+				return false;
+			}
+			return true;
+		}
+		protected void drag(MouseEvent e, int dx, int dy) {
+			if (item < 0)
+				return;  // the drag was canceled
+			dx = (int)Math.round(dx / canvas.getScale());  // in the collage's coordinates
+			dy = (int)Math.round(dy / canvas.getScale());
+			if (!canvas.isDragging()) {
+				if (dx == 0 && dy == 0)
+					return;
+				canvas.startItemDrag(item);
+			}
+			canvas.moveItemDrag(dx, dy);
+		}
+		protected void endDrag(MouseEvent e, int dx, int dy) {
+			if (item < 0)
+				return;
+			int i = item;
+			item = -1;
+			if (!canvas.isDragging()) {  // a click on the item, not a drag
+				doMousePress(canvas.toCollageX(e.getX()), canvas.toCollageY(e.getY()));
+				return;
+			}
+			dx = (int)Math.round(dx / canvas.getScale());
+			dy = (int)Math.round(dy / canvas.getScale());
+			canvas.endItemDrag();
+			if (dx == 0 && dy == 0)
+				canvas.redrawArea(index.getBounds(i));
+			else {
+				moveItem(i, dx, dy);
+				addEdit(new MoveEdit(i, dx, dy));
+			}
+		}
+		/**
+		 * Put back an item that is being dragged, and ignore the rest of the
+		 * drag.  This is done before any command that could change the items.
+		 */
+		void cancel() {
+			if (canvas.isDragging()) {
+				canvas.endItemDrag();
+				canvas.redrawArea(index.getBounds(item));
+			}
+			item = -1;
+		}
+	}
+
+	/**
+	 * A ViewPanner lets the user move the view of the collage by dragging
+	 * the canvas with the right or middle mouse button.
+	 */
+	private class ViewPanner extends Movement {
+		private int lastX, lastY;  // the offset at the previous mouse event of the drag
+		ViewPanner() {
+			super(canvas);
+		}
+		protected boolean startDrag(MouseEvent e) {
+			if (SwingUtilities.isLeftMouseButton(e))
+				return false;
+			lastX = lastY = 0;
+			canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
+			return true;
+		}
+		protected void drag(MouseEvent e, int dx, int dy) {
+			canvas.pan(dx - lastX, dy - lastY);
+			lastX = dx;
+			lastY = dy;
+		}
+		protected void endDrag(MouseEvent e, int dx, int dy) {
+			drag(e, dx, dy);
+			canvas.setCursor(null);
+		}
+	}
+
 	/**
 	 * Creates a DrawTextPanel.  The panel has a large drawing area and
 	 * a text input box where the user can specify a string.  When the
 	 * user clicks the drawing area, the string is added to the drawing
-	 * area at the point where the user clicked.
+	 * area at the point where the user clicked.  Items can be dragged with
+	 * the left mouse button; the view can be moved by dragging with the
+	 * other buttons, and zoomed with the mouse wheel.
 	 */
 	public DrawTextPanel() {
 		fileChooser = new SimpleFileChooser();
-		undoMenuItem = new JMenuItem("Remove Item");
-		undoMenuItem.setEnabled(false);
+		removeMenuItem = new JMenuItem("Remove Item");
+		undoMenuItem = new JMenuItem("Undo");
+		undoMenuItem.setActionCommand("Undo");  // the text changes to name the edit, but the command doesn't
+		redoMenuItem = new JMenuItem("Redo");
+		redoMenuItem.setActionCommand("Redo");
+		updateUndoMenu();
 		menuHandler = new MenuHandler();
 		setLayout(new BorderLayout(3,3));
 		setBackground(Color.BLACK);
@@ -117,19 +546,17 @@ public class DrawTextPanel extends JPanel  {
 		JButton button = new JButton("Generate Random");
 		bottom.add(button);
 		
-		canvas.addMouseListener( new MouseAdapter() {
-			public void mousePressed(MouseEvent e) {
-				doMousePress( e.getX(), e.getY() ); 
+		itemMover = new ItemMover();
+		new ViewPanner();
+		canvas.addMouseWheelListener( new MouseWheelListener() {
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				canvas.zoom(Math.pow(1.1, -e.getPreciseWheelRotation()), e.getX(), e.getY());
 			}
 		} );
 		
 		button.addActionListener(new ActionListener() { 
 			public void actionPerformed(ActionEvent e) { 
-				for (int i = 0; i < 150; i++) { 
-					int X = new Random().nextInt(800); 
-					int Y = new Random().nextInt(600);
-					doMousePress(X, Y); 
-				}
+				doGenerateRandom();
 			}
 		} );
 	}
@@ -138,63 +565,588 @@ public class DrawTextPanel extends JPanel  {
 	 * This method is called when the user clicks the drawing area.
 	 * A new string is added to the drawing area.  The center of
 	 * the string is at the point where the user clicked.
-	 * @param e the mouse event that was generated when the user clicked
+	 * @param x the x-coordinate of the point, in the collage's coordinates
+	 * @param y the y-coordinate of the point, in the collage's coordinates
 	 */
 	public void doMousePress(int x, int y) {
+		if (isLoading())
+			return;
+		addItems(Collections.singletonList(makeItem(getInputText(), x, y)));
+	}
+	
+	/**
+	 * Ask the user how many items to generate, then add that many items,
+	 * with random positions in the part of the collage that is in view
+	 * and random styles, in a single call to addItems().  If the "Place
+	 * Without Overlap" option is on, each item is moved to the nearest
+	 * place where it does not overlap the items that are in view or the
+	 * new items before it, and items that don't fit are left out.
+	 */
+	private void doGenerateRandom() {
+		if (isLoading())
+			return;
+		String response = JOptionPane.showInputDialog(this, "How many items do you want to generate?", 
+				generateCount);
+		if (response == null)
+			return;
+		int count;
+		try {
+			count = Integer.parseInt(response.trim());
+			if (count <= 0)
+				throw new NumberFormatException();
+		}
+		catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, "\"" + response + "\" is not a positive whole number.");
+			return;
+		}
+		generateCount = count;
+		Rectangle area = canvas.getViewArea();
+		List<DrawTextItem> items = generator.generate(getInputText(), count, area, currentTextColor);
+		if (placeWithoutOverlap) {
+			items = placeWithoutOverlap(items, area);
+			if (items.size() < count)
+				JOptionPane.showMessageDialog(this, "Only " + items.size() + " of the " + count 
+						+ " items could be placed without overlapping other items.");
+		}
+		addItems(items);
+	}
+	
+	/**
+	 * Move items to places in an area where they don't overlap each other
+	 * or the items that are already in the area.
+	 * @return the items that could be placed, in their original order
+	 */
+	private List<DrawTextItem> placeWithoutOverlap(List<DrawTextItem> items, Rectangle area) {
+		ItemPlacer placer = new ItemPlacer(area, canvas.measureGraphics);
+		if (theString != null)
+			for (int i : index.query(area))
+				placer.occupy(itemAt(i));
+		ArrayList<DrawTextItem> placed = new ArrayList<DrawTextItem>(items.size());
+		for (DrawTextItem s : items)
+			if (placer.place(s))
+				placed.add(s);
+		return placed;
+	}
+	
+	/**
+	 * Returns the text from the input box.  If it is empty, it is
+	 * reset to "Hello World!".
+	 */
+	private String getInputText() {
 		String text = input.getText().trim();
 		if (text.length() == 0) {
 			input.setText("Hello World!");
 			text = "Hello World!";
 		}
+		return text;
+	}
+	
+	/**
+	 * Create an item with the current text color and a random style.
+	 */
+	private DrawTextItem makeItem(String text, int x, int y) {
 		DrawTextItem s = new DrawTextItem( text, x, y );
 		s.setTextColor(currentTextColor);  // Default is null, meaning default color of the canvas (black).
-				
 		randomStyle(s);
-		
+		return s;
+	}
+	
+	/**
+	 * Add a collection of items to the end of the list of items, as a
+	 * single change.  The new items are drawn on top of the existing ones,
+	 * the canvas is repainted once, and one CollageEvent of type ADDED is
+	 * sent to the registered listeners.  The change is recorded in the
+	 * undo history as one edit.  Nothing is done if the collection is empty.
+	 * @param items the items to add, in drawing order.  They should not
+	 * be modified after they are added, except through itemChanged().
+	 */
+	public void addItems(Collection<? extends DrawTextItem> items) {
+		if (items.isEmpty())
+			return;
+		insertItems(items);
+		String name = items.size() == 1 ? "Add Item" : "Add " + items.size() + " Items";
+		addEdit(new ItemsEdit(name, true, items.size()));
+	}
+	
+	/**
+	 * Add items to the end of the list and notify listeners, without
+	 * recording an edit.
+	 */
+	private void insertItems(Collection<? extends DrawTextItem> items) {
+		int first = theString == null ? 0 : theString.size();
+		Rectangle bounds = appendItems(items);
+		fireCollageChanged(CollageEvent.Type.ADDED, first, items.size(), bounds);
+		updateUndoMenu();
+	}
+	
+	/**
+	 * Remove items from the end of the list, redraw the area that they
+	 * covered and notify listeners, without recording an edit.
+	 * @return the items that were removed, in drawing order.  They are
+	 *   ordinary DrawTextItems even if the list is a PackedItemList.
+	 */
+	private List<DrawTextItem> removeLastItems(int count) {
+		int first = theString.size() - count;
+		Rectangle bounds = null;
+		DrawTextItem[] removed = new DrawTextItem[count];
+		for (int i = theString.size() - 1; i >= first; i--) {
+			Rectangle r = index.getBounds(i);
+			if (bounds == null)
+				bounds = new Rectangle(r);
+			else if (r != null)
+				bounds.add(r);
+			index.remove(i);
+			removed[i - first] = theString.remove(i);
+		}
+		if (bounds != null)
+			canvas.redrawArea(bounds);
+		fireCollageChanged(CollageEvent.Type.REMOVED, first, count, bounds);
+		updateUndoMenu();
+		return Arrays.asList(removed);
+	}
+	
+	/**
+	 * Replace the whole collage, without recording an edit.  This is used
+	 * to clear the collage, to show a collage that was loaded from a file,
+	 * and to undo and redo those changes.
+	 * @param items the new list of items.  Can be null.
+	 * @param newIndex the spatial index for the items
+	 * @param background the new background color
+	 * @param type the type of the event that is sent to listeners,
+	 *   LOADED or CLEARED
+	 */
+	private void setCollage(List<DrawTextItem> items, SpatialIndex newIndex, Color background, 
+			CollageEvent.Type type) {
+		int count = theString == null ? 0 : theString.size();
+		setItemList(items);
+		index = newIndex;
+		canvas.setBackground(background);  // the canvas draws everything again
+		if (type == CollageEvent.Type.LOADED)
+			count = items == null ? 0 : items.size();
+		fireCollageChanged(type, 0, count, null);
+		updateUndoMenu();
+	}
+	
+	/**
+	 * Record an edit in the undo history, and update the Undo and Redo commands.
+	 */
+	private void addEdit(UndoableEdit edit) {
+		history.addEdit(edit);
+		updateUndoMenu();
+	}
+	
+	/**
+	 * Set the text and enabled state of the Undo, Redo and Remove Item commands.
+	 */
+	private void updateUndoMenu() {
+		undoMenuItem.setText(history.getUndoPresentationName());
+		undoMenuItem.setEnabled(history.canUndo());
+		redoMenuItem.setText(history.getRedoPresentationName());
+		redoMenuItem.setEnabled(history.canRedo());
+		removeMenuItem.setEnabled(theString != null && theString.size() > 0);
+	}
+	
+	/**
+	 * Returns an estimate of the memory used by a list of items: the arrays
+	 * of a PackedItemList, or 85 bytes for each item in any other list, the
+	 * size that is measured in the comment on PackedItemList.  Only the
+	 * items of a TiledItemList that are in memory are counted.
+	 */
+	private static long estimateBytes(List<DrawTextItem> items) {
+		if (items == null)
+			return 0;
+		else if (items instanceof PackedItemList)
+			return ((PackedItemList)items).getArrayBytes();
+		else if (items instanceof TiledItemList)
+			return 85L * ((TiledItemList)items).getResidentCount();
+		else
+			return 85L * items.size();
+	}
+	
+	/**
+	 * The base class of the edits in the undo history.  The memory that an
+	 * edit reports is the memory used by items that it keeps and that are
+	 * not in the current list of items.
+	 */
+	private abstract class CollageEdit extends AbstractUndoableEdit implements UndoHistory.Sized {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		CollageEdit(String name) {
+			this.name = name;
+		}
+		public String getPresentationName() {
+			return name;
+		}
+	}
+	
+	/**
+	 * An edit that added items to the end of the list, or removed items
+	 * from the end.  While the items are not in the list, the edit keeps
+	 * them, so that they can be put back.  An edit that adds items costs
+	 * almost no memory until it is undone.
+	 */
+	private class ItemsEdit extends CollageEdit {
+		private static final long serialVersionUID = 1L;
+		private final boolean added;  // true if the edit added the items, false if it removed them
+		private final int count;
+		private List<DrawTextItem> held;  // the items, while they are not in the list
+		ItemsEdit(String name, boolean added, int count) {
+			super(name);
+			this.added = added;
+			this.count = count;
+		}
+		ItemsEdit(String name, List<DrawTextItem> removed) {
+			this(name, false, removed.size());
+			held = removed;
+		}
+		public void undo() {
+			super.undo();
+			apply(!added);
+		}
+		public void redo() {
+			super.redo();
+			apply(added);
+		}
+		private void apply(boolean add) {
+			if (add) {
+				insertItems(held);
+				held = null;
+			}
+			else
+				held = removeLastItems(count);
+		}
+		public void die() {
+			super.die();
+			held = null;
+		}
+		public long getMemoryBytes() {
+			return estimateBytes(held);
+		}
+	}
+	
+	/**
+	 * An edit that replaced the whole collage, by clearing it or by
+	 * loading a file.  The edit keeps both collages.  The list and index
+	 * objects are kept, not copied, so undoing and redoing is fast.
+	 */
+	private class ReplaceEdit extends CollageEdit {
+		private static final long serialVersionUID = 1L;
+		private List<DrawTextItem> oldItems, newItems;
+		private SpatialIndex oldIndex, newIndex;
+		private final Color oldBackground, newBackground;
+		private final CollageEvent.Type type;  // the type of event for redo
+		ReplaceEdit(String name, List<DrawTextItem> oldItems, SpatialIndex oldIndex, Color oldBackground,
+				CollageEvent.Type type) {
+			super(name);
+			this.oldItems = oldItems;
+			this.oldIndex = oldIndex;
+			this.oldBackground = oldBackground;
+			this.type = type;
+			newItems = theString;
+			newIndex = index;
+			newBackground = canvas.getBackground();
+		}
+		public void undo() {
+			super.undo();
+			setCollage(oldItems, oldIndex, oldBackground, CollageEvent.Type.LOADED);
+		}
+		public void redo() {
+			super.redo();
+			setCollage(newItems, newIndex, newBackground, type);
+		}
+		public void die() {
+			super.die();
+			oldItems = newItems = null;
+			oldIndex = newIndex = null;
+		}
+		public long getMemoryBytes() {
+			return estimateBytes(canRedo() ? newItems : oldItems);
+		}
+	}
+	
+	/**
+	 * An edit that changed the background color.
+	 */
+	private class BackgroundEdit extends CollageEdit {
+		private static final long serialVersionUID = 1L;
+		private final Color oldBackground, newBackground;
+		BackgroundEdit(Color oldBackground, Color newBackground) {
+			super("Background Color");
+			this.oldBackground = oldBackground;
+			this.newBackground = newBackground;
+		}
+		public void undo() {
+			super.undo();
+			setBackgroundColor(oldBackground);
+		}
+		public void redo() {
+			super.redo();
+			setBackgroundColor(newBackground);
+		}
+		public long getMemoryBytes() {
+			return 0;
+		}
+	}
+	
+	/**
+	 * An edit that moved one item by dragging it.
+	 */
+	private class MoveEdit extends CollageEdit {
+		private static final long serialVersionUID = 1L;
+		private final int item, dx, dy;
+		MoveEdit(int item, int dx, int dy) {
+			super("Move Item");
+			this.item = item;
+			this.dx = dx;
+			this.dy = dy;
+		}
+		public void undo() {
+			super.undo();
+			moveItem(item, -dx, -dy);
+		}
+		public void redo() {
+			super.redo();
+			moveItem(item, dx, dy);
+		}
+		public long getMemoryBytes() {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Move item i by (dx,dy) and notify listeners, without recording an edit.
+	 */
+	private void moveItem(int i, int dx, int dy) {
+		DrawTextItem s = itemAt(i);
+		// Except in a PackedItemList, whose snapshots are copies, the item
+		// can be held by a scene that the render thread is drawing or by a
+		// snapshot that is being saved, so a copy is changed and put in its
+		// place.  (For a TiledItemList, this also keeps the change when the
+		// item leaves the cache.)
+		boolean copy = !(theString instanceof PackedItemList);
+		if (copy)
+			s = s.copy();
+		s.setX(s.getX() + dx);
+		s.setY(s.getY() + dy);
+		if (copy)
+			theString.set(i, s);
+		itemChanged(i);
+	}
+	
+	/**
+	 * Change the background color and notify listeners, without recording an edit.
+	 */
+	private void setBackgroundColor(Color c) {
+		canvas.setBackground(c);  // the canvas draws everything again in the new color
+		fireCollageChanged(CollageEvent.Type.BACKGROUND_CHANGED, 0, 0, null);
+	}
+	
+	/**
+	 * Add items to the end of the list, put them in the spatial index and
+	 * draw them, without notifying listeners.
+	 * @return the area covered by the new items.
+	 */
+	private Rectangle appendItems(Collection<? extends DrawTextItem> items) {
 		if (theString == null)
-			theString = new ArrayList<DrawTextItem>();
-		theString.add(s);
-		undoMenuItem.setEnabled(true);
-		canvas.repaint();
-		
+			setItemList(newItemList());
+		int first = theString.size();
+		theString.addAll(items);
+		Rectangle bounds = null;
+		for (int i = first; i < theString.size(); i++) {
+			Rectangle r = canvas.itemBounds(itemAt(i));
+			index.insert(i, r);
+			if (bounds == null)
+				bounds = new Rectangle(r);
+			else
+				bounds.add(r);
+		}
+		canvas.itemsAdded(first, bounds);
+		return bounds;
+	}
+	
+	/**
+	 * Replace the collage with a copy of a given one, as a single edit that
+	 * can be undone.  A CollageEvent of type LOADED is sent to listeners.
+	 * If the items are a TiledItemList, as in a collage that CollageJournal
+	 * recovered, the copy is a TiledItemList too, so the items of the file
+	 * are still read only when they come into view.
+	 */
+	public void openCollage(Collage collage) {
+		List<DrawTextItem> oldItems = theString;
+		SpatialIndex oldIndex = index;
+		Color oldBackground = canvas.getBackground();
+		List<DrawTextItem> items;
+		SpatialIndex newIndex;
+		if (collage.getItems() instanceof TiledItemList) {
+			TiledItemList tiled = (TiledItemList)collage.getItems();
+			items = tiled.snapshot(tiled.getCacheItems());
+			newIndex = new TiledIndex(tiled.getFile());
+			for (int i = tiled.getBaseSize(); i < tiled.getFile().getItemCount(); i++)
+				newIndex.remove(i);
+			for (int i : tiled.getReplacedPositions())
+				newIndex.insert(i, canvas.itemBounds(items.get(i)));
+			for (int i = tiled.getBaseSize(); i < items.size(); i++)
+				newIndex.insert(i, canvas.itemBounds(items.get(i)));
+		}
+		else {
+			items = newItemList();
+			items.addAll(collage.getItems());
+			newIndex = new SpatialIndex();
+			for (int i = 0; i < items.size(); i++)
+				newIndex.insert(i, canvas.itemBounds(items.get(i)));
+		}
+		setCollage(items, newIndex, collage.getBackground(), CollageEvent.Type.LOADED);
+		addEdit(new ReplaceEdit("Open", oldItems, oldIndex, oldBackground, CollageEvent.Type.LOADED));
+	}
+	
+	/**
+	 * returns the number of items in the collage
+	 */
+	public int getItemCount() {
+		return theString == null ? 0 : theString.size();
+	}
+	
+	/**
+	 * Returns the item at a given position in the list of items.  Items
+	 * should not be modified except as described for addItems().
+	 */
+	public DrawTextItem getItem(int i) {
+		if (theString == null)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: 0");
+		return theString.get(i);
+	}
+	
+	/**
+	 * returns the background color of the collage
+	 */
+	public Color getCollageBackground() {
+		return canvas.getBackground();
+	}
+	
+	/**
+	 * Register a listener to be notified of changes to the collage.
+	 */
+	public void addCollageListener(CollageListener listener) {
+		listenerList.add(CollageListener.class, listener);
+	}
+	
+	/**
+	 * Remove a listener that was registered with addCollageListener().
+	 */
+	public void removeCollageListener(CollageListener listener) {
+		listenerList.remove(CollageListener.class, listener);
+	}
+	
+	/**
+	 * Send a CollageEvent to all registered CollageListeners.
+	 */
+	private void fireCollageChanged(CollageEvent.Type type, int first, int count, Rectangle bounds) {
+		if (RenderMetrics.getShared().isEnabled())
+			updateModelSize();
+		CollageListener[] listeners = listenerList.getListeners(CollageListener.class);
+		if (listeners.length == 0)
+			return;
+		CollageEvent evt = new CollageEvent(this, type, first, count, bounds);
+		for (CollageListener listener : listeners)
+			listener.collageChanged(evt);
+	}
+	
+	/**
+	 * Report the number of items, and an estimate of the memory that they
+	 * use, to RenderMetrics, as estimated by estimateBytes().
+	 */
+	private void updateModelSize() {
+		int count = theString == null ? 0 : theString.size();
+		RenderMetrics.getShared().setModelSize(count, estimateBytes(theString));
+	}
+	
+	/**
+	 * This method must be called when properties of an item that is
+	 * already in the drawing area are changed, so that the item's entry
+	 * in the spatial index and the canvas image are kept up to date.  The
+	 * old and new areas of the item are redrawn.  Since frames are drawn
+	 * on another thread, a frame that is being drawn while the item is
+	 * changed can show it partly changed, until the redrawn frame replaces
+	 * it; the panel's own commands avoid this by changing a copy of the
+	 * item, as moveItem() does.
+	 * @param i the position of the item in the list of items.
+	 */
+	public void itemChanged(int i) {
+		Rectangle oldBounds = index.getBounds(i);
+		Rectangle newBounds = canvas.itemBounds(itemAt(i));
+		index.update(i, newBounds);
+		if (oldBounds != null)
+			canvas.redrawArea(oldBounds);
+		canvas.redrawArea(newBounds);
+		Rectangle bounds = new Rectangle(newBounds);
+		if (oldBounds != null)
+			bounds.add(oldBounds);
+		fireCollageChanged(CollageEvent.Type.CHANGED, i, 1, bounds);
+	}
+	
+	/**
+	 * Returns a new, empty list for storing items.  It is a PackedItemList
+	 * if the textcollage.packedStore property is true.
+	 */
+	private List<DrawTextItem> newItemList() {
+		if (PACKED_STORE)
+			return new PackedItemList();
+		else
+			return new ArrayList<DrawTextItem>();
+	}
+	
+	/**
+	 * Set the list that holds the items.  The list can be null.
+	 */
+	private void setItemList(List<DrawTextItem> items) {
+		theString = items;
+		if (items instanceof PackedItemList)
+			cursor = ((PackedItemList)items).cursor();
+		else
+			cursor = null;
+	}
+	
+	/**
+	 * Returns the item at position i in the list.  For a PackedItemList,
+	 * this is a shared view that is only valid until the next call.
+	 */
+	private DrawTextItem itemAt(int i) {
+		if (cursor != null)
+			return cursor.moveTo(i);
+		else
+			return theString.get(i);
+	}
+	
+	/**
+	 * Reseed the random number generator that is used for random positions
+	 * and styles, so that the same items are generated every time.  This
+	 * is used by RenderBenchmark and by the "Set Random Seed..." command.
+	 */
+	void setRandomSeed(long seed) {
+		generator.setSeed(seed);
+	}
+	
+	/**
+	 * Draw the whole drawing area from the list of items, the same way that
+	 * the canvas's renderer draws a full frame, and copy it to a graphics
+	 * context.  The canvas is first given the specified size.  This is used
+	 * by RenderBenchmark to time a full repaint without a window, so the
+	 * frame is drawn on the calling thread.  Nothing else should change
+	 * the collage while it runs.
+	 */
+	void paintCanvas(Graphics g, int width, int height) {
+		canvas.setSize(width, height);
+		canvas.paintNow(g);
 	}
 	
 	/*
 	 * Here, I have done 2 implementation to make this program cooler.
 	 * First is generating random style of the font style which includes different font families, font type (like bold, italic and both),
 	 * font size, the scale of the font tag, and the generating different colors for the tag background.
-	 * 
+	 * The choices are now made by a CollageGenerator, from its palettes of fonts and colors.
 	 */
 	public void randomStyle(DrawTextItem s) {
-		String[] fontFamilies = {"Monospace", "Helvetica", "TimesRoman", "Courier", "Serif", "Sans_Serif"}; 
-		int fontType = new Random().nextInt(fontFamilies.length); 
-		int fontSize = new Random().nextInt(15); 
-		if (fontSize <= 6)
-			fontSize = 7;
-		int fontStyle;
-		if (Math.random() > 0.25)
-			fontStyle = Font.ITALIC;
-		else if (Math.random() > 0.5)
-			fontStyle = Font.BOLD;
-		else
-			fontStyle = Font.ITALIC + Font.BOLD;
-		s.setFont( new Font(fontFamilies[fontType], fontStyle, fontSize )); 
-		int angle = new Random().nextInt(359);
-		s.setRotationAngle(angle);
-		int scale = new Random().nextInt(5);
-		if (scale == 0)
-			scale = 1; 
-		s.setMagnification(scale);
-		if (Math.random() < 0.5)
-			s.setBorder(true); 
-		else
-			s.setBorder(false);
-		s.setTextTransparency(0.3);
-		int r = new Random().nextInt(255);
-		int g = new Random().nextInt(255);
-		int b = new Random().nextInt(255);
-		s.setBackground(new Color(r,g,b));
-		s.setBackgroundTransparency(Math.random() * 0.90 + 0.10);
+		generator.randomStyle(s);
 	}
 	
 	/**
@@ -219,6 +1171,14 @@ public class DrawTextPanel extends JPanel  {
 			saveItem.addActionListener(menuHandler);
 			fileMenu.add(saveItem);
 			
+			JMenuItem saveBinaryItem = new JMenuItem("Save Binary...");
+			saveBinaryItem.addActionListener(menuHandler);
+			fileMenu.add(saveBinaryItem);
+			
+			JMenuItem saveTiledItem = new JMenuItem("Save Tiled...");
+			saveTiledItem.addActionListener(menuHandler);
+			fileMenu.add(saveTiledItem);
+			
 			JMenuItem openItem = new JMenuItem("Open...");
 			openItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "O"));
 			openItem.addActionListener(menuHandler);
@@ -231,16 +1191,40 @@ public class DrawTextPanel extends JPanel  {
 			saveImageItem.addActionListener(menuHandler);
 			fileMenu.add(saveImageItem);
 			
+			JMenuItem saveVectorItem = new JMenuItem("Save Vector...");
+			saveVectorItem.addActionListener(menuHandler);
+			fileMenu.add(saveVectorItem);
+			
 			JMenu editMenu = new JMenu("Edit");
 			menuBar.add(editMenu);
 			undoMenuItem.addActionListener(menuHandler); 
 			undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "Z"));
 			editMenu.add(undoMenuItem);
+			redoMenuItem.addActionListener(menuHandler); 
+			redoMenuItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "Y"));
+			editMenu.add(redoMenuItem);
 			editMenu.addSeparator();
+			removeMenuItem.addActionListener(menuHandler); 
+			editMenu.add(removeMenuItem);
 			JMenuItem clearItem = new JMenuItem("Clear");
 			clearItem.addActionListener(menuHandler);
 			editMenu.add(clearItem);
 			
+			JMenu viewMenu = new JMenu("View");
+			menuBar.add(viewMenu);
+			JMenuItem zoomInItem = new JMenuItem("Zoom In");
+			zoomInItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "EQUALS"));
+			zoomInItem.addActionListener(menuHandler);
+			viewMenu.add(zoomInItem);
+			JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+			zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "MINUS"));
+			zoomOutItem.addActionListener(menuHandler);
+			viewMenu.add(zoomOutItem);
+			JMenuItem actualSizeItem = new JMenuItem("Actual Size");
+			actualSizeItem.setAccelerator(KeyStroke.getKeyStroke(commandKey + "0"));
+			actualSizeItem.addActionListener(menuHandler);
+			viewMenu.add(actualSizeItem);
+			
 			JMenu optionsMenu = new JMenu("Options");
 			menuBar.add(optionsMenu);
 			JMenuItem colorItem = new JMenuItem("Set Text Color...");
@@ -250,6 +1234,19 @@ public class DrawTextPanel extends JPanel  {
 			JMenuItem bgColorItem = new JMenuItem("Set Background Color...");
 			bgColorItem.addActionListener(menuHandler);
 			optionsMenu.add(bgColorItem);
+			JMenuItem seedItem = new JMenuItem("Set Random Seed...");
+			seedItem.addActionListener(menuHandler);
+			optionsMenu.add(seedItem);
+			optionsMenu.addSeparator();
+			JCheckBoxMenuItem placeItem = new JCheckBoxMenuItem("Place Without Overlap");
+			placeItem.addActionListener(menuHandler);
+			optionsMenu.add(placeItem);
+			JCheckBoxMenuItem cacheItem = new JCheckBoxMenuItem("Cache Item Images");
+			cacheItem.addActionListener(menuHandler);
+			optionsMenu.add(cacheItem);
+			JCheckBoxMenuItem metricsItem = new JCheckBoxMenuItem("Show Metrics");
+			metricsItem.addActionListener(menuHandler);
+			optionsMenu.add(metricsItem);
 			
 		}
 		return menuBar;
@@ -260,26 +1257,47 @@ public class DrawTextPanel extends JPanel  {
 	 * @param command the text of the menu command.
 	 */
 	private void doMenuCommand(String command) {
+		itemMover.cancel();  // a command in the middle of a drag, from the keyboard
+		if (!command.equals("Set Text Color...") && !command.equals("Cache Item Images") 
+				&& !command.equals("Place Without Overlap")
+				&& !command.equals("Show Metrics") && !command.startsWith("Zoom") 
+				&& !command.equals("Actual Size") && isLoading())
+			return;  // the items can't be used or changed until loading is done
 		if (command.equals("Save...")) { 
 			saveImageAsText();
 		}
+		else if (command.equals("Save Binary...")) { 
+			saveImageAsBinary();
+		}
+		else if (command.equals("Save Tiled...")) { 
+			saveImageAsTiled();
+		}
+		else if (command.equals("Save Vector...")) { 
+			saveImageAsVector();
+		}
 		else if (command.equals("Open...")) {
 			openTextFile();
-			canvas.repaint(); 
+		}
+		else if (command.equals("Undo")) {
+			if (history.canUndo())
+				history.undo();
+			updateUndoMenu();
+		}
+		else if (command.equals("Redo")) {
+			if (history.canRedo())
+				history.redo();
+			updateUndoMenu();
 		}
 		else if (command.equals("Clear")) {  // remove all strings
-			theString = null;   // Remove the ONLY string from the canvas.
-			undoMenuItem.setEnabled(false);
-			canvas.repaint();
+			List<DrawTextItem> oldItems = theString;
+			SpatialIndex oldIndex = index;
+			setCollage(null, new SpatialIndex(), canvas.getBackground(), CollageEvent.Type.CLEARED);
+			addEdit(new ReplaceEdit("Clear", oldItems, oldIndex, canvas.getBackground(), 
+					CollageEvent.Type.CLEARED));
 		}
 		else if (command.equals("Remove Item")) { // remove the most recently added string
-			// to apply undo in the program
-			if (theString.size() > 0) {
-				theString.remove(theString.size() - 1); 
-			}
-			if (theString.size() == 0)
-				undoMenuItem.setEnabled(false); 
-			canvas.repaint();
+			if (theString != null && theString.size() > 0)
+				addEdit(new ItemsEdit("Remove Item", removeLastItems(1)));
 		}
 		else if (command.equals("Set Text Color...")) {
 			Color c = JColorChooser.showDialog(this, "Select Text Color", currentTextColor);
@@ -289,131 +1307,633 @@ public class DrawTextPanel extends JPanel  {
 		else if (command.equals("Set Background Color...")) {
 			Color c = JColorChooser.showDialog(this, "Select Background Color", canvas.getBackground());
 			if (c != null) {
-				canvas.setBackground(c);
-				canvas.repaint();
+				Color old = canvas.getBackground();
+				setBackgroundColor(c);
+				addEdit(new BackgroundEdit(old, c));
+			}
+		}
+		else if (command.equals("Set Random Seed...")) {
+			String response = JOptionPane.showInputDialog(this, 
+					"Enter the seed for random items.  The same seed makes the same items\n" 
+					+ "when the same commands are repeated.", generator.getSeed());
+			if (response != null) {
+				try {
+					setRandomSeed(Long.parseLong(response.trim()));
+				}
+				catch (NumberFormatException e) {
+					JOptionPane.showMessageDialog(this, "\"" + response + "\" is not a whole number.");
+				}
 			}
 		}
+		else if (command.equals("Place Without Overlap")) {
+			placeWithoutOverlap = !placeWithoutOverlap;
+		}
+		else if (command.equals("Cache Item Images")) {
+			if (spriteCache == null)
+				spriteCache = new SpriteCache(SPRITE_CACHE_MB * 1024 * 1024);
+			else
+				spriteCache = null;  // the images are discarded along with the cache
+			RenderMetrics.getShared().setSpriteCache(spriteCache);
+			canvas.redrawAll();  // so that all the items are drawn the same way
+		}
+		else if (command.equals("Show Metrics")) {
+			canvas.showMetrics = !canvas.showMetrics;
+			RenderMetrics.getShared().setEnabled(canvas.showMetrics);
+			updateModelSize();
+			canvas.repaint();
+		}
+		else if (command.equals("Zoom In")) {
+			canvas.zoom(ZOOM_STEP, canvas.getWidth() / 2, canvas.getHeight() / 2);
+		}
+		else if (command.equals("Zoom Out")) {
+			canvas.zoom(1 / ZOOM_STEP, canvas.getWidth() / 2, canvas.getHeight() / 2);
+		}
+		else if (command.equals("Actual Size")) {
+			canvas.resetZoom();
+		}
 		else if (command.equals("Save Image...")) {  // save a PNG image of the drawing area
-			File imageFile = fileChooser.getOutputFile(this, "Select Image File Name", "textimage.png");
-			if (imageFile == null)
-				return;
-			try {
-				// Because the image is not available, I will make a new BufferedImage and
-				// draw the same data to the BufferedImage as is shown in the panel.
-				// A BufferedImage is an image that is stored in memory, not on the screen.
-				// There is a convenient method for writing a BufferedImage to a file.
-				BufferedImage image = new BufferedImage(canvas.getWidth(),canvas.getHeight(),
-						BufferedImage.TYPE_INT_RGB);
-				Graphics g = image.getGraphics();
-				g.setFont(canvas.getFont());
-				canvas.paintComponent(g);  // draws the canvas onto the BufferedImage, not the screen!
-				boolean ok = ImageIO.write(image, "PNG", imageFile); // write to the file
-				if (ok == false)
-					throw new Exception("PNG format not supported (this shouldn't happen!).");
+			saveImage();
+		}
+	}
+	
+	/**
+	 * Save a PNG image of the drawing area, showing the part of the collage
+	 * that is in view at the current zoom.  The user can make the image
+	 * larger than the drawing area by entering a scale factor, or the size
+	 * of the image in pixels, in which case the drawing area is scaled to
+	 * fit.  The image is rendered by a TiledRenderer, which uses all the
+	 * available processors and does not need memory for the whole image,
+	 * and it is saved in the background by an ImageSaver.
+	 */
+	private void saveImage() {
+		if (isSaving())
+			return;
+		String response = JOptionPane.showInputDialog(this, 
+				"Enter a scale factor for the image, such as 2,\n" 
+				+ "or the size of the image in pixels, such as 20000x15000.", "1");
+		if (response == null)
+			return;
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		double scale;
+		int imageWidth, imageHeight;
+		try {
+			String[] size = response.trim().toLowerCase().split("\\s*x\\s*");
+			if (size.length == 2) {
+				imageWidth = Integer.parseInt(size[0]);
+				imageHeight = Integer.parseInt(size[1]);
+				if (imageWidth <= 0 || imageHeight <= 0)
+					throw new NumberFormatException();
+				scale = TiledRenderer.scaleToFit(width, height, imageWidth, imageHeight);
 			}
-			catch (Exception e) {
-				JOptionPane.showMessageDialog(this, 
-						"Sorry, an error occurred while trying to save the image:\n" + e);
+			else {
+				scale = Double.parseDouble(response.trim());
+				if (!(scale > 0) || Double.isInfinite(scale))
+					throw new NumberFormatException();
+				imageWidth = (int)Math.ceil(width*scale);
+				imageHeight = (int)Math.ceil(height*scale);
 			}
 		}
+		catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, "\"" + response + "\" is not a scale factor or an image size.");
+			return;
+		}
+		File imageFile = fileChooser.getOutputFile(this, "Select Image File Name", "textimage.png");
+		if (imageFile == null)
+			return;
+		saver = new ImageSaver(imageFile, canvas.getScale() * scale, canvas.viewX, canvas.viewY, 
+				imageWidth, imageHeight);
+		saver.execute();
 	}
 	
 	/*
 	 * Save the progress as a text file.
 	 */
 	private void saveImageAsText() {
+		if (isSaving())
+			return;
 		File textFile = fileChooser.getOutputFile(this, "Select Text File Name", "textImage.txt"); 
 		if (textFile == null)
 			return;
-		try {
-			PrintWriter write = new PrintWriter(textFile);
-			write.println("New textImage");
-			write.println(canvas.getBackground().getRed());
-			write.println(canvas.getBackground().getGreen());
-			write.println(canvas.getBackground().getBlue());
-			if (theString != null)
-				for (DrawTextItem s: theString) { 
-					write.println("theString:"); 
-					write.println(s.getString()); 
-					write.println(s.getX());
-					write.println(s.getY());
-					write.println(s.getFont().getName());
-					write.println(s.getFont().getStyle());
-					write.println(s.getFont().getSize());
-					write.println(s.getTextColor().getRed()); 
-					write.println(s.getTextColor().getGreen());
-					write.println(s.getTextColor().getBlue());
-					write.println(s.getTextTransparency());
-					if (s.getBackground() == null) {
-						write.println(-1);
-						write.println(-1);
-						write.println(-1);
-					} else {
-						write.println(s.getBackground().getRed()); 
-						write.println(s.getBackground().getGreen());
-						write.println(s.getBackground().getBlue());
-					}
-					write.println(s.getBackgroundTransparency());
-					write.println(s.getBorder())
-					write.println(s.getMagnification());
-					write.println(s.getRotationAngle());
-				}
-			write.close();
-
-		} catch (Exception e) {
-			JOptionPane.showMessageDialog(this, 
-					"Sorry, an error occurred while trying to save this image progress.\n" + "Error message: " + e);
-		}
+		saver = new CollageSaver(textFile, 1) {
+			void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+				CollageIO.writeText(file, background, items);
+			}
+		};
+		saver.execute();
+	}
+	
+	/*
+	 * Save the progress as a compressed binary file, which is much smaller
+	 * and faster to load than a text file.
+	 */
+	private void saveImageAsBinary() {
+		if (isSaving())
+			return;
+		File binaryFile = fileChooser.getOutputFile(this, "Select Binary File Name", "textImage.tcb"); 
+		if (binaryFile == null)
+			return;
+		saver = new CollageSaver(binaryFile, 2) {  // the items are read once to find the strings and fonts
+			void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+				BinaryCollageIO.write(file, background, items, true);
+			}
+		};
+		saver.execute();
 	}
 	
 	/*
-	 * Open the save progress using a text file
+	 * Save the progress in the tiled format, which can be opened without
+	 * loading it, so that even a collage of many millions of items opens
+	 * at once.
+	 */
+	private void saveImageAsTiled() {
+		if (isSaving())
+			return;
+		File tiledFile = fileChooser.getOutputFile(this, "Select Tiled File Name", "textImage.tct"); 
+		if (tiledFile == null)
+			return;
+		saver = new CollageSaver(tiledFile, 2) {  // the items are read once to measure them
+			void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+				TiledCollageFile.write(file, background, items);
+			}
+		};
+		saver.execute();
+	}
+	
+	/*
+	 * Save the drawing area as an SVG document, in which the items are
+	 * text and rectangles instead of pixels, so it can be printed or
+	 * displayed at any size.  The document shows the part of the collage
+	 * that is in view, at the canvas's scale, as Save Image does.
+	 */
+	private void saveImageAsVector() {
+		if (isSaving())
+			return;
+		File svgFile = fileChooser.getOutputFile(this, "Select SVG File Name", "textImage.svg"); 
+		if (svgFile == null)
+			return;
+		final int width = canvas.getWidth(), height = canvas.getHeight();
+		final double scale = canvas.getScale(), x = canvas.viewX, y = canvas.viewY;
+		saver = new CollageSaver(svgFile, 1) {
+			void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+				SvgExporter.write(file, background, items, scale, x, y, width, height);
+			}
+		};
+		saver.execute();
+	}
+	
+	/*
+	 * Open the save progress using a text or binary file.  The file is
+	 * read by a CollageLoader in a background thread, and the items are
+	 * shown as they are read.  A file in the tiled format is not read;
+	 * see openTiledFile().
 	 */
 	private void openTextFile() {
 		File openTextFile = fileChooser.getInputFile(this, "Open Saved Text File"); 
 		if (openTextFile == null)
 			return;
 		
+		if (!CollageIO.isCollage(openTextFile)) {
+			JOptionPane.showMessageDialog(this, "Sorry, This is not an valid file. \nPlease try again."); 
+			return;
+		}
+		if (TiledCollageFile.isTiledCollage(openTextFile)) {
+			openTiledFile(openTextFile);
+			return;
+		}
+		CollageReader reader;
 		try {
-			Scanner read = new Scanner(openTextFile); 
-			if (!read.nextLine().equals("New textImage")) {
-				JOptionPane.showMessageDialog(this, "Sorry, This is not an valid file. \nPlease try again."); 
-				return;
-			}
-			
-			Color savedBg = new Color(read.nextInt(),read.nextInt(),read.nextInt());
-			ArrayList<DrawTextItem> newStrings = new ArrayList<DrawTextItem>(); 
-			DrawTextItem newText;
-			read.nextLine();
-			while (read.hasNext() && read.nextLine().equals("theString:")) { 
-				newText = new DrawTextItem(read.nextLine(), read.nextInt(), read.nextInt());
-				read.nextLine();
-				newText.setFont(new Font(read.nextLine(), read.nextInt(), read.nextInt()));
-				newText.setTextColor(new Color(read.nextInt(), read.nextInt(), read.nextInt()));
-				newText.setTextTransparency(read.nextDouble());
-				
-				int r = read.nextInt(); 
-				int g = read.nextInt();
-				int b = read.nextInt();
-				if (r == -1)
-					newText.setBackground(null); 
-				
-				else
-					newText.setBackground(new Color(r, g, b));
-				
-				newText.setBackgroundTransparency(read.nextDouble()); 
-				newText.setBorder(read.nextBoolean());
-				newText.setMagnification(read.nextDouble());
-				newText.setRotationAngle(read.nextDouble());
-				read.nextLine();
-				newStrings.add(newText); 
-			}
-			
-			canvas.setBackground(savedBg);
-			theString = newStrings;
+			reader = CollageReader.open(openTextFile);  // text or binary
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(this, 
 					"Sorry, an error occurred while trying to load the save progress.\n" + "Error message: " + e);
+			return;
+		}
+		loader = new CollageLoader(reader);
+		loader.execute();
+	}
+	
+	/**
+	 * Show a collage from a file in the tiled format without loading it.
+	 * The file is mapped into memory, and the canvas reads the items that
+	 * come into view from it through a TiledItemList and a TiledIndex, so
+	 * this takes the same short time for any size of file.  Like opening
+	 * any other file, it is an edit that can be undone.
+	 */
+	private void openTiledFile(File file) {
+		TiledCollageFile tiled;
+		try {
+			tiled = TiledCollageFile.open(file);
+		} catch (Exception e) {
+			JOptionPane.showMessageDialog(this, 
+					"Sorry, an error occurred while trying to load the save progress.\n" + "Error message: " + e);
+			return;
+		}
+		List<DrawTextItem> oldItems = theString;
+		SpatialIndex oldIndex = index;
+		Color oldBackground = canvas.getBackground();
+		setCollage(new TiledItemList(tiled), new TiledIndex(tiled), tiled.getBackground(), 
+				CollageEvent.Type.LOADED);
+		addEdit(new ReplaceEdit("Open", oldItems, oldIndex, oldBackground, CollageEvent.Type.LOADED));
+	}
+	
+	/**
+	 * Returns true if a file is being loaded.  The user can't change the
+	 * items while that is happening, so a beep is sounded as well.
+	 */
+	private boolean isLoading() {
+		if (loader == null)
+			return false;
+		Toolkit.getDefaultToolkit().beep();
+		return true;
+	}
+	
+	/**
+	 * Returns true if a file is being saved.  Only one file is saved at a
+	 * time, so a beep is sounded as well.
+	 */
+	private boolean isSaving() {
+		if (saver == null)
+			return false;
+		Toolkit.getDefaultToolkit().beep();
+		return true;
+	}
+	
+	/**
+	 * Returns a copy of the list of items that does not change when the
+	 * collage changes, for a CollageSaver to save in the background.  The
+	 * arrays of a PackedItemList are copied.  For other lists only the list
+	 * is copied, and the items are shared with it, which is safe because
+	 * moveItem() changes a copy of an item and puts the copy in the list
+	 * instead of changing the item.
+	 */
+	private List<DrawTextItem> snapshotItems() {
+		if (theString == null)
+			return Collections.emptyList();
+		if (theString instanceof PackedItemList) {
+			int[] all = new int[theString.size()];
+			for (int i = 0; i < all.length; i++)
+				all[i] = i;
+			return ((PackedItemList)theString).copyOf(all);
+		}
+		if (theString instanceof TiledItemList)
+			return ((TiledItemList)theString).snapshot(CollageSaver.CACHE_ITEMS);
+		return new ArrayList<DrawTextItem>(theString);
+	}
+	
+	/**
+	 * Returns a copy of the collage that does not change when the collage
+	 * changes, made the same way as the copy that a save writes (see
+	 * snapshotItems()).  The autosave journal uses it to write the whole
+	 * collage in the background.
+	 */
+	Collage getSnapshot() {
+		return new Collage(canvas.getBackground(), snapshotItems());
+	}
+	
+	/**
+	 * A CollageLoader reads the items from a CollageReader in a background
+	 * thread.  The items are passed to the event dispatch thread in chunks,
+	 * every CHUNK_SIZE items or CHUNK_MILLIS milliseconds, whichever comes
+	 * first, and are added to the canvas as they arrive so that the collage
+	 * fills in while it loads.  A ProgressMonitor shows how much of the file
+	 * has been read and lets the user cancel the load.  If the load is
+	 * canceled or fails, the collage that was showing before is restored.
+	 * <p>Chunks are handed over through a queue rather than through
+	 * publish(), because SwingWorker can call done() before the last
+	 * chunks have been processed; done() empties the queue first.
+	 */
+	private class CollageLoader extends SwingWorker<Void,Void> {
+		private static final int CHUNK_SIZE = 2000;
+		private static final long CHUNK_MILLIS = 100;
+		private final CollageReader reader;
+		private final long fileLength;
+		private final ConcurrentLinkedQueue<List<DrawTextItem>> chunks = 
+				new ConcurrentLinkedQueue<List<DrawTextItem>>();
+		private final ProgressMonitor monitor;
+		private final List<DrawTextItem> oldItems;  // restored if the load does not finish
+		private final SpatialIndex oldIndex;
+		private final Color oldBackground;
+		
+		CollageLoader(CollageReader reader) {
+			this.reader = reader;
+			fileLength = Math.max(1, reader.getFile().length());
+			oldItems = theString;
+			oldIndex = index;
+			oldBackground = canvas.getBackground();
+			setItemList(newItemList());
+			index = new SpatialIndex();
+			canvas.setBackground(reader.getBackground());
+			updateUndoMenu();
+			monitor = new ProgressMonitor(DrawTextPanel.this, "Loading " + reader.getFile().getName(), 
+					"", 0, 100);
+		}
+		
+		protected Void doInBackground() throws Exception {
+			try {
+				ArrayList<DrawTextItem> chunk = new ArrayList<DrawTextItem>();
+				long chunkStart = System.currentTimeMillis();
+				DrawTextItem item;
+				while (!isCancelled() && (item = reader.next()) != null) {
+					chunk.add(item);
+					if (chunk.size() == CHUNK_SIZE || System.currentTimeMillis() - chunkStart >= CHUNK_MILLIS) {
+						chunks.add(chunk);
+						publish();
+						chunk = new ArrayList<DrawTextItem>();
+						chunkStart = System.currentTimeMillis();
+					}
+				}
+				if (!chunk.isEmpty())
+					chunks.add(chunk);
+				return null;
+			}
+			finally {
+				reader.close();
+			}
+		}
+		
+		protected void process(List<Void> ignored) {
+			if (isCancelled())
+				return;  // done() has already restored the old collage
+			addChunks();
+			if (monitor.isCanceled())
+				cancel(false);
+		}
+		
+		protected void done() {
+			loader = null;
+			monitor.close();
+			if (isCancelled()) {
+				restore();
+				return;
+			}
+			try {
+				get();
+			}
+			catch (Exception e) {
+				restore();
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				JOptionPane.showMessageDialog(DrawTextPanel.this, 
+						"Sorry, an error occurred while trying to load the save progress.\n" 
+						+ "Error message: " + cause.getMessage());
+				return;
+			}
+			addChunks();
+			fireCollageChanged(CollageEvent.Type.LOADED, 0, theString.size(), null);
+			addEdit(new ReplaceEdit("Open", oldItems, oldIndex, oldBackground, CollageEvent.Type.LOADED));
+		}
+		
+		/**
+		 * Add the chunks that are waiting in the queue to the canvas, and
+		 * update the progress monitor.
+		 */
+		private void addChunks() {
+			List<DrawTextItem> chunk;
+			while (!isCancelled() && (chunk = chunks.poll()) != null)
+				appendItems(chunk);
+			int count = theString.size();
+			int total = reader.getItemCount();
+			if (total > 0) {
+				monitor.setNote("Loaded " + count + " of " + total + " items");
+				monitor.setProgress((int)(100L * count / total));
+			}
+			else {
+				monitor.setNote("Loaded " + count + " items");
+				monitor.setProgress((int)Math.min(99, 100 * reader.getBytesRead() / fileLength));
+			}
+		}
+		
+		/**
+		 * Put back the collage that was showing before the load started.
+		 */
+		private void restore() {
+			chunks.clear();
+			setItemList(oldItems);
+			index = oldIndex;
+			canvas.setBackground(oldBackground);
+			updateUndoMenu();
+		}
+	}
+	
+	/**
+	 * A CollageSaver writes a collage file in a background thread, so that
+	 * the user can go on working while a large collage is saved.  The items
+	 * are saved from a snapshot that is taken when the save starts (see
+	 * snapshotItems()), so changes that are made during the save are not
+	 * in the file.  The file is written under a temporary name in the same
+	 * directory, and only when it is complete is it renamed to the name
+	 * that the user chose, replacing the old file in one step.  If the save
+	 * fails or is canceled, or the program stops in the middle of it, the
+	 * file that was there before is left as it was.  A ProgressMonitor
+	 * shows how far the save has got and how fast it is going, and lets
+	 * the user cancel it.
+	 * <p>A subclass says how the file is written.  The writer gets the
+	 * items from a list that counts them; passes is the number of times
+	 * that the writer reads the whole list.  A subclass that writes
+	 * something other than a collage file, such as ImageSaver, can report
+	 * its progress in its own terms instead.
+	 */
+	private abstract class CollageSaver extends SwingWorker<Void,Void> {
+		private static final int CACHE_ITEMS = 4096;  // the cache of a snapshot of a TiledItemList
+		private static final int PROGRESS_ITEMS = 10000;  // items between updates of the progress monitor
+		private final File target;
+		private final int passes;
+		private final Color background;
+		private final List<DrawTextItem> items;
+		private final ProgressMonitor monitor;
+		private final long startTime = System.nanoTime();
+		private volatile long itemsRead;  // the number of items the writer has got, in all passes
+		private volatile File tempFile;  // the file being written, once it has been created
+		
+		CollageSaver(File target, int passes) {
+			this.target = target.getAbsoluteFile();
+			this.passes = passes;
+			background = canvas.getBackground();
+			items = snapshotItems();
+			monitor = new ProgressMonitor(DrawTextPanel.this, "Saving " + target.getName(), 
+					"", 0, 100);
+		}
+		
+		/**
+		 * Write a collage to a file.  This is called in the background thread.
+		 */
+		abstract void write(File file, Color background, List<DrawTextItem> items) throws IOException;
+		
+		protected Void doInBackground() throws Exception {
+			File temp = new File(target.getParentFile(), 
+					"." + target.getName() + "." + Long.toHexString(System.nanoTime()) + ".saving");
+			Files.createFile(temp.toPath());
+			boolean replaced = false;
+			try {
+				tempFile = temp;
+				copyPermissions(target, temp);
+				write(temp, background, new CountingList());
+				try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+					channel.force(true);  // so that the data is on the disk before the file is renamed
+				}
+				if (!isCancelled()) {
+					replace(temp, target);
+					replaced = true;
+				}
+				return null;
+			}
+			finally {
+				if (!replaced)
+					temp.delete();
+			}
+		}
+		
+		protected void process(List<Void> ignored) {
+			if (isCancelled())
+				return;  // done() has already closed the monitor
+			showProgress();
+			if (monitor.isCanceled())
+				cancel(false);
+		}
+		
+		protected void done() {
+			saver = null;
+			monitor.close();
+			if (isCancelled())
+				return;  // doInBackground() deletes the temporary file
+			try {
+				get();
+			}
+			catch (Exception e) {
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				JOptionPane.showMessageDialog(DrawTextPanel.this, 
+						"Sorry, an error occurred while trying to save this image progress.\n" 
+						+ "Error message: " + cause 
+						+ (target.exists() ? "\nThe file " + target.getName() + " was not changed." : ""));
+			}
+		}
+		
+		/**
+		 * Show the number of items that have been saved, and the number of
+		 * items and megabytes written per second, in the progress monitor.
+		 */
+		private void showProgress() {
+			double seconds = Math.max(0.001, (System.nanoTime() - startTime) / 1e9);
+			File temp = tempFile;
+			double megabytes = temp == null ? 0 : temp.length() / 1e6;
+			monitor.setNote(progressNote(seconds, megabytes));
+			monitor.setProgress((int)Math.min(99, 100 * fractionDone()));
+		}
+		
+		/**
+		 * Returns the part of the save that has been done, from 0 to 1.
+		 * This is called on the event dispatch thread.
+		 */
+		double fractionDone() {
+			return (double)itemsRead / Math.max(1, (long)items.size() * passes);
+		}
+		
+		/**
+		 * Returns the note that the progress monitor shows, given the time
+		 * since the save started and the size of the file so far.  This is
+		 * called on the event dispatch thread.
+		 */
+		String progressNote(double seconds, double megabytes) {
+			long read = itemsRead;
+			return String.format("Saved %,d of %,d items (%,.0f items/s, %.1f MB/s)", 
+					read / passes, items.size(), read / passes / seconds, megabytes / seconds);
+		}
+		
+		/**
+		 * Give a new file the same permissions as the file it will replace,
+		 * if that file exists and the file system has POSIX permissions.
+		 */
+		private void copyPermissions(File from, File to) {
+			if (!from.exists())
+				return;
+			try {
+				Files.setPosixFilePermissions(to.toPath(), Files.getPosixFilePermissions(from.toPath()));
+			}
+			catch (UnsupportedOperationException | IOException e) {
+				// The new file keeps the default permissions.
+			}
+		}
+		
+		/**
+		 * Rename the temporary file to the name of the target, replacing the
+		 * target if it exists.  If the file system can't do that in one step,
+		 * an ordinary rename is used, which still happens only after the new
+		 * file is complete.
+		 */
+		private void replace(File temp, File target) throws IOException {
+			try {
+				Files.move(temp.toPath(), target.toPath(), 
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		
+		/**
+		 * The snapshot, as the writer sees it.  The items that the writer
+		 * gets are counted, the progress monitor is updated every
+		 * PROGRESS_ITEMS items, and the save stops there if it has been
+		 * canceled.
+		 */
+		private class CountingList extends AbstractList<DrawTextItem> implements RandomAccess {
+			public int size() {
+				return items.size();
+			}
+			public DrawTextItem get(int index) {
+				long count = ++itemsRead;  // only the background thread changes itemsRead
+				if (count % PROGRESS_ITEMS == 0) {
+					if (isCancelled())
+						throw new CancellationException("The save was canceled.");
+					publish();
+				}
+				return items.get(index);
+			}
+		}
+	}
+	
+	/**
+	 * An ImageSaver saves a PNG image of an area of the collage, rendered
+	 * by a TiledRenderer, in the background.  The point (x,y) of the
+	 * collage is at the top left corner of the image.  The progress monitor shows
+	 * how many rows of the image have been written.
+	 */
+	private class ImageSaver extends CollageSaver {
+		private final double scale;
+		private final double x, y;
+		private final int imageWidth, imageHeight;
+		private volatile int rowsWritten;
+		
+		ImageSaver(File target, double scale, double x, double y, int imageWidth, int imageHeight) {
+			super(target, 1);
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+			this.imageWidth = imageWidth;
+			this.imageHeight = imageHeight;
+		}
+		
+		void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+			TiledRenderer renderer = new TiledRenderer();
+			renderer.setProgressListener(new TiledRenderer.ProgressListener() {
+				public void rowsWritten(int rows, int height) {
+					rowsWritten = rows;
+					if (isCancelled())
+						throw new CancellationException("The save was canceled.");
+					publish();
+				}
+			});
+			renderer.writePNG(new Collage(background, items), scale, x, y, imageWidth, imageHeight, file);
+		}
+		
+		double fractionDone() {
+			return (double)rowsWritten / imageHeight;
+		}
+		
+		String progressNote(double seconds, double megabytes) {
+			int rows = rowsWritten;
+			return String.format("Saved %,d of %,d rows (%.1f megapixels/s, %.1f MB/s)", 
+					rows, imageHeight, (double)rows * imageWidth / 1e6 / seconds, megabytes / seconds);
 		}
 	}
 }
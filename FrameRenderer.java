@@ -0,0 +1,507 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * A FrameRenderer draws the frames that the canvas of a DrawTextPanel
+ * shows, on a thread of its own, so that the event-dispatch thread only
+ * has to copy a finished frame to the screen.  There are two frame images:
+ * the front one is the last finished frame, which is what the canvas
+ * paints, and the back one is where the next frame is drawn.  When a frame
+ * is done, the two are swapped and the canvas is repainted.
+ * <p>Changes to the collage or the view are reported with redraw(),
+ * itemsAppended() and refresh(), which must be called on the event-dispatch
+ * thread.  They do no drawing; they just record what needs to be drawn and
+ * wake up the render thread.  Requests that arrive while a frame is being
+ * drawn are merged, and all go into the next frame, so a burst of changes
+ * costs at most one more frame however many there are.  At the start of a
+ * frame, the render thread takes the pending requests together with a
+ * Scene from the canvas on the event-dispatch thread: an immutable snapshot
+ * of the view and of the items in view, which is all that the frame is
+ * drawn from.
+ * <p>Each frame starts as a copy of the previous one, moved by the
+ * distance that the view was panned, and only the areas that were reported
+ * and the strips that came into view are drawn.  New items that are only
+ * added are drawn on top, as the canvas used to do.  When the size or the
+ * scale of the view has changed, or everything was reported, the whole
+ * frame is drawn.
+ */
+class FrameRenderer {
+
+	/**
+	 * Items whose bounds would be narrower or shorter than this many pixels
+	 * on the screen are drawn as boxes instead of text.  It can be set
+	 * with the system property textcollage.lodPixels; 0 turns it off.
+	 */
+	static final int LOD_PIXELS = Integer.getInteger("textcollage.lodPixels", 12);
+
+	/**
+	 * The source of the scenes that frames are drawn from.
+	 */
+	interface SceneSource {
+		/**
+		 * Returns a snapshot of what is in view now.  This is called on
+		 * the event-dispatch thread.
+		 */
+		Scene snapshot();
+	}
+
+	/**
+	 * An immutable snapshot of a view of a collage: the size, scale and
+	 * position of the view, the default colors and font, and the items
+	 * that are in view, with their bounds, in drawing order.  Items of a
+	 * PackedItemList are copied into a list of their own, since its items
+	 * are views of the list's arrays; other items are shared with the
+	 * collage, which never changes an item in place: DrawTextPanel
+	 * replaces an item with a changed copy instead.
+	 */
+	static final class Scene {
+		final int width, height;  // the size of the view in pixels
+		final double scale;  // pixels per unit of the collage's coordinates
+		final double viewX, viewY;  // the point of the collage at the top left corner
+		private final Color background, foreground;
+		private final Font font;
+		private final int[] positions;  // the positions of the items in the collage's list, in increasing order
+		private final Rectangle[] bounds;  // the bounds of the items, which are not modified
+		private final List<DrawTextItem> items;  // the items, in the same order as positions
+		private final int totalItems;  // the number of items in the collage, for RenderMetrics
+		private final SpriteCache spriteCache;  // can be null
+
+		/**
+		 * Create a scene.  The arrays and the list become part of the
+		 * scene, and must not be modified afterwards.
+		 */
+		Scene(int width, int height, double scale, double viewX, double viewY,
+				Color background, Color foreground, Font font,
+				int[] positions, Rectangle[] bounds, List<DrawTextItem> items,
+				int totalItems, SpriteCache spriteCache) {
+			this.width = width;
+			this.height = height;
+			this.scale = scale;
+			this.viewX = viewX;
+			this.viewY = viewY;
+			this.background = background;
+			this.foreground = foreground;
+			this.font = font;
+			this.positions = positions;
+			this.bounds = bounds;
+			this.items = items;
+			this.totalItems = totalItems;
+			this.spriteCache = spriteCache;
+		}
+
+		/**
+		 * Returns the area of the view that shows an area of the collage,
+		 * rounded outwards to whole pixels.
+		 */
+		Rectangle toCanvas(Rectangle r) {
+			return toCanvas(r, scale, viewX, viewY);
+		}
+
+		/**
+		 * Returns the area of the canvas that shows an area of the collage,
+		 * rounded outwards to whole pixels, for a view with a scale and a
+		 * point (viewX,viewY) at its top left corner.
+		 */
+		static Rectangle toCanvas(Rectangle r, double scale, double viewX, double viewY) {
+			int x1 = (int)Math.floor((r.x - viewX) * scale);
+			int y1 = (int)Math.floor((r.y - viewY) * scale);
+			int x2 = (int)Math.ceil((r.x + r.width - viewX) * scale);
+			int y2 = (int)Math.ceil((r.y + r.height - viewY) * scale);
+			return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+		}
+
+		/**
+		 * Returns the area of the collage that is shown in an area of the
+		 * canvas, rounded outwards to whole units, for a view with a scale
+		 * and a point (viewX,viewY) at its top left corner.
+		 */
+		static Rectangle toCollage(Rectangle r, double scale, double viewX, double viewY) {
+			int x1 = (int)Math.floor(viewX + r.x / scale);
+			int y1 = (int)Math.floor(viewY + r.y / scale);
+			int x2 = (int)Math.ceil(viewX + (r.x + r.width) / scale);
+			int y2 = (int)Math.ceil(viewY + (r.y + r.height) / scale);
+			return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+		}
+
+		/**
+		 * Draw the background and the items that are in an area of the
+		 * view into an image.  If area is null, the whole view is drawn.
+		 * Items that are not drawn are counted as culled in RenderMetrics
+		 * only when the whole view is drawn, so that each frame counts
+		 * them once.
+		 * @param area the area to draw, in the view's coordinates
+		 */
+		void draw(BufferedImage image, Rectangle area) {
+			boolean whole = area == null;
+			if (whole)
+				area = new Rectangle(0, 0, width, height);
+			Graphics g = image.getGraphics();
+			g.setColor(background);
+			g.fillRect(area.x, area.y, area.width, area.height);
+			g.dispose();
+			Rectangle collageArea = toCollage(area, scale, viewX, viewY);
+			Graphics2D g2 = createGraphics(image, area);
+			ItemPainter painter = new ItemPainter(g2);
+			PackedItemList.Item cursor = cursor();
+			int drawn = 0;
+			for (int j = 0; j < positions.length; j++) {
+				if (bounds[j].intersects(collageArea)) {
+					drawItem(g2, painter, cursor, j);
+					drawn++;
+				}
+			}
+			g2.dispose();
+			RenderMetrics.getShared().itemsDrawn(drawn, whole ? totalItems - drawn : 0);
+		}
+
+		/**
+		 * Draw the items at positions from first on in the collage's list
+		 * on top of what is in an image, without drawing the background.
+		 */
+		void drawFrom(BufferedImage image, int first) {
+			int start = Arrays.binarySearch(positions, first);
+			if (start < 0)
+				start = -start - 1;
+			Graphics2D g2 = createGraphics(image, new Rectangle(0, 0, width, height));
+			ItemPainter painter = new ItemPainter(g2);
+			PackedItemList.Item cursor = cursor();
+			for (int j = start; j < positions.length; j++)
+				drawItem(g2, painter, cursor, j);
+			g2.dispose();
+			RenderMetrics.getShared().itemsDrawn(positions.length - start, 0);
+		}
+
+		/**
+		 * Returns a graphics context for drawing in an image, clipped to an
+		 * area of the view and transformed to the collage's coordinates.
+		 */
+		private Graphics2D createGraphics(BufferedImage image, Rectangle clip) {
+			Graphics2D g2 = image.createGraphics();
+			g2.clip(clip);
+			g2.scale(scale, scale);
+			g2.translate(-viewX, -viewY);
+			g2.setFont(font);
+			g2.setColor(foreground);
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					RenderingHints.VALUE_ANTIALIAS_ON);
+			return g2;
+		}
+
+		/**
+		 * Returns a cursor for reading the items, if they are in a
+		 * PackedItemList, or null.
+		 */
+		private PackedItemList.Item cursor() {
+			return items instanceof PackedItemList ? ((PackedItemList)items).cursor() : null;
+		}
+
+		/**
+		 * Draw item j of the scene.  If it would be smaller than LOD_PIXELS on
+		 * the screen, a box of the item's color is drawn instead of its text.
+		 * Item images from the sprite cache are only used when the view is not
+		 * enlarged, since they would look blurry.  Otherwise the item is drawn
+		 * by a painter for g2.
+		 */
+		private void drawItem(Graphics2D g2, ItemPainter painter, PackedItemList.Item cursor, int j) {
+			DrawTextItem s = cursor != null ? cursor.moveTo(j) : items.get(j);
+			Rectangle r = bounds[j];
+			if (Math.min(r.width, r.height) * scale < LOD_PIXELS)
+				drawStandIn(g2, s, r);
+			else if (spriteCache != null && scale <= 1)
+				spriteCache.draw(g2, s);
+			else
+				painter.paint(s);
+		}
+
+		/**
+		 * Draw a box in place of an item that is too small to read: the
+		 * item's background color, or a faint version of its text color if
+		 * it has no background.  The box is the middle of the item's bounds,
+		 * which leave room for rotation.
+		 */
+		private void drawStandIn(Graphics2D g2, DrawTextItem s, Rectangle r) {
+			Color c = s.getBackground();
+			double alpha;
+			if (c != null)
+				alpha = 1 - s.getBackgroundTransparency();
+			else {
+				c = s.getTextColor() != null ? s.getTextColor() : foreground;
+				alpha = 0.5 * (1 - s.getTextTransparency());
+			}
+			g2.setColor(StyleRegistry.getShared().translucent(c, 1 - alpha));
+			g2.fillRect(r.x + r.width/4, r.y + r.height/4, r.width - r.width/2, r.height - r.height/2);
+		}
+	}
+
+	private final SceneSource source;
+	private final Component target;  // repainted when a frame is done
+	private final Object lock = new Object();
+	private Thread thread;
+
+	// The pending requests, guarded by lock.
+	private boolean requested;  // true if a new frame is needed
+	private boolean redrawAll;  // true if the whole frame must be drawn
+	private Rectangle dirty;  // the area of the collage to draw, or null
+	private int appendedFrom = -1;  // the position of the first item that was only added, or -1
+	private Rectangle appendedBounds;  // the area covered by the added items
+
+	// The frames.  front and frontScene are guarded by lock; back is only used by the render thread.
+	private BufferedImage front, back;
+	private Scene frontScene;  // the scene that front was drawn from
+
+	/**
+	 * Create a renderer for a component, which is repainted when a frame
+	 * is done.  The render thread is not started until start() is called.
+	 */
+	FrameRenderer(SceneSource source, Component target) {
+		this.source = source;
+		this.target = target;
+	}
+
+	/**
+	 * Start the render thread, if it has not been started already, and
+	 * request a frame in which everything is drawn.
+	 */
+	void start() {
+		redraw(null);
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					renderFrames();
+				}
+			}, "Collage Renderer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Request a frame in which an area of the collage is drawn again.
+	 * @param area the area, in the collage's coordinates, or null to draw everything
+	 */
+	void redraw(Rectangle area) {
+		synchronized (lock) {
+			if (area == null)
+				redrawAll = true;
+			else if (!redrawAll) {
+				dirty = union(dirty, area);
+				if (appendedFrom >= 0)  // the added items are drawn as part of the area
+					dirty.add(appendedBounds);
+			}
+			appendedFrom = -1;
+			appendedBounds = null;
+			request();
+		}
+	}
+
+	/**
+	 * Request a frame in which items that were added to the end of the
+	 * list are drawn on top of the others.
+	 * @param first the position of the first item that was added
+	 * @param bounds the area covered by the added items
+	 */
+	void itemsAppended(int first, Rectangle bounds) {
+		synchronized (lock) {
+			if (dirty != null)
+				dirty.add(bounds);
+			else if (!redrawAll) {
+				appendedFrom = appendedFrom < 0 ? first : Math.min(appendedFrom, first);
+				appendedBounds = union(appendedBounds, bounds);
+			}
+			request();
+		}
+	}
+
+	/**
+	 * Request a frame for a change of the view.  Only what is new in the
+	 * view is drawn.
+	 */
+	void refresh() {
+		synchronized (lock) {
+			request();
+		}
+	}
+
+	/**
+	 * Copy the last finished frame to a graphics context, at its top left
+	 * corner.  A new frame is requested if the frame does not have the
+	 * specified size.
+	 * @return false if there is no frame yet, in which case nothing is drawn
+	 */
+	boolean paintFrame(Graphics g, int width, int height) {
+		boolean sizeChanged;
+		synchronized (lock) {
+			if (front == null)
+				return false;
+			g.drawImage(front, 0, 0, null);
+			sizeChanged = frontScene.width != width || frontScene.height != height;
+		}
+		if (sizeChanged)
+			refresh();
+		return true;
+	}
+
+	/**
+	 * Draw a whole frame for the current scene, right now, on the calling
+	 * thread, and copy it to a graphics context.  The frames of the render
+	 * thread are not affected.  It should be called on the event-dispatch
+	 * thread, or while nothing else changes the collage.  It is used by
+	 * RenderBenchmark to time a full repaint.
+	 */
+	void paintNow(Graphics g) {
+		Scene scene = source.snapshot();
+		if (scene.width <= 0 || scene.height <= 0)
+			return;
+		BufferedImage image = new BufferedImage(scene.width, scene.height, BufferedImage.TYPE_INT_RGB);
+		scene.draw(image, null);
+		g.drawImage(image, 0, 0, null);
+	}
+
+	private void request() {
+		requested = true;
+		lock.notifyAll();
+	}
+
+	private static Rectangle union(Rectangle r, Rectangle area) {
+		if (r == null)
+			return new Rectangle(area);
+		r.add(area);
+		return r;
+	}
+
+	/**
+	 * The body of the render thread: wait for a request, take the pending
+	 * requests and a scene on the event-dispatch thread, and draw a frame.
+	 */
+	private void renderFrames() {
+		final Scene[] scene = new Scene[1];
+		final Object[] taken = new Object[4];
+		Runnable snapshot = new Runnable() {
+			public void run() {
+				synchronized (lock) {
+					taken[0] = redrawAll;
+					taken[1] = dirty;
+					taken[2] = appendedFrom;
+					taken[3] = appendedBounds;
+					requested = redrawAll = false;
+					dirty = appendedBounds = null;
+					appendedFrom = -1;
+				}
+				scene[0] = source.snapshot();
+			}
+		};
+		boolean failed = false;  // true if the last snapshot failed
+		while (true) {
+			try {
+				synchronized (lock) {
+					while (!requested)
+						lock.wait();
+				}
+				SwingUtilities.invokeAndWait(snapshot);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (InvocationTargetException e) {
+				// The requests were taken with the failed snapshot, so they are
+				// replaced by a request for the whole frame.  It is only tried again
+				// at once after a snapshot that worked, so that an error that
+				// keeps happening doesn't keep the thread busy.
+				System.err.println("The canvas could not be drawn because of an error: " + e.getCause());
+				synchronized (lock) {
+					redrawAll = true;
+					if (!failed)
+						request();
+				}
+				failed = true;
+				continue;
+			}
+			failed = false;
+			if (scene[0].width <= 0 || scene[0].height <= 0)
+				continue;
+			RenderMetrics metrics = RenderMetrics.getShared();
+			long start = metrics.isEnabled() ? System.nanoTime() : 0;
+			drawFrame(scene[0], (Boolean)taken[0], (Rectangle)taken[1], (Integer)taken[2], (Rectangle)taken[3]);
+			if (start != 0)
+				metrics.paintDone(System.nanoTime() - start);
+			scene[0] = null;
+			target.repaint();
+		}
+	}
+
+	/**
+	 * Draw a frame into the back image and make it the front one.
+	 * @param scene what to draw
+	 * @param all true if everything must be drawn
+	 * @param area the area of the collage to draw again, or null
+	 * @param appendedFrom the first item that was only added, or -1
+	 * @param appendedBounds the area covered by the added items
+	 */
+	private void drawFrame(Scene scene, boolean all, Rectangle area, int appendedFrom, Rectangle appendedBounds) {
+		int width = scene.width, height = scene.height;
+		Scene previous;
+		BufferedImage previousFrame;
+		synchronized (lock) {
+			previous = frontScene;
+			previousFrame = front;
+		}
+		BufferedImage image = back;
+		if (image == null || image.getWidth() != width || image.getHeight() != height)
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		boolean full = all || previous == null
+				|| previous.width != width || previous.height != height || previous.scale != scene.scale;
+		int dx = 0, dy = 0;
+		if (!full) {
+			// The view is panned by whole pixels, so the shift is a whole number except for rounding.
+			double shiftX = (previous.viewX - scene.viewX) * scene.scale;
+			double shiftY = (previous.viewY - scene.viewY) * scene.scale;
+			dx = (int)Math.round(shiftX);
+			dy = (int)Math.round(shiftY);
+			full = Math.abs(shiftX - dx) > 1e-6 || Math.abs(shiftY - dy) > 1e-6
+					|| Math.abs(dx) >= width || Math.abs(dy) >= height;
+		}
+		if (full)
+			scene.draw(image, null);
+		else {
+			Graphics g = image.getGraphics();
+			g.drawImage(previousFrame, dx, dy, null);
+			g.dispose();
+			if (appendedFrom >= 0 && (dx != 0 || dy != 0)) {
+				// The strips that come into view will include the new items, so they can't just be drawn on top.
+				area = union(area, appendedBounds);
+				appendedFrom = -1;
+			}
+			if (dx != 0)
+				scene.draw(image, new Rectangle(dx > 0 ? 0 : width + dx, 0, Math.abs(dx), height));
+			if (dy != 0)
+				scene.draw(image, new Rectangle(0, dy > 0 ? 0 : height + dy, width, Math.abs(dy)));
+			if (area != null) {
+				Rectangle r = scene.toCanvas(area).intersection(new Rectangle(0, 0, width, height));
+				if (!r.isEmpty())
+					scene.draw(image, r);
+			}
+			if (appendedFrom >= 0)
+				scene.drawFrom(image, appendedFrom);
+		}
+		synchronized (lock) {
+			back = front;
+			front = image;
+			frontScene = scene;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package textcollage;
+
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+
+/**
+ * An ItemPainter draws many DrawTextItems, one after another, in a single
+ * graphics context, without creating any objects for each item.  Instead
+ * of drawing each item in a copy of the graphics context, as
+ * DrawTextItem.draw() used to do, it remembers the transform, font, color
+ * and stroke of the context when the painter is created, and sets them
+ * back after each item, so that other things can be drawn in the context
+ * between items.  The font render context of the original transform is
+ * also remembered, since the graphics context would make a new one after
+ * every change to its transform, and the strokes that are used for the
+ * borders of magnified items are kept for reuse.
+ * <p>While the painter is in use, the transform, font, color and stroke
+ * of the graphics context should not be changed by anything else.  A
+ * painter is meant to be used by one thread, for one pass of drawing.
+ */
+public final class ItemPainter {
+
+	private static final int STROKE_SLOTS = 16;  // the number of magnifications whose strokes are kept
+
+	private final Graphics2D g2;
+	private final AffineTransform base;
+	private final FontRenderContext frc;
+	private final Font baseFont;
+	private final Color baseColor;
+	private final Stroke baseStroke;
+	private final double[] strokeMagnifications = new double[STROKE_SLOTS];
+	private final BasicStroke[] strokes = new BasicStroke[STROKE_SLOTS];
+	private int strokeCount;
+	private int nextStrokeSlot;  // where the next stroke goes when all the slots are used
+
+	/**
+	 * Create a painter that draws in a graphics context.  The font and
+	 * color of the context are used for items that have no font or text
+	 * color of their own.
+	 * @param g the graphics context, which is assumed to be of type Graphics2D
+	 */
+	public ItemPainter(Graphics g) {
+		g2 = (Graphics2D)g;
+		base = g2.getTransform();
+		frc = g2.getFontRenderContext();
+		baseFont = g2.getFont();
+		baseColor = g2.getColor();
+		baseStroke = g2.getStroke();
+	}
+
+	/**
+	 * Draw an item at its own position, as DrawTextItem.draw() does.
+	 */
+	public void paint(DrawTextItem item) {
+		paint(item, item.getX(), item.getY());
+	}
+
+	/**
+	 * Draw an item centered at (x,y) instead of at its own position.
+	 */
+	void paint(DrawTextItem item, int x, int y) {
+		// The properties are read through the getters, so that a subclass
+		// that keeps them somewhere else (see PackedItemList) is drawn correctly.
+		Font font = item.getFont();
+		Color textColor = item.getTextColor();
+		Color background = item.getBackground();
+		double rotationAngle = item.getRotationAngle();
+		double magnification = item.getMagnification();
+		double textTransparency = item.getTextTransparency();
+		double backgroundTransparency = item.getBackgroundTransparency();
+		RenderMetrics metrics = RenderMetrics.getShared();
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
+		if (font == null)
+			font = baseFont;
+		g2.setFont(font);
+		TextMetricsCache.Metrics fm = TextMetricsCache.getShared().get(g2, frc, item.getString(), font);
+		int width = fm.width;
+		int height = fm.ascent + fm.descent;
+		g2.translate(x,y);
+		if (magnification != 1) {
+			g2.setStroke(stroke(magnification)); // magnification won't apply to border
+			g2.scale(magnification,magnification);
+		}
+		if (rotationAngle > 0)
+			g2.rotate( -Math.PI * (rotationAngle / 180));
+		StyleRegistry registry = StyleRegistry.getShared();
+		if (textColor == null)
+			textColor = baseColor;
+		if (background != null) {
+			if (backgroundTransparency == 0)
+				g2.setColor(background);
+			else
+				g2.setColor(registry.translucent(background, backgroundTransparency));
+			g2.fillRect(-width/2 - 3, -height/2 - 3, width + 6, height + 6);
+		}
+		if (textTransparency == 0)
+			g2.setColor(textColor);
+		else
+			g2.setColor(registry.translucent(textColor, textTransparency));
+		if (item.getBorder())
+			g2.drawRect(-width/2 -3, -height/2 - 3, width + 6, height + 6);
+		g2.drawGlyphVector(fm.glyphs,-width/2, -height/2 + fm.ascent);
+		g2.setTransform(base);
+		g2.setFont(baseFont);
+		g2.setColor(baseColor);
+		if (magnification != 1)
+			g2.setStroke(baseStroke);
+		if (start != 0)
+			metrics.itemDrawDone(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns a stroke one pixel wide after magnification, for the border
+	 * of an item.  Collages use only a few magnifications, so the strokes
+	 * are kept and found by a search through a short array.
+	 */
+	private BasicStroke stroke(double magnification) {
+		for (int i = 0; i < strokeCount; i++)
+			if (strokeMagnifications[i] == magnification)
+				return strokes[i];
+		BasicStroke stroke = new BasicStroke(1/(float)magnification);
+		int slot;
+		if (strokeCount < STROKE_SLOTS)
+			slot = strokeCount++;
+		else {
+			slot = nextStrokeSlot;
+			nextStrokeSlot = (nextStrokeSlot + 1) % STROKE_SLOTS;
+		}
+		strokeMagnifications[slot] = magnification;
+		strokes[slot] = stroke;
+		return stroke;
+	}
+
+}
@@ -0,0 +1,258 @@
+package textcollage;
+
+
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * An ItemPlacer moves items to places in an area where they don't overlap
+ * each other, for word-cloud style collages.  It keeps a bitmap of the
+ * area, with one bit for each square cell of a few pixels, that marks the
+ * cells that are covered by the items that have been placed so far.  To
+ * place an item, its footprint is computed: the cells, row by row, that
+ * are touched by the rectangle that draw() fills with its background,
+ * taking its rotation and magnification into account.  The cells around
+ * the item's position are then tried in order of distance, and the item is
+ * moved to the first one where none of the cells of its footprint is
+ * covered.  Each row of the footprint is tested with a few operations on
+ * 64-bit words, so trying a position takes about as long as testing a
+ * dozen bits one at a time, and placing an item does not depend on the
+ * number of items that have already been placed.
+ * <p>Items that are already in the area, such as the items of a collage
+ * that new ones are added to, can be marked as covering their cells with
+ * occupy().  An item is only moved to positions where all of it is inside
+ * the area.  If no free position is found within MAX_ATTEMPTS positions
+ * of where the item started, the item is not placed.
+ */
+public class ItemPlacer {
+
+	/**
+	 * The largest number of positions that place() tries for one item.
+	 */
+	public static final int MAX_ATTEMPTS = 20000;
+
+	private static final int MAX_CELLS = 1 << 22;  // the cells are made larger for big areas
+	private static final int MIN_CELL_SIZE = 2;
+
+	private final Rectangle area;
+	private final Graphics2D g2;  // for measuring strings
+	private final int cellSize;
+	private final int columns, rows;
+	private final int wordsPerRow;
+	private final long[] covered;  // the bitmap, row by row; bit c of row r is word r*wordsPerRow + c/64
+	private long freeCells;
+
+	// The footprint of the item that is being placed, relative to the cell
+	// that contains the item's center: row firstRow + i covers the columns
+	// from spanStart[i] to spanEnd[i], inclusive.
+	private int firstRow, footprintRows;
+	private int[] spanStart = new int[64], spanEnd = new int[64];
+	private long footprintCells;
+
+	/**
+	 * Create a placer for an area in which nothing is covered yet.
+	 * @param area the area where items are placed, in the collage's coordinates
+	 * @param g a graphics context whose font is used for items that have
+	 *   no font.  It is used only for measuring strings.
+	 */
+	public ItemPlacer(Rectangle area, Graphics g) {
+		if (area.isEmpty())
+			throw new IllegalArgumentException("The area is empty.");
+		this.area = new Rectangle(area);
+		g2 = (Graphics2D)g;
+		int size = MIN_CELL_SIZE;
+		while ((long)ceilDiv(area.width, size) * ceilDiv(area.height, size) > MAX_CELLS)
+			size++;
+		cellSize = size;
+		columns = ceilDiv(area.width, size);
+		rows = ceilDiv(area.height, size);
+		wordsPerRow = (columns + 63) / 64;
+		covered = new long[wordsPerRow * rows];
+		freeCells = (long)columns * rows;
+	}
+
+	/**
+	 * returns the width and height of a cell of the bitmap, in pixels
+	 */
+	public int getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Mark the cells that an item covers at its current position, without
+	 * moving it.  Parts of the item that are outside the area are ignored.
+	 */
+	public void occupy(DrawTextItem item) {
+		int dx = item.getX() - area.x, dy = item.getY() - area.y;
+		computeFootprint(item, Math.floorMod(dx, cellSize), Math.floorMod(dy, cellSize));
+		mark(Math.floorDiv(dx, cellSize), Math.floorDiv(dy, cellSize));
+	}
+
+	/**
+	 * Move an item to the nearest position to its current position where it
+	 * does not overlap anything that has been placed or occupied, and mark
+	 * the cells that it covers there.  The position is the center of a cell,
+	 * so the item can move by up to half a cell even if its position was free.
+	 * @return true if the item was placed, or false if no free position was
+	 *   found, in which case the item is not changed.
+	 */
+	public boolean place(DrawTextItem item) {
+		computeFootprint(item, cellSize/2, cellSize/2);
+		if (footprintCells > freeCells)
+			return false;
+		int startColumn = Math.floorDiv(item.getX() - area.x, cellSize);
+		int startRow = Math.floorDiv(item.getY() - area.y, cellSize);
+		startColumn = Math.max(0, Math.min(columns - 1, startColumn));
+		startRow = Math.max(0, Math.min(rows - 1, startRow));
+		// Try the positions in square rings around the start, nearest ring first.
+		int attempts = 0;
+		int maxRadius = Math.max(columns, rows);
+		for (int radius = 0; radius <= maxRadius && attempts < MAX_ATTEMPTS; radius++) {
+			int top = startRow - radius, bottom = startRow + radius;
+			int left = startColumn - radius, right = startColumn + radius;
+			for (int r = Math.max(top, 0); r <= Math.min(bottom, rows - 1); r++) {
+				boolean edgeRow = r == top || r == bottom;
+				int step = edgeRow ? 1 : right - left;  // inside the ring, only its two ends
+				for (int c = left; c <= right && step > 0; c += step) {
+					if (c < 0 || c >= columns)
+						continue;
+					attempts++;
+					if (fits(c, r)) {
+						mark(c, r);
+						item.setX(area.x + c*cellSize + cellSize/2);
+						item.setY(area.y + r*cellSize + cellSize/2);
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the footprint of an item: the cells that are touched by its
+	 * background rectangle, expanded by a pixel for antialiasing, when its
+	 * center is at (offsetX,offsetY) in a cell.
+	 */
+	private void computeFootprint(DrawTextItem item, int offsetX, int offsetY) {
+		Font font = item.getFont();
+		TextMetricsCache.Metrics fm = TextMetricsCache.getShared().get(g2, item.getString(),
+				font != null ? font : g2.getFont());
+		int width = fm.width;
+		int height = fm.ascent + fm.descent;
+		// The rectangle that draw() fills, and its corners after magnification and rotation.
+		double x0 = -width/2 - 3, x1 = -width/2 + width + 3;
+		double y0 = -height/2 - 3, y1 = -height/2 + height + 3;
+		double mag = item.getMagnification();
+		double radians = item.getRotationAngle() > 0 ? -Math.PI * (item.getRotationAngle() / 180) : 0;
+		double cos = Math.cos(radians) * mag, sin = Math.sin(radians) * mag;
+		double[] xs = new double[4], ys = new double[4];
+		double[][] corners = { {x0, y0}, {x1, y0}, {x1, y1}, {x0, y1} };
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < 4; i++) {
+			xs[i] = corners[i][0]*cos - corners[i][1]*sin + offsetX;
+			ys[i] = corners[i][0]*sin + corners[i][1]*cos + offsetY;
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		firstRow = (int)Math.floor((minY - 1) / cellSize);
+		int lastRow = (int)Math.floor((maxY + 1) / cellSize);
+		footprintRows = lastRow - firstRow + 1;
+		if (spanStart.length < footprintRows) {
+			spanStart = new int[2*footprintRows];
+			spanEnd = new int[2*footprintRows];
+		}
+		footprintCells = 0;
+		for (int i = 0; i < footprintRows; i++) {
+			// The part of the rectangle, which is convex, between the top and bottom of the row.
+			double top = (firstRow + i) * cellSize - 1, bottom = top + cellSize + 2;
+			double left = Double.POSITIVE_INFINITY, right = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < 4; j++) {
+				double ax = xs[j], ay = ys[j], bx = xs[(j+1) % 4], by = ys[(j+1) % 4];
+				double ty0 = Math.max(top, Math.min(ay, by)), ty1 = Math.min(bottom, Math.max(ay, by));
+				if (ty0 > ty1)
+					continue;  // this edge does not cross the row
+				double xa = ay == by ? ax : ax + (bx - ax) * (ty0 - ay) / (by - ay);
+				double xb = ay == by ? bx : ax + (bx - ax) * (ty1 - ay) / (by - ay);
+				left = Math.min(left, Math.min(xa, xb));
+				right = Math.max(right, Math.max(xa, xb));
+			}
+			if (left > right) {  // can only happen at the very edge, because of rounding
+				left = 0;
+				right = -1;
+			}
+			spanStart[i] = (int)Math.floor((left - 1) / cellSize);
+			spanEnd[i] = (int)Math.floor((right + 1) / cellSize);
+			footprintCells += Math.max(0, spanEnd[i] - spanStart[i] + 1);
+		}
+	}
+
+	/**
+	 * Tests whether the footprint fits inside the area, on cells that are
+	 * all free, with its center in cell (column, row).
+	 */
+	private boolean fits(int column, int row) {
+		if (row + firstRow < 0 || row + firstRow + footprintRows > rows)
+			return false;
+		// Test the middle row first; it is the widest, so it is the most likely to collide.
+		int middle = footprintRows / 2;
+		if (!free(row + firstRow + middle, column + spanStart[middle], column + spanEnd[middle]))
+			return false;
+		for (int i = 0; i < footprintRows; i++)
+			if (i != middle && !free(row + firstRow + i, column + spanStart[i], column + spanEnd[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Tests whether the cells of a row from first to last, inclusive, are
+	 * inside the area and not covered.
+	 */
+	private boolean free(int row, int first, int last) {
+		if (first > last)
+			return true;
+		if (first < 0 || last >= columns)
+			return false;
+		int base = row * wordsPerRow;
+		int firstWord = first >>> 6, lastWord = last >>> 6;
+		for (int w = firstWord; w <= lastWord; w++) {
+			long mask = -1L;
+			if (w == firstWord)
+				mask &= -1L << (first & 63);
+			if (w == lastWord)
+				mask &= -1L >>> (63 - (last & 63));
+			if ((covered[base + w] & mask) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Mark the cells of the footprint as covered, with its center in cell
+	 * (column, row).  Cells outside the area are skipped.
+	 */
+	private void mark(int column, int row) {
+		for (int i = 0; i < footprintRows; i++) {
+			int r = row + firstRow + i;
+			if (r < 0 || r >= rows)
+				continue;
+			int first = Math.max(0, column + spanStart[i]);
+			int last = Math.min(columns - 1, column + spanEnd[i]);
+			int base = r * wordsPerRow;
+			for (int c = first; c <= last; c++) {
+				long bit = 1L << (c & 63);
+				if ((covered[base + (c >>> 6)] & bit) == 0) {
+					covered[base + (c >>> 6)] |= bit;
+					freeCells--;
+				}
+			}
+		}
+	}
+
+	private static int ceilDiv(int a, int b) {
+		return (a + b - 1) / b;
+	}
+
+}
@@ -3,23 +3,58 @@ package textcollage;
 import java.awt.*;
 import java.awt.event.*;
 
-import javax.swing.*;
-
+/**
+ * A Movement lets the user drag things with the mouse.  It is registered
+ * as a mouse listener with one or more components.  By default, the thing
+ * that is dragged is the component itself, which is moved with
+ * setLocation().  A subclass can drag something else, such as an item
+ * that is drawn inside the component, by overriding startDrag(), drag()
+ * and endDrag().
+ */
 public class Movement implements MouseListener, MouseMotionListener{
-	private int X, Y;
-	
+	private int X, Y;  // where the mouse was pressed, in the component's coordinates
+	private boolean dragging;  // true between a press that started a drag and the release
+
 	public Movement(Component... pns) {
 		for (Component panel : pns) {
 			panel.addMouseListener(this);
 			panel.addMouseMotionListener(this);
 		}
 	}
-	
+
+	/**
+	 * Called when the mouse is pressed, to decide whether a drag starts.
+	 * If false is returned, the following drag and release are ignored.
+	 * The default is to drag the component, so true is returned.
+	 */
+	protected boolean startDrag(MouseEvent e) {
+		return true;
+	}
+
+	/**
+	 * Called each time the mouse moves during a drag.
+	 * @param dx the horizontal distance from the point where the mouse was pressed
+	 * @param dy the vertical distance from the point where the mouse was pressed
+	 */
+	protected void drag(MouseEvent e, int dx, int dy) {
+		// Since the component moves with the mouse, the mouse stays at the
+		// same point in its coordinates, and dx and dy are the latest movement.
+		e.getComponent().setLocation(e.getComponent().getX() + dx, e.getComponent().getY() + dy);
+	}
+
+	/**
+	 * Called when the mouse is released at the end of a drag.  The default
+	 * does nothing, since the component has already been moved.
+	 * @param dx the horizontal distance from the point where the mouse was pressed
+	 * @param dy the vertical distance from the point where the mouse was pressed
+	 */
+	protected void endDrag(MouseEvent e, int dx, int dy) {
+	}
+
 	@Override
 	public void mouseDragged(MouseEvent e) {
-		// TODO Auto-generated method stub
-		e.getComponent().setLocation((e.getX()+e.getComponent().getX())-X, (e.getY()+e.getComponent().getY())-Y);
-		
+		if (dragging)
+			drag(e, e.getX() - X, e.getY() - Y);
 	}
 
 	@Override
@@ -36,16 +71,17 @@ public class Movement implements MouseListener, MouseMotionListener{
 
 	@Override
 	public void mousePressed(MouseEvent e) {
-		// TODO Auto-generated method stub
 		X = e.getX();
 		Y = e.getY();
-		
+		dragging = startDrag(e);
 	}
 
 	@Override
 	public void mouseReleased(MouseEvent e) {
-		// TODO Auto-generated method stub
-		
+		if (dragging) {
+			dragging = false;
+			endDrag(e, e.getX() - X, e.getY() - Y);
+		}
 	}
 
 	@Override
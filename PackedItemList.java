@@ -0,0 +1,399 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * A PackedItemList is a list of DrawTextItems that stores the items'
+ * properties in parallel arrays of primitive values instead of keeping
+ * a separate object for every item.  Positions are stored as ints, colors
+ * as packed ARGB ints, rotation, magnification and transparencies as floats,
+ * the border and "has a color" flags in bitsets, and the font and string
+ * as indices into tables that are shared by all the items in the list.
+ * <p>An item in the list takes 40 bytes plus 3 bits, not counting the
+ * shared font and string tables.  By comparison, an ordinary DrawTextItem
+ * and its reference in an ArrayList take roughly 85 bytes, with its font,
+ * colors and string shared through the StyleRegistry (roughly 240 bytes
+ * if it had its own Font, two Colors and String).  The price is that
+ * rotation, magnification and the transparencies are kept with float
+ * precision.
+ * <p>The items returned by get() and by iterators are views: small objects
+ * that read and write the arrays of the list.  A new view is created on
+ * each call, so the same item can be represented by several different
+ * objects.  For loops that visit many items, cursor() returns a single
+ * view that can be moved from item to item without creating new objects.
+ * A view that refers to a position beyond the end of the list, for example
+ * after items are removed, must not be used.
+ */
+public class PackedItemList extends AbstractList<DrawTextItem> implements RandomAccess {
+
+	private static final int TEXT_COLOR = 0, BACKGROUND = 1, BORDER = 2;  // flag numbers
+
+	private int size;
+	private int[] x, y;
+	private int[] textColor, background;  // ARGB values
+	private float[] rotationAngle, magnification, textTransparency, backgroundTransparency;
+	private int[] fontIndex, stringIndex;  // fontIndex is -1 for a null font
+	private BitSet[] flags = { new BitSet(), new BitSet(), new BitSet() };
+
+	private ArrayList<Font> fonts = new ArrayList<Font>();
+	private HashMap<Font,Integer> fontNumbers = new HashMap<Font,Integer>();
+	private ArrayList<String> strings = new ArrayList<String>();
+	private HashMap<String,Integer> stringNumbers = new HashMap<String,Integer>();
+
+	/**
+	 * A DrawTextItem whose properties are stored in the arrays of the list.
+	 * The fields that it inherits from DrawTextItem are not used.
+	 */
+	public final class Item extends DrawTextItem {
+		private int index;
+
+		private Item(int index) {
+			super("");
+			this.index = index;
+		}
+
+		/**
+		 * Make this view refer to a different position in the list.
+		 * @return this view
+		 * @throws IndexOutOfBoundsException if the position is not in the list
+		 */
+		public Item moveTo(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			this.index = index;
+			spriteKey = null;
+			return this;
+		}
+
+		/**
+		 * returns the position in the list of the item that this view refers to
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public String getString() {
+			return strings.get(stringIndex[index]);
+		}
+		public Font getFont() {
+			int f = fontIndex[index];
+			return f < 0 ? null : fonts.get(f);
+		}
+		public int getX() {
+			return x[index];
+		}
+		public int getY() {
+			return y[index];
+		}
+		public Color getTextColor() {
+			return flags[TEXT_COLOR].get(index) ? StyleRegistry.getShared().color(textColor[index]) : null;
+		}
+		public Color getBackground() {
+			return flags[BACKGROUND].get(index) ? StyleRegistry.getShared().color(background[index]) : null;
+		}
+		public boolean getBorder() {
+			return flags[BORDER].get(index);
+		}
+		public double getRotationAngle() {
+			return rotationAngle[index];
+		}
+		public double getMagnification() {
+			return magnification[index];
+		}
+		public double getTextTransparency() {
+			return textTransparency[index];
+		}
+		public double getBackgroundTransparency() {
+			return backgroundTransparency[index];
+		}
+
+		public void setFont(Font font) {
+			fontIndex[index] = fontNumber(font);
+			spriteKey = null;
+		}
+		public void setX(int x) {
+			PackedItemList.this.x[index] = x;
+		}
+		public void setY(int y) {
+			PackedItemList.this.y[index] = y;
+		}
+		public void setTextColor(Color c) {
+			flags[TEXT_COLOR].set(index, c != null);
+			textColor[index] = c == null ? 0 : c.getRGB();
+			spriteKey = null;
+		}
+		public void setBackground(Color c) {
+			flags[BACKGROUND].set(index, c != null);
+			background[index] = c == null ? 0 : c.getRGB();
+			spriteKey = null;
+		}
+		public void setBorder(boolean border) {
+			flags[BORDER].set(index, border);
+			spriteKey = null;
+		}
+		public void setRotationAngle(double rotationAngle) {
+			PackedItemList.this.rotationAngle[index] = (float)rotationAngle;
+			spriteKey = null;
+		}
+		public void setMagnification(double magnification) {
+			if (magnification == 0)
+				throw new IllegalArgumentException("Magnification cannot be 0.");
+			PackedItemList.this.magnification[index] = (float)magnification;
+			spriteKey = null;
+		}
+		public void setTextTransparency(double textTransparency) {
+			if (textTransparency < 0 || textTransparency > 1)
+				throw new IllegalArgumentException("Transparency must be in the range 0 to 1.");
+			PackedItemList.this.textTransparency[index] = (float)textTransparency;
+			spriteKey = null;
+		}
+		public void setBackgroundTransparency(double backgroundTransparency) {
+			if (backgroundTransparency < 0 || backgroundTransparency > 1)
+				throw new IllegalArgumentException("Transparency must be in the range 0 to 1.");
+			PackedItemList.this.backgroundTransparency[index] = (float)backgroundTransparency;
+			spriteKey = null;
+		}
+	}
+
+	/**
+	 * Create an empty list.
+	 */
+	public PackedItemList() {
+		this(16);
+	}
+
+	/**
+	 * Create an empty list with room for a given number of items.
+	 */
+	public PackedItemList(int initialCapacity) {
+		allocate(Math.max(initialCapacity, 1));
+	}
+
+	/**
+	 * Create a list that contains copies of the items in a collection.
+	 */
+	public PackedItemList(Collection<? extends DrawTextItem> items) {
+		this(items.size());
+		addAll(items);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a new view of the item at a given position.
+	 */
+	public DrawTextItem get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return new Item(index);
+	}
+
+	/**
+	 * Returns a view that can be moved to any item with moveTo().  The
+	 * view initially refers to the first item, or to nothing if the list
+	 * is empty.
+	 */
+	public Item cursor() {
+		return new Item(0);
+	}
+
+	/**
+	 * Add a copy of an item to the end of the list.  Later changes to the
+	 * item do not affect the list.
+	 */
+	public boolean add(DrawTextItem item) {
+		if (size == x.length)
+			allocate(2*size);
+		size++;
+		modCount++;
+		stringIndex[size-1] = stringNumber(item.getString());
+		copy(item, size-1);
+		return true;
+	}
+
+	/**
+	 * Replace the item at a position with a copy of another item.
+	 * @return a DrawTextItem with the properties of the replaced item.
+	 */
+	public DrawTextItem set(int index, DrawTextItem item) {
+		DrawTextItem old = detachedCopy(index);
+		stringIndex[index] = stringNumber(item.getString());
+		copy(item, index);
+		return old;
+	}
+
+	/**
+	 * Remove the item at a position.  Removing the last item is fast; removing
+	 * any other item moves all the items after it.
+	 * @return a DrawTextItem with the properties of the removed item.
+	 */
+	public DrawTextItem remove(int index) {
+		DrawTextItem removed = detachedCopy(index);
+		int moved = size - index - 1;
+		if (moved > 0) {
+			for (int[] a : new int[][] { x, y, textColor, background, fontIndex, stringIndex })
+				System.arraycopy(a, index+1, a, index, moved);
+			for (float[] a : new float[][] { rotationAngle, magnification, textTransparency, backgroundTransparency })
+				System.arraycopy(a, index+1, a, index, moved);
+			for (BitSet b : flags)
+				for (int i = index; i < size - 1; i++)
+					b.set(i, b.get(i+1));
+		}
+		size--;
+		modCount++;
+		for (BitSet b : flags)
+			b.clear(size);
+		return removed;
+	}
+
+	/**
+	 * Returns a new list that holds copies of the items at some positions,
+	 * in the order given.  The properties are copied array by array, and
+	 * the font and string tables are copied as they are, so this is much
+	 * faster than adding the items to a new list one at a time.  It is
+	 * used to take a snapshot of the items that are in view.
+	 * @throws IndexOutOfBoundsException if a position is not in the list
+	 */
+	public PackedItemList copyOf(int[] positions) {
+		PackedItemList copy = new PackedItemList(positions.length);
+		for (int i = 0; i < positions.length; i++) {
+			int p = positions[i];
+			if (p < 0 || p >= size)
+				throw new IndexOutOfBoundsException("Index: " + p + ", Size: " + size);
+			copy.x[i] = x[p];
+			copy.y[i] = y[p];
+			copy.textColor[i] = textColor[p];
+			copy.background[i] = background[p];
+			copy.fontIndex[i] = fontIndex[p];
+			copy.stringIndex[i] = stringIndex[p];
+			copy.rotationAngle[i] = rotationAngle[p];
+			copy.magnification[i] = magnification[p];
+			copy.textTransparency[i] = textTransparency[p];
+			copy.backgroundTransparency[i] = backgroundTransparency[p];
+			for (int f = 0; f < flags.length; f++)
+				if (flags[f].get(p))
+					copy.flags[f].set(i);
+		}
+		copy.size = positions.length;
+		copy.fonts.addAll(fonts);
+		copy.strings.addAll(strings);  // the number maps are rebuilt if the copy is added to
+		return copy;
+	}
+
+	/**
+	 * Remove all items, and empty the font and string tables.
+	 */
+	public void clear() {
+		size = 0;
+		modCount++;
+		for (BitSet b : flags)
+			b.clear();
+		fonts.clear();
+		fontNumbers.clear();
+		strings.clear();
+		stringNumbers.clear();
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the arrays of the
+	 * list, including unused capacity but not the font and string tables.
+	 */
+	public long getArrayBytes() {
+		return 40L * x.length + flags.length * (x.length / 8);
+	}
+
+	/**
+	 * Returns an ordinary DrawTextItem with the properties of the item at a position.
+	 */
+	private DrawTextItem detachedCopy(int index) {
+		DrawTextItem view = get(index);
+		DrawTextItem item = new DrawTextItem(view.getString(), view.getX(), view.getY());
+		copyProperties(view, item);
+		return item;
+	}
+
+	/**
+	 * Copy every property except the string from an item
+	 * to the item at a position in the list.
+	 */
+	private void copy(DrawTextItem item, int index) {
+		Item view = new Item(index);
+		view.setX(item.getX());
+		view.setY(item.getY());
+		copyProperties(item, view);
+	}
+
+	private static void copyProperties(DrawTextItem from, DrawTextItem to) {
+		to.setFont(from.getFont());
+		to.setTextColor(from.getTextColor());
+		to.setBackground(from.getBackground());
+		to.setBorder(from.getBorder());
+		to.setRotationAngle(from.getRotationAngle());
+		to.setMagnification(from.getMagnification());
+		to.setTextTransparency(from.getTextTransparency());
+		to.setBackgroundTransparency(from.getBackgroundTransparency());
+	}
+
+	private int fontNumber(Font font) {
+		if (font == null)
+			return -1;
+		if (fontNumbers.size() != fonts.size()) {  // in a copy made by copyOf()
+			fontNumbers.clear();
+			for (int i = 0; i < fonts.size(); i++)
+				fontNumbers.put(fonts.get(i), i);
+		}
+		Integer n = fontNumbers.get(font);
+		if (n == null) {
+			n = fonts.size();
+			fonts.add(font);
+			fontNumbers.put(font, n);
+		}
+		return n;
+	}
+
+	private int stringNumber(String string) {
+		if (stringNumbers.size() != strings.size()) {  // in a copy made by copyOf()
+			stringNumbers.clear();
+			for (int i = 0; i < strings.size(); i++)
+				stringNumbers.put(strings.get(i), i);
+		}
+		Integer n = stringNumbers.get(string);
+		if (n == null) {
+			n = strings.size();
+			strings.add(string);
+			stringNumbers.put(string, n);
+		}
+		return n;
+	}
+
+	/**
+	 * Make the arrays big enough for a given number of items.
+	 */
+	private void allocate(int capacity) {
+		if (x != null && capacity <= x.length)
+			return;
+		x = x == null ? new int[capacity] : Arrays.copyOf(x, capacity);
+		y = y == null ? new int[capacity] : Arrays.copyOf(y, capacity);
+		textColor = textColor == null ? new int[capacity] : Arrays.copyOf(textColor, capacity);
+		background = background == null ? new int[capacity] : Arrays.copyOf(background, capacity);
+		fontIndex = fontIndex == null ? new int[capacity] : Arrays.copyOf(fontIndex, capacity);
+		stringIndex = stringIndex == null ? new int[capacity] : Arrays.copyOf(stringIndex, capacity);
+		rotationAngle = rotationAngle == null ? new float[capacity] : Arrays.copyOf(rotationAngle, capacity);
+		magnification = magnification == null ? new float[capacity] : Arrays.copyOf(magnification, capacity);
+		textTransparency = textTransparency == null ? new float[capacity] : Arrays.copyOf(textTransparency, capacity);
+		backgroundTransparency = backgroundTransparency == null ? new float[capacity]
+				: Arrays.copyOf(backgroundTransparency, capacity);
+	}
+
+}
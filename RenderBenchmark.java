@@ -0,0 +1,470 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A headless main program that times the code that matters most for the
+ * speed of the program: drawing a single item, repainting the drawing
+ * area, choosing random styles, generating random collages, placing
+ * items without overlap, and saving and loading the text format.
+ * Each benchmark is run for a number of warmup iterations, whose times
+ * are discarded, and then for a number of measured iterations.  An
+ * iteration calls the benchmarked operation repeatedly for a fixed amount
+ * of time (and at least once), and its score is the average time per call.
+ * The number of bytes allocated per call is also measured, like the
+ * gc.alloc.rate.norm figure of JMH's gc profiler, when the JVM can report
+ * the bytes allocated by a thread.
+ * All items are made with fixed random seeds, so every run does the
+ * same work.
+ * <p>The results are printed as a table, and they can also be written to
+ * a JSON file in the format that JMH uses (a list of objects with
+ * "benchmark", "params", "mode", "primaryMetric" and "secondaryMetrics"
+ * fields), so that they
+ * can be compared with earlier runs by the same tools.  Like the rest of
+ * the program, this class needs nothing but the JDK.  It does not fork a
+ * new JVM for each benchmark, so for the most reliable numbers, run one
+ * benchmark at a time by giving part of its name on the command line.
+ * <p>Usage:  java textcollage.RenderBenchmark [-warmup n] [-iterations n] [-time ms] [-json file] [name...]
+ */
+public class RenderBenchmark {
+
+	private static final String USAGE = "Usage:  java textcollage.RenderBenchmark [-warmup n] [-iterations n] "
+			+ "[-time ms] [-json file] [name...]";
+
+	private static final long SEED = 42;
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		RenderBenchmark bench = new RenderBenchmark();
+		File jsonFile = null;
+		ArrayList<String> names = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-warmup"))
+					bench.warmupIterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-iterations"))
+					bench.iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-time"))
+					bench.iterationMillis = Long.parseLong(args[++i]);
+				else if (args[i].equals("-json"))
+					jsonFile = new File(args[++i]);
+				else if (args[i].startsWith("-"))
+					throw new IllegalArgumentException();
+				else
+					names.add(args[i]);
+			}
+		}
+		catch (RuntimeException e) {
+			bench.iterations = 0;
+		}
+		if (bench.iterations < 1 || bench.warmupIterations < 0 || bench.iterationMillis < 1) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		try {
+			bench.runAll(names);
+			if (jsonFile != null)
+				bench.writeJSON(jsonFile);
+		}
+		catch (Exception e) {
+			System.err.println("Benchmark failed: " + e);
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * One benchmarked operation.  The value that it returns is combined into
+	 * a field, so that the JIT compiler can't discard the work as unused.
+	 */
+	private interface Operation {
+		long run() throws Exception;
+	}
+
+	/**
+	 * The measured times of one benchmark with one set of parameters.
+	 */
+	private static class Result {
+		final String name;
+		final Map<String,String> params;
+		final double[] scores;  // microseconds per operation, one for each iteration
+		final double[] allocations;  // bytes allocated per operation, or null if unknown
+		Result(String name, Map<String,String> params, double[] scores, double[] allocations) {
+			this.name = name;
+			this.params = params;
+			this.scores = scores;
+			this.allocations = allocations;
+		}
+		double mean() {
+			return mean(scores);
+		}
+		static double mean(double[] values) {
+			double sum = 0;
+			for (double s : values)
+				sum += s;
+			return sum / values.length;
+		}
+		/**
+		 * Returns half the width of a 99.9% confidence interval for the mean,
+		 * using the normal approximation, or NaN if there is only one score.
+		 */
+		double error() {
+			if (scores.length < 2)
+				return Double.NaN;
+			double mean = mean();
+			double sum = 0;
+			for (double s : scores)
+				sum += (s - mean) * (s - mean);
+			return 3.29 * Math.sqrt(sum / (scores.length - 1)) / Math.sqrt(scores.length);
+		}
+	}
+
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+	private final List<Result> results = new ArrayList<Result>();
+	private long sink;  // receives the values returned by the operations
+	private double lastAllocation;  // bytes allocated per call in the last iteration
+
+	/**
+	 * Run the benchmarks whose names contain one of the given strings, or
+	 * all of them if the list is empty.
+	 */
+	private void runAll(List<String> names) throws Exception {
+		System.out.printf("%-58s %14s %12s %12s%n", "Benchmark", "us/op", "error", "B/op");
+		if (selected(names, "draw"))
+			benchmarkDraw();
+		if (selected(names, "paint"))
+			benchmarkPaint();
+		if (selected(names, "randomStyle"))
+			benchmarkRandomStyle();
+		if (selected(names, "generate"))
+			benchmarkGenerate();
+		if (selected(names, "place"))
+			benchmarkPlace();
+		if (selected(names, "textRoundTrip"))
+			benchmarkTextRoundTrip();
+	}
+
+	private static boolean selected(List<String> names, String benchmark) {
+		if (names.isEmpty())
+			return true;
+		for (String n : names)
+			if (benchmark.toLowerCase().contains(n.toLowerCase()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * DrawTextItem.draw() for one item with a background and a border,
+	 * for every combination of rotation, magnification and transparency,
+	 * and ItemPainter.paint() for the same item, which is how the items of
+	 * a collage are drawn and should allocate nothing.
+	 */
+	private void benchmarkDraw() throws Exception {
+		BufferedImage image = new BufferedImage(CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g2 = image.createGraphics();
+		g2.setFont(CollageRenderer.DEFAULT_FONT);
+		g2.setColor(Color.BLACK);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		final ItemPainter painter = new ItemPainter(g2);
+		for (double rotation : new double[] { 0, 30 })
+			for (double magnification : new double[] { 1, 2.5 })
+				for (double transparency : new double[] { 0, 0.5 }) {
+					final DrawTextItem s = new DrawTextItem("Hello World!", 400, 300);
+					s.setFont(new Font("Serif", Font.BOLD, 18));
+					s.setTextColor(Color.RED);
+					s.setBackground(Color.YELLOW);
+					s.setBorder(true);
+					s.setRotationAngle(rotation);
+					s.setMagnification(magnification);
+					s.setTextTransparency(transparency);
+					s.setBackgroundTransparency(transparency);
+					Map<String,String> params = new LinkedHashMap<String,String>();
+					params.put("rotation", format(rotation));
+					params.put("magnification", format(magnification));
+					params.put("transparency", format(transparency));
+					measure("draw", params, new Operation() {
+						public long run() {
+							s.draw(g2);
+							return 1;
+						}
+					});
+					measure("drawWithPainter", params, new Operation() {
+						public long run() {
+							painter.paint(s);
+							return 1;
+						}
+					});
+				}
+		g2.dispose();
+	}
+
+	/**
+	 * A full repaint of the drawing area of a DrawTextPanel, drawing a
+	 * whole frame from the list of items, for three numbers of items.
+	 */
+	private void benchmarkPaint() throws Exception {
+		BufferedImage image = new BufferedImage(CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g2 = image.createGraphics();
+		for (int count : new int[] { 1000, 10000, 100000 }) {
+			final DrawTextPanel panel = new DrawTextPanel();
+			panel.addItems(makeItems(count));
+			Map<String,String> params = new LinkedHashMap<String,String>();
+			params.put("items", "" + count);
+			measure("paint", params, new Operation() {
+				public long run() {
+					panel.paintCanvas(g2, CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT);
+					return 1;
+				}
+			});
+		}
+		g2.dispose();
+	}
+
+	/**
+	 * DrawTextPanel.randomStyle() for one item.
+	 */
+	private void benchmarkRandomStyle() throws Exception {
+		final DrawTextPanel panel = new DrawTextPanel();
+		panel.setRandomSeed(SEED);
+		final DrawTextItem s = new DrawTextItem("Hello World!", 400, 300);
+		measure("randomStyle", new LinkedHashMap<String,String>(), new Operation() {
+			public long run() {
+				panel.randomStyle(s);
+				return s.getFont().getSize();
+			}
+		});
+	}
+
+	/**
+	 * CollageGenerator.generate() for 100,000 items, using all the processors.
+	 */
+	private void benchmarkGenerate() throws Exception {
+		final CollageGenerator generator = new CollageGenerator(SEED);
+		final Rectangle area = new Rectangle(0, 0, CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT);
+		Map<String,String> params = new LinkedHashMap<String,String>();
+		params.put("items", "100000");
+		measure("generate", params, new Operation() {
+			public long run() {
+				generator.setSeed(SEED);
+				return generator.generate("Hello World!", 100000, area, Color.BLACK).size();
+			}
+		});
+	}
+
+	/**
+	 * ItemPlacer.place() for 10000 random items in an area ten times as
+	 * wide and high as the drawing area, which holds about two thirds
+	 * of them.  The items are put back at their random positions
+	 * before each call.
+	 */
+	private void benchmarkPlace() throws Exception {
+		final int count = 10000;
+		final Rectangle area = new Rectangle(0, 0, 10 * CollageRenderer.DEFAULT_WIDTH,
+				10 * CollageRenderer.DEFAULT_HEIGHT);
+		final List<DrawTextItem> items = new CollageGenerator(SEED).generate("Hello World!", count, area, Color.BLACK);
+		final int[] xs = new int[count], ys = new int[count];
+		for (int i = 0; i < count; i++) {
+			xs[i] = items.get(i).getX();
+			ys[i] = items.get(i).getY();
+		}
+		final Graphics2D g2 = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+		g2.setFont(CollageRenderer.DEFAULT_FONT);
+		Map<String,String> params = new LinkedHashMap<String,String>();
+		params.put("items", "" + count);
+		measure("place", params, new Operation() {
+			public long run() {
+				ItemPlacer placer = new ItemPlacer(area, g2);
+				long placed = 0;
+				for (int i = 0; i < count; i++) {
+					DrawTextItem s = items.get(i);
+					s.setX(xs[i]);
+					s.setY(ys[i]);
+					if (placer.place(s))
+						placed++;
+				}
+				return placed;
+			}
+		});
+		g2.dispose();
+	}
+
+	/**
+	 * Writing a collage to a file in the text format, and reading it back.
+	 */
+	private void benchmarkTextRoundTrip() throws Exception {
+		final File file = File.createTempFile("benchmark", ".txt");
+		file.deleteOnExit();
+		try {
+			for (int count : new int[] { 1000, 10000 }) {
+				final List<DrawTextItem> items = makeItems(count);
+				Map<String,String> params = new LinkedHashMap<String,String>();
+				params.put("items", "" + count);
+				measure("textRoundTrip", params, new Operation() {
+					public long run() throws IOException {
+						CollageIO.writeText(file, Color.LIGHT_GRAY, items);
+						return CollageIO.readText(file).getItems().size();
+					}
+				});
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Make a list of items with random positions and styles, using a
+	 * CollageGenerator with a fixed seed, in the same way as "Generate Random"
+	 * except that each item has a different string.
+	 */
+	private static List<DrawTextItem> makeItems(int count) {
+		CollageGenerator generator = new CollageGenerator(SEED);
+		SplittableRandom random = new SplittableRandom(SEED);
+		ArrayList<DrawTextItem> items = new ArrayList<DrawTextItem>(count);
+		for (int i = 0; i < count; i++) {
+			DrawTextItem s = new DrawTextItem("Hello " + i, random.nextInt(CollageRenderer.DEFAULT_WIDTH),
+					random.nextInt(CollageRenderer.DEFAULT_HEIGHT));
+			generator.randomStyle(s);
+			items.add(s);
+		}
+		return items;
+	}
+
+	/**
+	 * Run the warmup and measured iterations of one benchmark, print
+	 * its result, and add it to the list of results.
+	 */
+	private void measure(String name, Map<String,String> params, Operation op) throws Exception {
+		for (int i = 0; i < warmupIterations; i++)
+			iteration(op);
+		double[] scores = new double[iterations];
+		double[] allocations = allocatedBytes() < 0 ? null : new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			scores[i] = iteration(op);
+			if (allocations != null)
+				allocations[i] = lastAllocation;
+		}
+		Result result = new Result(name, params, scores, allocations);
+		results.add(result);
+		String label = params.isEmpty() ? name : name + " " + params;
+		System.out.printf(Locale.ROOT, "%-58s %14.3f %12.3f %12.1f%n", label, result.mean(), result.error(),
+				allocations == null ? Double.NaN : Result.mean(allocations));
+	}
+
+	/**
+	 * Call an operation repeatedly for iterationMillis milliseconds, and at
+	 * least once.  The bytes allocated per call are left in lastAllocation.
+	 * @return the average time per call, in microseconds
+	 */
+	private double iteration(Operation op) throws Exception {
+		long allocatedAtStart = allocatedBytes();
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000;
+		long calls = 0;
+		long now;
+		do {
+			sink += op.run();
+			calls++;
+			now = System.nanoTime();
+		} while (now < end);
+		lastAllocation = (double)(allocatedBytes() - allocatedAtStart) / calls;
+		return (now - start) / 1000.0 / calls;
+	}
+
+	/**
+	 * Returns the number of bytes that the current thread has allocated
+	 * so far, or -1 if the JVM can't tell.  Operations that use other
+	 * threads, such as generating items in parallel, are only partly counted.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getCurrentThreadAllocatedBytes();
+		return -1;
+	}
+
+	/**
+	 * Write the results in the JSON format that JMH uses for its results.
+	 */
+	private void writeJSON(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("[");
+			for (int r = 0; r < results.size(); r++) {
+				Result result = results.get(r);
+				out.println("    {");
+				out.println("        \"benchmark\" : \"textcollage.RenderBenchmark." + result.name + "\",");
+				out.println("        \"mode\" : \"avgt\",");
+				out.println("        \"threads\" : 1,");
+				out.println("        \"forks\" : 0,");
+				out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+				out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+				out.print("        \"params\" : {");
+				int p = 0;
+				for (Map.Entry<String,String> e : result.params.entrySet())
+					out.print((p++ == 0 ? " " : ", ") + "\"" + e.getKey() + "\" : \"" + e.getValue() + "\"");
+				out.println(" },");
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + number(result.mean()) + ",");
+				out.println("            \"scoreError\" : " + number(result.error()) + ",");
+				out.println("            \"scoreUnit\" : \"us/op\",");
+				out.print("            \"rawData\" : [ [");
+				for (int i = 0; i < result.scores.length; i++)
+					out.print((i == 0 ? " " : ", ") + number(result.scores[i]));
+				out.println(" ] ]");
+				if (result.allocations == null)
+					out.println("        }");
+				else {
+					out.println("        },");
+					out.println("        \"secondaryMetrics\" : {");
+					out.println("            \"gc.alloc.rate.norm\" : {");
+					out.println("                \"score\" : " + number(Result.mean(result.allocations)) + ",");
+					out.println("                \"scoreUnit\" : \"B/op\",");
+					out.print("                \"rawData\" : [ [");
+					for (int i = 0; i < result.allocations.length; i++)
+						out.print((i == 0 ? " " : ", ") + number(result.allocations[i]));
+					out.println(" ] ]");
+					out.println("            }");
+					out.println("        }");
+				}
+				out.println(r == results.size() - 1 ? "    }" : "    },");
+			}
+			out.println("]");
+			if (out.checkError())
+				throw new IOException("Error while writing " + file);
+		}
+	}
+
+	/**
+	 * Returns a number as a JSON value.  JSON has no NaN, so NaN is
+	 * written as the string "NaN", as JMH does.
+	 */
+	private static String number(double x) {
+		return Double.isNaN(x) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", x);
+	}
+
+	private static String format(double x) {
+		return x == (long)x ? "" + (long)x : "" + x;
+	}
+
+}
@@ -0,0 +1,372 @@
+package textcollage;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Collects measurements of how the program spends its time: the time
+ * taken by each repaint of the drawing area, as a histogram; the number
+ * of items that were drawn and that were skipped because they were
+ * outside the area being drawn; the time taken to draw an item; the
+ * number of records and bytes per second that are loaded and saved; and
+ * the size of the collage that is being shown, with an estimate of the
+ * memory that it uses.  The counts of the text metrics cache and the item
+ * image cache are reported as well.
+ * <p>A single object, returned by getShared(), is used by the whole
+ * program.  It can be registered as a JMX MBean with registerMBean(), and
+ * a DrawTextPanel can show a summary on top of its drawing area.  Nothing
+ * is recorded unless the metrics are enabled, either with setEnabled()
+ * or with the system property textcollage.metrics; while they are
+ * disabled, code that records a measurement only reads one volatile
+ * field, so the cost is close to zero.  The methods can be called by
+ * several threads.
+ */
+public class RenderMetrics implements RenderMetricsMBean {
+
+	/**
+	 * The name under which registerMBean() registers the shared object.
+	 */
+	public static final String MBEAN_NAME = "textcollage:type=RenderMetrics";
+
+	/**
+	 * The number of buckets in the paint time histogram.  Bucket i holds
+	 * the times up to 0.25*2^i milliseconds, except for the last bucket,
+	 * which has no upper bound.
+	 */
+	private static final int BUCKETS = 14;
+
+	private static final RenderMetrics shared = new RenderMetrics(Boolean.getBoolean("textcollage.metrics"));
+
+	/**
+	 * Returns the object that is used by the whole program.
+	 */
+	public static RenderMetrics getShared() {
+		return shared;
+	}
+
+	/**
+	 * Register the shared object with the platform MBean server, so that
+	 * it can be seen by JMX clients.  Errors are ignored, since the metrics
+	 * are not essential to the program; false is returned in that case.
+	 */
+	public static boolean registerMBean() {
+		try {
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(shared, name);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	private volatile boolean enabled;
+
+	private final AtomicLongArray paintHistogram = new AtomicLongArray(BUCKETS);
+	private final LongAdder paintCount = new LongAdder();
+	private final LongAdder paintNanos = new LongAdder();
+	private final AtomicLong paintMaxNanos = new AtomicLong();
+
+	private final LongAdder itemsDrawn = new LongAdder();
+	private final LongAdder itemsCulled = new LongAdder();
+	private final LongAdder itemDraws = new LongAdder();  // calls to DrawTextItem.draw() that were timed
+	private final LongAdder itemDrawNanos = new LongAdder();
+
+	private final LongAdder recordsLoaded = new LongAdder();
+	private final LongAdder bytesLoaded = new LongAdder();
+	private final LongAdder loadNanos = new LongAdder();
+	private final LongAdder recordsSaved = new LongAdder();
+	private final LongAdder bytesSaved = new LongAdder();
+	private final LongAdder saveNanos = new LongAdder();
+
+	private volatile int modelItems;
+	private volatile long modelHeapBytes;
+	private volatile SpriteCache spriteCache;
+
+	/**
+	 * Create an object that is initially enabled or disabled.  Most code
+	 * should use getShared() instead.
+	 */
+	public RenderMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Set all counts to zero.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			paintHistogram.set(i, 0);
+		for (LongAdder a : new LongAdder[] { paintCount, paintNanos, itemsDrawn, itemsCulled, itemDraws,
+				itemDrawNanos, recordsLoaded, bytesLoaded, loadNanos, recordsSaved, bytesSaved, saveNanos })
+			a.reset();
+		paintMaxNanos.set(0);
+	}
+
+	/**
+	 * Record the time taken by one repaint of a drawing area.
+	 */
+	public void paintDone(long nanos) {
+		if (!enabled)
+			return;
+		long quarterMillis = nanos / 250000;
+		int bucket = quarterMillis == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(quarterMillis));
+		paintHistogram.incrementAndGet(bucket);
+		paintCount.increment();
+		paintNanos.add(nanos);
+		paintMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Record that some items were drawn and that others were not drawn
+	 * because they were outside the area being drawn.
+	 */
+	public void itemsDrawn(int drawn, int culled) {
+		if (!enabled)
+			return;
+		itemsDrawn.add(drawn);
+		itemsCulled.add(culled);
+	}
+
+	/**
+	 * Record the time taken by one call to DrawTextItem.draw().
+	 */
+	public void itemDrawDone(long nanos) {
+		if (!enabled)
+			return;
+		itemDraws.increment();
+		itemDrawNanos.add(nanos);
+	}
+
+	/**
+	 * Record that a collage file was loaded.
+	 */
+	public void loadDone(long records, long bytes, long nanos) {
+		if (!enabled)
+			return;
+		recordsLoaded.add(records);
+		bytesLoaded.add(bytes);
+		loadNanos.add(nanos);
+	}
+
+	/**
+	 * Record that a collage file was saved.
+	 */
+	public void saveDone(long records, long bytes, long nanos) {
+		if (!enabled)
+			return;
+		recordsSaved.add(records);
+		bytesSaved.add(bytes);
+		saveNanos.add(nanos);
+	}
+
+	/**
+	 * Record the size of the collage that is being shown.
+	 * @param items the number of items
+	 * @param heapBytes an estimate of the memory used by the items
+	 */
+	public void setModelSize(int items, long heapBytes) {
+		modelItems = items;
+		modelHeapBytes = heapBytes;
+	}
+
+	/**
+	 * Set the item image cache whose counts are reported.  Can be null.
+	 */
+	public void setSpriteCache(SpriteCache cache) {
+		spriteCache = cache;
+	}
+
+	public long getPaintCount() {
+		return paintCount.sum();
+	}
+
+	public double getPaintMeanMillis() {
+		long count = paintCount.sum();
+		return count == 0 ? 0 : paintNanos.sum() / 1e6 / count;
+	}
+
+	public double getPaintMaxMillis() {
+		return paintMaxNanos.get() / 1e6;
+	}
+
+	public double getPaintP50Millis() {
+		return paintPercentile(0.50);
+	}
+
+	public double getPaintP90Millis() {
+		return paintPercentile(0.90);
+	}
+
+	public double getPaintP99Millis() {
+		return paintPercentile(0.99);
+	}
+
+	/**
+	 * Returns the upper bound of the histogram bucket that contains a given
+	 * fraction of the paint times, or the maximum time for the last bucket.
+	 */
+	private double paintPercentile(double fraction) {
+		long[] histogram = getPaintHistogram();
+		long total = 0;
+		for (long n : histogram)
+			total += n;
+		if (total == 0)
+			return 0;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += histogram[i];
+			if (seen >= fraction * total)
+				return Math.min(0.25 * (1 << i), getPaintMaxMillis());
+		}
+		return getPaintMaxMillis();
+	}
+
+	/**
+	 * Returns the number of paint times in each bucket of the histogram.
+	 * The bounds of the buckets are given by getPaintHistogramBuckets().
+	 */
+	public long[] getPaintHistogram() {
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			histogram[i] = paintHistogram.get(i);
+		return histogram;
+	}
+
+	/**
+	 * Returns a description, such as "<= 0.5 ms", of each bucket of the histogram.
+	 */
+	public String[] getPaintHistogramBuckets() {
+		String[] names = new String[BUCKETS];
+		for (int i = 0; i < BUCKETS - 1; i++)
+			names[i] = "<= " + formatMillis(0.25 * (1 << i)) + " ms";
+		names[BUCKETS - 1] = "> " + formatMillis(0.25 * (1 << (BUCKETS - 2))) + " ms";
+		return names;
+	}
+
+	private static String formatMillis(double ms) {
+		return ms == (long)ms ? "" + (long)ms : "" + ms;
+	}
+
+	public long getItemsDrawn() {
+		return itemsDrawn.sum();
+	}
+
+	public long getItemsCulled() {
+		return itemsCulled.sum();
+	}
+
+	public double getItemDrawMeanMicros() {
+		long count = itemDraws.sum();
+		return count == 0 ? 0 : itemDrawNanos.sum() / 1e3 / count;
+	}
+
+	public long getRecordsLoaded() {
+		return recordsLoaded.sum();
+	}
+
+	public long getBytesLoaded() {
+		return bytesLoaded.sum();
+	}
+
+	public double getLoadRecordsPerSecond() {
+		return perSecond(recordsLoaded, loadNanos);
+	}
+
+	public double getLoadBytesPerSecond() {
+		return perSecond(bytesLoaded, loadNanos);
+	}
+
+	public long getRecordsSaved() {
+		return recordsSaved.sum();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	public double getSaveRecordsPerSecond() {
+		return perSecond(recordsSaved, saveNanos);
+	}
+
+	public double getSaveBytesPerSecond() {
+		return perSecond(bytesSaved, saveNanos);
+	}
+
+	private static double perSecond(LongAdder count, LongAdder nanos) {
+		long n = nanos.sum();
+		return n == 0 ? 0 : count.sum() * 1e9 / n;
+	}
+
+	public int getModelItems() {
+		return modelItems;
+	}
+
+	public long getModelHeapBytes() {
+		return modelHeapBytes;
+	}
+
+	public long getTextMetricsCacheHits() {
+		return TextMetricsCache.getTotalHits();
+	}
+
+	public long getTextMetricsCacheMisses() {
+		return TextMetricsCache.getTotalMisses();
+	}
+
+	public long getSpriteCacheHits() {
+		SpriteCache cache = spriteCache;
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	public long getSpriteCacheMisses() {
+		SpriteCache cache = spriteCache;
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	public long getSpriteCacheBytes() {
+		SpriteCache cache = spriteCache;
+		return cache == null ? 0 : cache.getBytesUsed();
+	}
+
+	/**
+	 * Returns a few lines of text that summarize the metrics, for showing
+	 * on top of the drawing area.
+	 */
+	public List<String> getSummary() {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add(String.format(Locale.ROOT, "paint: %d, mean %.1f ms, p50 %.2f, p90 %.2f, p99 %.2f, max %.1f",
+				getPaintCount(), getPaintMeanMillis(), getPaintP50Millis(), getPaintP90Millis(),
+				getPaintP99Millis(), getPaintMaxMillis()));
+		lines.add(String.format(Locale.ROOT, "items drawn %d, culled %d, %.1f us/item",
+				getItemsDrawn(), getItemsCulled(), getItemDrawMeanMicros()));
+		lines.add(String.format(Locale.ROOT, "model: %d items, about %d KB",
+				getModelItems(), getModelHeapBytes() / 1024));
+		lines.add(String.format(Locale.ROOT, "load: %d records, %.0f rec/s, %.1f MB/s",
+				getRecordsLoaded(), getLoadRecordsPerSecond(), getLoadBytesPerSecond() / 1048576.0));
+		lines.add(String.format(Locale.ROOT, "save: %d records, %.0f rec/s, %.1f MB/s",
+				getRecordsSaved(), getSaveRecordsPerSecond(), getSaveBytesPerSecond() / 1048576.0));
+		lines.add(String.format(Locale.ROOT, "text cache: %d hits, %d misses; sprites: %d hits, %d misses, %.1f MB",
+				getTextMetricsCacheHits(), getTextMetricsCacheMisses(), getSpriteCacheHits(),
+				getSpriteCacheMisses(), getSpriteCacheBytes() / 1048576.0));
+		return lines;
+	}
+
+}
@@ -0,0 +1,46 @@
+package textcollage;
+
+
+/**
+ * The management interface of RenderMetrics, through which the metrics
+ * can be read with a JMX client such as jconsole.  Times are in
+ * milliseconds unless the name of the attribute says otherwise.
+ */
+public interface RenderMetricsMBean {
+
+	boolean isEnabled();
+	void setEnabled(boolean enabled);
+	void reset();
+
+	long getPaintCount();
+	double getPaintMeanMillis();
+	double getPaintMaxMillis();
+	double getPaintP50Millis();
+	double getPaintP90Millis();
+	double getPaintP99Millis();
+	long[] getPaintHistogram();
+	String[] getPaintHistogramBuckets();
+
+	long getItemsDrawn();
+	long getItemsCulled();
+	double getItemDrawMeanMicros();
+
+	long getRecordsLoaded();
+	long getBytesLoaded();
+	double getLoadRecordsPerSecond();
+	double getLoadBytesPerSecond();
+	long getRecordsSaved();
+	long getBytesSaved();
+	double getSaveRecordsPerSecond();
+	double getSaveBytesPerSecond();
+
+	int getModelItems();
+	long getModelHeapBytes();
+
+	long getTextMetricsCacheHits();
+	long getTextMetricsCacheMisses();
+	long getSpriteCacheHits();
+	long getSpriteCacheMisses();
+	long getSpriteCacheBytes();
+
+}
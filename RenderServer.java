@@ -0,0 +1,505 @@
+package textcollage;
+
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A headless main program that renders collages to PNG images on request,
+ * using the HTTP server that is built into the JDK.  The server listens
+ * only on the loopback address, so it can be used and load-tested by
+ * other programs on the same computer but not from the network.
+ * <p>A collage is rendered by sending it, in the "New textImage" text
+ * format, as the body of a POST request to /render.  The response is a
+ * PNG image the size of the drawing area of a DrawTextPanel.  GET /stats
+ * returns counts of requests, renders and cache hits as plain text.
+ * <p>Each request is handled on a virtual thread when the JVM has them
+ * (Java 21 and later), and otherwise on a thread from a fixed pool.  The
+ * images that collages are drawn into are kept in a bounded pool and
+ * reused, so the number of renders that run at the same time, and the
+ * memory that they use, is limited no matter how many requests arrive.
+ * A request that can't get an image within a few seconds gets a 503 error.
+ * <p>The PNG files are cached by the SHA-256 hash of the request body, so
+ * a collage that has already been rendered is sent again without drawing
+ * it, and identical requests that arrive together are rendered once.  The
+ * hash is also sent as the ETag of the response.  The cache discards the
+ * least recently used images when it reaches its size limit.
+ * <p>With the -load option, the program is instead a client that sends a
+ * collage file to a running server many times from several threads, and
+ * prints the throughput and latency.
+ * <p>Usage:  java textcollage.RenderServer [-port n] [-images n] [-threads n] [-cache MB]
+ * <br>or:  java textcollage.RenderServer -load file [-port n] [-requests n] [-threads n]
+ */
+public class RenderServer {
+
+	private static final String USAGE = "Usage:  java textcollage.RenderServer [-port n] [-images n] [-threads n] "
+			+ "[-cache MB]\n   or:  java textcollage.RenderServer -load file [-port n] [-requests n] [-threads n]";
+
+	/**
+	 * The port that is used if none is given.
+	 */
+	public static final int DEFAULT_PORT = 8765;
+
+	/**
+	 * The largest request body that is accepted.
+	 */
+	public static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+	private static final long IMAGE_WAIT_SECONDS = 10;  // how long a request waits for a free image
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int port = DEFAULT_PORT;
+		int processors = Runtime.getRuntime().availableProcessors();
+		int images = processors;
+		int threads = 0;  // zero if not given
+		long cacheMB = 64;
+		File loadFile = null;
+		int requests = 1000;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-images"))
+					images = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-cache"))
+					cacheMB = Long.parseLong(args[++i]);
+				else if (args[i].equals("-load"))
+					loadFile = new File(args[++i]);
+				else if (args[i].equals("-requests"))
+					requests = Integer.parseInt(args[++i]);
+				else
+					throw new IllegalArgumentException();
+			}
+		}
+		catch (RuntimeException e) {
+			images = 0;
+		}
+		if (port < 0 || port > 65535 || images < 1 || threads < 0 || cacheMB < 0 || requests < 1) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		try {
+			if (loadFile != null) {
+				loadTest(port, loadFile, requests, threads > 0 ? threads : 4 * processors);
+				return;
+			}
+			RenderServer server = new RenderServer(port, images, threads > 0 ? threads : 4 * processors,
+					cacheMB * 1024 * 1024);
+			server.start();
+			System.out.println("Rendering collages at http://localhost:" + server.getPort() + "/render ("
+					+ (server.usesVirtualThreads ? "virtual threads" : "thread pool") + ", "
+					+ images + " images, " + cacheMB + " MB cache)");
+		}
+		catch (IOException e) {
+			System.err.println("Error: " + e);
+			System.exit(2);
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final boolean usesVirtualThreads;
+	private final BlockingQueue<BufferedImage> freeImages;
+	private final AtomicInteger imagesCreated = new AtomicInteger();
+	private final int maxImages;
+	private final ResultCache cache;
+	private final ConcurrentHashMap<String,CompletableFuture<byte[]>> rendering =
+			new ConcurrentHashMap<String,CompletableFuture<byte[]>>();  // renders in progress, by hash
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong renderCount = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong sharedRenders = new AtomicLong();  // requests that waited for an identical render
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Create a server on the loopback address.  The server does not accept
+	 * requests until start() is called.
+	 * @param port the port number, or 0 to use any free port
+	 * @param images the largest number of images that collages are drawn
+	 *   into, which is the number of collages that can be drawn at once
+	 * @param threads the number of request threads, if virtual threads
+	 *   are not available
+	 * @param cacheBytes the largest total size of the cached PNG files
+	 * @throws IOException if the port can't be used
+	 */
+	public RenderServer(int port, int images, int threads, long cacheBytes) throws IOException {
+		if (images < 1 || threads < 1)
+			throw new IllegalArgumentException("The numbers of images and threads must be positive.");
+		maxImages = images;
+		freeImages = new ArrayBlockingQueue<BufferedImage>(images);
+		cache = new ResultCache(cacheBytes);
+		ExecutorService virtual = newVirtualThreadExecutor();
+		usesVirtualThreads = virtual != null;
+		executor = virtual != null ? virtual : Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(executor);
+		server.createContext("/render", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleRender(exchange);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "text/plain; charset=utf-8", getStats().getBytes(StandardCharsets.UTF_8));
+			}
+		});
+	}
+
+	/**
+	 * Start accepting requests, on a background thread.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop accepting requests, wait up to a given number of seconds for
+	 * the requests that are being handled, then stop the request threads.
+	 */
+	public void stop(int seconds) {
+		server.stop(seconds);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * returns the port that the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns a few lines of text with the numbers of requests, renders,
+	 * cache hits and failures so far, and the size of the cache.
+	 */
+	public String getStats() {
+		return "requests: " + requestCount.get() + "\n"
+				+ "renders: " + renderCount.get() + "\n"
+				+ "cache hits: " + cacheHits.get() + "\n"
+				+ "shared renders: " + sharedRenders.get() + "\n"
+				+ "failures: " + failures.get() + "\n"
+				+ "cached images: " + cache.size() + " (" + cache.bytes() + " bytes)\n"
+				+ "render images: " + imagesCreated.get() + " of " + maxImages + "\n"
+				+ "virtual threads: " + usesVirtualThreads + "\n";
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new virtual thread, or
+	 * null if this JVM does not have virtual threads.  The method is looked
+	 * up by reflection so that the program still compiles and runs on
+	 * versions of Java before 21.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;  // no such method, or virtual threads are a preview feature that is not enabled
+		}
+	}
+
+	/**
+	 * Handle a request to /render: read the collage, find or make its
+	 * image, and send the PNG.
+	 */
+	private void handleRender(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				sendError(exchange, 405, "Send the collage with POST.");
+				return;
+			}
+			byte[] body = readBody(exchange.getRequestBody());
+			if (body == null) {
+				sendError(exchange, 413, "The collage is larger than " + MAX_BODY_BYTES + " bytes.");
+				return;
+			}
+			String hash = hash(body);
+			String etag = "\"" + hash + "\"";
+			exchange.getResponseHeaders().set("ETag", etag);
+			byte[] png = cache.get(hash);
+			if (png != null) {
+				cacheHits.incrementAndGet();
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+				}
+				else
+					send(exchange, 200, "image/png", png);
+				return;
+			}
+			CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+			CompletableFuture<byte[]> other = rendering.putIfAbsent(hash, result);
+			if (other != null) {
+				sharedRenders.incrementAndGet();
+				png = other.get();
+			}
+			else {
+				try {
+					png = render(body);
+					cache.put(hash, png);
+					result.complete(png);
+				}
+				catch (Exception e) {
+					result.completeExceptionally(e);
+					throw e;
+				}
+				finally {
+					rendering.remove(hash);
+				}
+			}
+			send(exchange, 200, "image/png", png);
+		}
+		catch (ExecutionException e) {
+			reportFailure(exchange, e.getCause());
+		}
+		catch (Exception e) {
+			reportFailure(exchange, e);
+		}
+	}
+
+	/**
+	 * Send the error response for an exception that occurred while handling a request.
+	 */
+	private void reportFailure(HttpExchange exchange, Throwable e) throws IOException {
+		failures.incrementAndGet();
+		if (e instanceof IOException)
+			sendError(exchange, 400, "The collage could not be read.\nError: " + e.getMessage());
+		else if (e instanceof ServerBusyException)
+			sendError(exchange, 503, e.getMessage());
+		else
+			sendError(exchange, 500, "The collage could not be rendered.\nError: " + e);
+	}
+
+	/**
+	 * Thrown when no image is free to draw a collage in.
+	 */
+	private static class ServerBusyException extends Exception {
+		private static final long serialVersionUID = 1L;
+		ServerBusyException() {
+			super("The server is too busy to render the collage; try again later.");
+		}
+	}
+
+	/**
+	 * Draw a collage in one of the pooled images and return it as a PNG file.
+	 * @throws IOException if the collage can't be read
+	 * @throws ServerBusyException if no image becomes free in time
+	 */
+	private byte[] render(byte[] body) throws IOException, ServerBusyException, InterruptedException {
+		Collage collage = CollageIO.readText(new ByteArrayInputStream(body), "request",
+				new ArrayList<DrawTextItem>());
+		BufferedImage image = takeImage();
+		try {
+			Graphics2D g2 = image.createGraphics();
+			try {
+				CollageRenderer.paint(g2, collage.getBackground(), collage.getItems(),
+						image.getWidth(), image.getHeight());
+			}
+			finally {
+				g2.dispose();
+			}
+			ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+			if (!ImageIO.write(image, "PNG", png))
+				throw new IllegalStateException("PNG format not supported (this shouldn't happen!).");
+			renderCount.incrementAndGet();
+			return png.toByteArray();
+		}
+		finally {
+			freeImages.add(image);
+		}
+	}
+
+	/**
+	 * Take a free image from the pool, creating one if fewer than maxImages
+	 * exist, or else waiting for one to be returned.
+	 */
+	private BufferedImage takeImage() throws ServerBusyException, InterruptedException {
+		BufferedImage image = freeImages.poll();
+		if (image != null)
+			return image;
+		if (imagesCreated.incrementAndGet() <= maxImages)
+			return new BufferedImage(CollageRenderer.DEFAULT_WIDTH, CollageRenderer.DEFAULT_HEIGHT,
+					BufferedImage.TYPE_INT_RGB);
+		imagesCreated.decrementAndGet();
+		image = freeImages.poll(IMAGE_WAIT_SECONDS, TimeUnit.SECONDS);
+		if (image == null)
+			throw new ServerBusyException();
+		return image;
+	}
+
+	/**
+	 * Read a request body, or return null if it is larger than MAX_BODY_BYTES.
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		try (InputStream body = in) {
+			byte[] bytes = body.readNBytes(MAX_BODY_BYTES + 1);
+			return bytes.length > MAX_BODY_BYTES ? null : bytes;
+		}
+	}
+
+	/**
+	 * Returns the SHA-256 hash of some bytes, as hexadecimal digits.
+	 */
+	private static String hash(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available (this shouldn't happen!).", e);
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The PNG files that have been made, keyed by the hash of the request
+	 * body, with a limit on their total size.  The least recently used
+	 * files are discarded first.
+	 */
+	private static class ResultCache {
+		private final long maxBytes;
+		private final LinkedHashMap<String,byte[]> entries = new LinkedHashMap<String,byte[]>(256, 0.75f, true);
+		private long bytesUsed;
+
+		ResultCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized byte[] get(String hash) {
+			return entries.get(hash);
+		}
+
+		synchronized void put(String hash, byte[] png) {
+			if (png.length > maxBytes)
+				return;
+			byte[] old = entries.put(hash, png);
+			if (old != null)
+				bytesUsed -= old.length;
+			bytesUsed += png.length;
+			Iterator<Map.Entry<String,byte[]>> iter = entries.entrySet().iterator();
+			while (bytesUsed > maxBytes && iter.hasNext()) {
+				bytesUsed -= iter.next().getValue().length;
+				iter.remove();
+			}
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized long bytes() {
+			return bytesUsed;
+		}
+	}
+
+	/**
+	 * Send a collage file to a server on this computer a number of times,
+	 * from a number of threads, and print the throughput and the latencies.
+	 * Every request has the same body, so after the first one, this
+	 * measures the speed of the cache and of the server itself.
+	 */
+	private static void loadTest(int port, File file, int requests, int threads) throws IOException {
+		final byte[] body = Files.readAllBytes(file.toPath());
+		final URI uri = URI.create("http://localhost:" + port + "/render");
+		final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(Executors.newFixedThreadPool(threads)).build();
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			pool.execute(new Runnable() {
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < latencies.length) {
+						long sent = System.nanoTime();
+						try {
+							HttpResponse<byte[]> response = client.send(
+									HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+									HttpResponse.BodyHandlers.ofByteArray());
+							if (response.statusCode() != 200)
+								errors.incrementAndGet();
+						}
+						catch (IOException | InterruptedException e) {
+							errors.incrementAndGet();
+						}
+						latencies[i] = System.nanoTime() - sent;
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Arrays.sort(latencies);
+		System.out.printf("%d requests (%d failed) in %.2f s with %d threads: %.1f requests/s%n",
+				requests, errors.get(), seconds, threads, requests / seconds);
+		System.out.printf("Latency: median %.2f ms, 99th percentile %.2f ms, max %.2f ms%n",
+				latencies[requests / 2] / 1e6, latencies[(int)(requests * 0.99)] / 1e6, latencies[requests - 1] / 1e6);
+		System.exit(errors.get() == 0 ? 0 : 2);
+	}
+
+}
@@ -0,0 +1,280 @@
+package textcollage;
+
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A SpatialIndex is a loose quadtree that stores a bounding rectangle for
+ * each of a set of items and can quickly find the items whose rectangles
+ * intersect a given area.  Items are identified by non-negative int ids,
+ * which are normally their positions in a list of items.  The ids returned
+ * by query() are sorted, so when the ids are list positions they come out
+ * in drawing (z) order.
+ * <p>The tree covers an unbounded coordinate space: the root grows as
+ * needed to contain new rectangles.  In a loose quadtree, each node accepts
+ * rectangles that fit inside its square expanded by half its size in each
+ * direction, so a rectangle that crosses a dividing line still goes down
+ * to a node that is about as big as the rectangle itself.
+ */
+public class SpatialIndex {
+
+	private static final int MAX_ENTRIES = 16;  // A leaf is split when it holds more entries than this.
+	private static final int MAX_DEPTH = 20;
+	private static final int MAX_SIZE = 1 << 30;  // The root stops growing at this size.
+
+	/**
+	 * A square region of the tree.  Entries are stored in the smallest node
+	 * whose loose bounds contain them.
+	 */
+	private static final class Node {
+		final int x, y, size;  // The node's square; its loose bounds extend size/2 past each side.
+		int depth;
+		Node[] children;  // null for a leaf; otherwise NW, NE, SW, SE.
+		int[] ids = new int[4];
+		int count;
+		Node(int x, int y, int size, int depth) {
+			this.x = x;
+			this.y = y;
+			this.size = size;
+			this.depth = depth;
+		}
+		boolean looseContains(Rectangle r) {
+			long half = size/2;
+			return r.x >= x - half && r.y >= y - half
+					&& (long)r.x + r.width <= x + size + half && (long)r.y + r.height <= y + size + half;
+		}
+		boolean looseIntersects(Rectangle r) {
+			long half = size/2;
+			return (long)r.x + r.width > x - half && (long)r.y + r.height > y - half
+					&& r.x < x + size + half && r.y < y + size + half;
+		}
+		void add(int id) {
+			if (count == ids.length)
+				ids = Arrays.copyOf(ids, 2*count);
+			ids[count++] = id;
+		}
+		void remove(int id) {
+			for (int i = 0; i < count; i++)
+				if (ids[i] == id) {
+					ids[i] = ids[--count];
+					return;
+				}
+		}
+	}
+
+	private Node root;
+	private Rectangle[] bounds = new Rectangle[64];  // bounds[id] is the rectangle for id, or null.
+	private Node[] nodeOf = new Node[64];  // nodeOf[id] is the node where id is stored.
+	private int size;  // The number of ids in the index.
+
+	/**
+	 * Create an empty index.
+	 */
+	public SpatialIndex() {
+		clear();
+	}
+
+	/**
+	 * Remove all ids from the index.
+	 */
+	public void clear() {
+		root = new Node(0, 0, 1024, 0);
+		Arrays.fill(bounds, null);
+		Arrays.fill(nodeOf, null);
+		size = 0;
+	}
+
+	/**
+	 * returns the number of ids in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the rectangle that is stored for an id, or null if the
+	 * id is not in the index.  The rectangle must not be modified.
+	 */
+	public Rectangle getBounds(int id) {
+		return id < bounds.length ? bounds[id] : null;
+	}
+
+	/**
+	 * Add an id to the index with the given bounding rectangle.  If the id
+	 * is already in the index, its rectangle is replaced.
+	 * @throws IllegalArgumentException if id is negative
+	 */
+	public void insert(int id, Rectangle r) {
+		if (id < 0)
+			throw new IllegalArgumentException("Id can't be negative.");
+		if (id < bounds.length && bounds[id] != null)
+			remove(id);
+		if (id >= bounds.length) {
+			int newLength = Math.max(2*bounds.length, id + 1);
+			bounds = Arrays.copyOf(bounds, newLength);
+			nodeOf = Arrays.copyOf(nodeOf, newLength);
+		}
+		r = new Rectangle(r);
+		bounds[id] = r;
+		while (!contains(root, r) && root.size < MAX_SIZE)
+			grow(r);
+		insert(root, id, r);
+		size++;
+	}
+
+	/**
+	 * Change the rectangle for an id that is in the index, or add
+	 * it if it is not.
+	 */
+	public void update(int id, Rectangle r) {
+		insert(id, r);
+	}
+
+	/**
+	 * Remove an id from the index.  Nothing is done if the id is not
+	 * in the index.
+	 */
+	public void remove(int id) {
+		if (id < 0 || id >= bounds.length || bounds[id] == null)
+			return;
+		nodeOf[id].remove(id);
+		nodeOf[id] = null;
+		bounds[id] = null;
+		size--;
+	}
+
+	/**
+	 * Returns the ids whose rectangles intersect a given area, in
+	 * increasing order.  If the area is null, all ids are returned.
+	 */
+	public int[] query(Rectangle area) {
+		int[] result = new int[16];
+		int count = 0;
+		Node[] stack = new Node[64];
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			Node node = stack[--top];
+			for (int i = 0; i < node.count; i++) {
+				int id = node.ids[i];
+				if (area == null || area.intersects(bounds[id])) {
+					if (count == result.length)
+						result = Arrays.copyOf(result, 2*count);
+					result[count++] = id;
+				}
+			}
+			if (node.children != null)
+				for (Node child : node.children)
+					if (area == null || child.looseIntersects(area)) {
+						if (top == stack.length)
+							stack = Arrays.copyOf(stack, 2*top);
+						stack[top++] = child;
+					}
+		}
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Tests whether a rectangle lies inside the square of a node (not its
+	 * loose bounds).  The root grows until this is true for every rectangle.
+	 */
+	private static boolean contains(Node node, Rectangle r) {
+		return r.x >= node.x && r.y >= node.y
+				&& (long)r.x + r.width <= (long)node.x + node.size
+				&& (long)r.y + r.height <= (long)node.y + node.size;
+	}
+
+	/**
+	 * Double the size of the root, in the direction of a rectangle that
+	 * lies outside it.  The old root becomes one of the new root's children.
+	 * Entries of the old root that don't fit in its loose bounds are moved
+	 * up to the new root.
+	 */
+	private void grow(Rectangle r) {
+		Node old = root;
+		int s = old.size;
+		int nx = r.x < old.x ? old.x - s : old.x;
+		int ny = r.y < old.y ? old.y - s : old.y;
+		root = new Node(nx, ny, 2*s, 0);
+		root.children = new Node[4];
+		for (int i = 0; i < 4; i++) {
+			int cx = nx + (i % 2) * s;
+			int cy = ny + (i / 2) * s;
+			if (cx == old.x && cy == old.y)
+				root.children[i] = old;
+			else
+				root.children[i] = new Node(cx, cy, s, 1);
+		}
+		renumberDepths(old, 1);
+		for (int i = old.count - 1; i >= 0; i--) {
+			int id = old.ids[i];
+			if (!old.looseContains(bounds[id])) {
+				old.remove(id);
+				root.add(id);
+				nodeOf[id] = root;
+			}
+		}
+	}
+
+	/**
+	 * Set the depth of a node and of all its descendants.
+	 */
+	private static void renumberDepths(Node node, int depth) {
+		node.depth = depth;
+		if (node.children != null)
+			for (Node child : node.children)
+				renumberDepths(child, depth + 1);
+	}
+
+	/**
+	 * Add an id to the subtree rooted at a node.
+	 */
+	private void insert(Node node, int id, Rectangle r) {
+		while (true) {
+			if (node.children == null) {
+				node.add(id);
+				nodeOf[id] = node;
+				if (node.count > MAX_ENTRIES && node.depth < MAX_DEPTH && node.size >= 2)
+					split(node);
+				return;
+			}
+			Node child = childFor(node, r);
+			if (!child.looseContains(r)) {
+				node.add(id);
+				nodeOf[id] = node;
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Returns the child of a node that contains the center of a rectangle.
+	 */
+	private static Node childFor(Node node, Rectangle r) {
+		int half = node.size/2;
+		long cx = (long)r.x + r.width/2;
+		long cy = (long)r.y + r.height/2;
+		int i = (cx >= node.x + half ? 1 : 0) + (cy >= node.y + half ? 2 : 0);
+		return node.children[i];
+	}
+
+	/**
+	 * Give a leaf four children and move its entries into them where they fit.
+	 */
+	private void split(Node node) {
+		int half = node.size/2;
+		node.children = new Node[4];
+		for (int i = 0; i < 4; i++)
+			node.children[i] = new Node(node.x + (i % 2) * half, node.y + (i / 2) * half,
+					half, node.depth + 1);
+		int[] ids = Arrays.copyOf(node.ids, node.count);
+		node.count = 0;
+		for (int id : ids)
+			insert(node, id, bounds[id]);
+	}
+
+}
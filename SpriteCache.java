@@ -0,0 +1,250 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A SpriteCache stores a pre-rendered, translucent image ("sprite") of
+ * DrawTextItems, so that an item can be painted by copying its image
+ * instead of measuring and rendering its string again.  Sprites are keyed
+ * by the visual properties of an item (string, font, colors, transparencies,
+ * border, magnification and rotation), but not by its position, so items
+ * that look the same share a single sprite.  The total size of the images
+ * is limited by a memory cap; when the cap is exceeded, the least recently
+ * used sprites are discarded.  Setting any visual property of a DrawTextItem
+ * invalidates its cached key, so the next paint uses the right sprite.
+ * <p>A SpriteCache can be shared by several threads.
+ */
+public class SpriteCache {
+
+	/**
+	 * The visual properties of an item that determine what its sprite looks
+	 * like.  The font and text color are the ones that are actually used,
+	 * which can come from the graphics context if the item does not
+	 * specify them.
+	 */
+	static final class Key {
+		private final String string;
+		private final Font font;
+		private final Color textColor;
+		private final Color background;
+		private final boolean border;
+		private final double rotationAngle;
+		private final double magnification;
+		private final double textTransparency;
+		private final double backgroundTransparency;
+		private final int hash;
+
+		Key(DrawTextItem item, Font defaultFont, Color defaultColor) {
+			StyleRegistry registry = StyleRegistry.getShared();
+			string = registry.intern(item.getString());
+			font = registry.intern(item.getFont() != null ? item.getFont() : defaultFont);
+			textColor = registry.intern(item.getTextColor() != null ? item.getTextColor() : defaultColor);
+			background = registry.intern(item.getBackground());
+			border = item.getBorder();
+			rotationAngle = item.getRotationAngle();
+			magnification = item.getMagnification();
+			textTransparency = item.getTextTransparency();
+			backgroundTransparency = background == null ? 0 : item.getBackgroundTransparency();
+			int h = string.hashCode();
+			h = 31*h + font.hashCode();
+			h = 31*h + textColor.hashCode();
+			h = 31*h + (background == null ? 0 : background.hashCode());
+			h = 31*h + (border ? 1 : 0);
+			h = 31*h + Double.hashCode(rotationAngle);
+			h = 31*h + Double.hashCode(magnification);
+			h = 31*h + Double.hashCode(textTransparency);
+			h = 31*h + Double.hashCode(backgroundTransparency);
+			hash = h;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key)obj;
+			return hash == k.hash && border == k.border
+					&& rotationAngle == k.rotationAngle && magnification == k.magnification
+					&& textTransparency == k.textTransparency
+					&& backgroundTransparency == k.backgroundTransparency
+					&& same(string, k.string) && same(font, k.font) && same(textColor, k.textColor)
+					&& same(background, k.background);
+		}
+
+		/**
+		 * Tests whether two values from the StyleRegistry are equal.  Values
+		 * that were shared by the registry are equal only if they are the
+		 * same object, so equals() is only called for values that the
+		 * registry could not take because it was full.
+		 */
+		private static boolean same(Object a, Object b) {
+			return a == b || (a != null && b != null && StyleRegistry.getShared().isFull() && a.equals(b));
+		}
+	}
+
+	/**
+	 * A pre-rendered item.  The item's center is at (-offsetX,-offsetY)
+	 * in the image's coordinates.
+	 */
+	private static final class Sprite {
+		final BufferedImage image;
+		final int offsetX, offsetY;
+		final long bytes;
+		Sprite(BufferedImage image, int offsetX, int offsetY) {
+			this.image = image;
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+			this.bytes = 4L * image.getWidth() * image.getHeight();
+		}
+	}
+
+	private final LinkedHashMap<Key,Sprite> sprites;  // In least-recently-used order.
+	private long maxBytes;  // Memory cap for the images in the cache.
+	private long bytesUsed;  // Total size of the images in the cache.
+	private long hits, misses;
+
+	/**
+	 * Create a cache whose images use at most maxBytes bytes of memory.
+	 * @throws IllegalArgumentException if maxBytes is negative
+	 */
+	public SpriteCache(long maxBytes) {
+		setMaxBytes(maxBytes);
+		sprites = new LinkedHashMap<Key,Sprite>(256, 0.75f, true);
+	}
+
+	/**
+	 * Draw an item in a graphics context, using the item's cached image
+	 * if there is one and creating it if not.  Items whose image would
+	 * be larger than a quarter of the memory cap are drawn directly.
+	 * The result is the same as calling item.draw(g) with antialiasing on.
+	 */
+	public void draw(Graphics g, DrawTextItem item) {
+		Key key = item.spriteKey;
+		if (key == null || item.getFont() == null || item.getTextColor() == null) {
+			key = new Key(item, g.getFont(), g.getColor());
+			if (item.getFont() != null && item.getTextColor() != null)
+				item.spriteKey = key;  // the key does not depend on g, so it can be kept
+		}
+		Sprite sprite;
+		synchronized (this) {
+			sprite = sprites.get(key);
+			if (sprite != null)
+				hits++;
+			else
+				misses++;
+		}
+		if (sprite == null) {
+			Rectangle r = item.getBounds(g, 0, 0);
+			if (4L * r.width * r.height > maxBytes / 4) {
+				item.draw(g);  // too large to cache, so no image is made for it
+				return;
+			}
+			sprite = createSprite(g, item, r);
+			synchronized (this) {
+				Sprite old = sprites.put(key, sprite);
+				if (old != null)
+					bytesUsed -= old.bytes;
+				bytesUsed += sprite.bytes;
+				evict();
+			}
+		}
+		g.drawImage(sprite.image, item.getX() - sprite.offsetX, item.getY() - sprite.offsetY, null);
+	}
+
+	/**
+	 * Render an item, centered at the origin, into a new translucent image.
+	 * @param r the bounds of the item when it is centered at the origin
+	 */
+	private static Sprite createSprite(Graphics g, DrawTextItem item, Rectangle r) {
+		BufferedImage image = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.setFont(g.getFont());
+		g2.setColor(g.getColor());
+		item.draw(g2, -r.x, -r.y);
+		g2.dispose();
+		return new Sprite(image, -r.x, -r.y);
+	}
+
+	/**
+	 * Discard least recently used sprites until the cache fits in its cap.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key,Sprite>> iter = sprites.entrySet().iterator();
+		while (bytesUsed > maxBytes && iter.hasNext()) {
+			bytesUsed -= iter.next().getValue().bytes;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Set the memory cap for the images in the cache.  If the cache is
+	 * now too large, the least recently used sprites are discarded.
+	 * @throws IllegalArgumentException if maxBytes is negative
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Memory cap can't be negative.");
+		this.maxBytes = maxBytes;
+		if (sprites != null)
+			evict();
+	}
+
+	/**
+	 * returns the memory cap for the images in the cache, in bytes
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * returns the total size of the images in the cache, in bytes
+	 */
+	public synchronized long getBytesUsed() {
+		return bytesUsed;
+	}
+
+	/**
+	 * returns the number of sprites in the cache
+	 */
+	public synchronized int size() {
+		return sprites.size();
+	}
+
+	/**
+	 * returns the number of draws that found their sprite in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * returns the number of draws that had to render a new sprite
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Discard all the sprites in the cache.
+	 */
+	public synchronized void clear() {
+		sprites.clear();
+		bytesUsed = 0;
+	}
+
+}
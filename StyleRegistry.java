@@ -0,0 +1,172 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A StyleRegistry keeps one shared copy of each font, color and string
+ * that is used by DrawTextItems, in the way that String.intern() does for
+ * strings.  The setters of DrawTextItem pass their values through the
+ * shared registry, so a collage with a million items but only a few dozen
+ * fonts and colors holds a few dozen Font and Color objects, not millions,
+ * and two items have the same font or color exactly when they refer to
+ * the same object, which is an O(1) test.
+ * <p>The registry also keeps the translucent versions of colors that are
+ * used to draw items with a transparency, so that drawing an item does
+ * not create new Color objects.
+ * <p>Each table holds at most MAX_ENTRIES values.  When a table is full,
+ * new values are returned without being shared, so a file with millions
+ * of different colors or strings can't make the tables grow without
+ * limit; it just gets less benefit from them.  The tables are never
+ * emptied.  The methods can be called by several threads.
+ */
+public class StyleRegistry {
+
+	/**
+	 * The largest number of values in each table.
+	 */
+	public static final int MAX_ENTRIES = 1 << 16;
+
+	private static final StyleRegistry shared = new StyleRegistry();
+
+	/**
+	 * Returns the registry that is used by DrawTextItem.
+	 */
+	public static StyleRegistry getShared() {
+		return shared;
+	}
+
+	private final ConcurrentHashMap<Font,Font> fonts = new ConcurrentHashMap<Font,Font>();
+	private final ConcurrentHashMap<Integer,Color> colors = new ConcurrentHashMap<Integer,Color>();
+	private final ConcurrentHashMap<String,String> strings = new ConcurrentHashMap<String,String>();
+	private final ConcurrentHashMap<Color,AtomicReferenceArray<Color>> translucentColors =
+			new ConcurrentHashMap<Color,AtomicReferenceArray<Color>>();
+	private final AtomicReferenceArray<Color> recentColors = new AtomicReferenceArray<Color>(1024);
+
+	/**
+	 * Returns the shared font that is equal to a given font.  If there is
+	 * none, the font becomes the shared one.  Returns null for null.
+	 */
+	public Font intern(Font font) {
+		if (font == null)
+			return null;
+		Font f = fonts.get(font);
+		if (f != null)
+			return f;
+		if (fonts.size() >= MAX_ENTRIES)
+			return font;
+		f = fonts.putIfAbsent(font, font);
+		return f != null ? f : font;
+	}
+
+	/**
+	 * Returns the shared color that is equal to a given color.  If there
+	 * is none, the color becomes the shared one.  Returns null for null.
+	 */
+	public Color intern(Color color) {
+		if (color == null)
+			return null;
+		Color c = colors.get(color.getRGB());
+		if (c != null)
+			return c;
+		if (colors.size() >= MAX_ENTRIES)
+			return color;
+		c = colors.putIfAbsent(color.getRGB(), color);
+		return c != null ? c : color;
+	}
+
+	/**
+	 * Returns the shared color with a given ARGB value, creating it if
+	 * there is none.  This avoids creating a Color when there already is one.
+	 * Recently used colors are looked up in a small table that is indexed
+	 * by the ARGB value, so that finding them does not box the value into
+	 * an Integer; this is called for every item that a PackedItemList draws.
+	 */
+	public Color color(int argb) {
+		int slot = (argb * 0x9E3779B9) >>> 22;  // the top 10 bits of a hash, for 1024 slots
+		Color c = recentColors.get(slot);
+		if (c != null && c.getRGB() == argb)
+			return c;
+		c = colors.get(argb);
+		if (c == null)
+			c = intern(new Color(argb, true));
+		recentColors.set(slot, c);
+		return c;
+	}
+
+	/**
+	 * Returns the shared string that is equal to a given string.  If there
+	 * is none, the string becomes the shared one.  Returns null for null.
+	 */
+	public String intern(String string) {
+		if (string == null)
+			return null;
+		String s = strings.get(string);
+		if (s != null)
+			return s;
+		if (strings.size() >= MAX_ENTRIES)
+			return string;
+		s = strings.putIfAbsent(string, string);
+		return s != null ? s : string;
+	}
+
+	/**
+	 * Returns a color with the red, green and blue of a given color and
+	 * an alpha of 255*(1-transparency), rounded down, as used by
+	 * DrawTextItem.draw().  The alpha of the given color is ignored.  The
+	 * 256 possible results for each color are created when they are first
+	 * needed and kept.
+	 */
+	public Color translucent(Color color, double transparency) {
+		int alpha = (int)(255*(1-transparency));
+		AtomicReferenceArray<Color> versions = translucentColors.get(color);
+		if (versions == null) {
+			if (translucentColors.size() >= MAX_ENTRIES)
+				return new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+			versions = new AtomicReferenceArray<Color>(256);
+			AtomicReferenceArray<Color> old = translucentColors.putIfAbsent(color, versions);
+			if (old != null)
+				versions = old;
+		}
+		Color c = versions.get(alpha);
+		if (c == null) {
+			// Two threads can both get here; either result is correct.
+			c = new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+			versions.set(alpha, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Returns true if a table has reached MAX_ENTRIES, so that values
+	 * that are equal might not be the same object.
+	 */
+	public boolean isFull() {
+		return fonts.size() >= MAX_ENTRIES || colors.size() >= MAX_ENTRIES || strings.size() >= MAX_ENTRIES;
+	}
+
+	/**
+	 * returns the number of shared fonts
+	 */
+	public int getFontCount() {
+		return fonts.size();
+	}
+
+	/**
+	 * returns the number of shared colors, not counting translucent versions
+	 */
+	public int getColorCount() {
+		return colors.size();
+	}
+
+	/**
+	 * returns the number of shared strings
+	 */
+	public int getStringCount() {
+		return strings.size();
+	}
+
+}
@@ -0,0 +1,287 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes a collage as an SVG document, in which each item is a group
+ * of vector elements instead of pixels.  Each item becomes a group that is
+ * translated to the item's position, scaled by its magnification and
+ * rotated by its rotation angle, containing a rectangle for its background,
+ * a rectangle for its border and a text element, placed and colored the
+ * same way that DrawTextItem.draw() places and colors them.  The document
+ * is written as the items are visited, through a buffered writer, so the
+ * memory that is used does not depend on the number of items.
+ * <p>The document can show any area of the collage, magnified by a scale
+ * factor, the way that the canvas of a DrawTextPanel shows its view: the
+ * items are put in a group that is scaled and translated, and items that
+ * are entirely outside the area are left out.
+ * <p>The sizes of the strings, which are needed to place the background
+ * rectangles, are measured with the fonts that Java uses, and are taken
+ * from the shared TextMetricsCache.  A program that displays the SVG file
+ * can use slightly different fonts, so the text might not be centered in
+ * its background exactly as it is on the screen.
+ */
+public class SvgExporter {
+
+	/**
+	 * Write a collage to a file as an SVG document of a given size.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @param background the background color of the drawing area
+	 * @param items the items to save, in drawing order.  Can be null.
+	 * @param width the width of the drawing area
+	 * @param height the height of the drawing area
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public static void write(File file, Color background, List<DrawTextItem> items, int width, int height)
+			throws IOException {
+		write(file, background, items, 1, 0, 0, width, height);
+	}
+
+	/**
+	 * Write an area of a collage to a file as an SVG document.  The point
+	 * (x,y) of the collage is at the top left corner of the document, and
+	 * the collage is magnified by the scale factor.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @param background the background color of the drawing area
+	 * @param items the items to save, in drawing order.  Can be null.
+	 * @param scale the magnification, which must be positive.
+	 * @param x the x-coordinate in the collage of the left edge of the document.
+	 * @param y the y-coordinate in the collage of the top edge of the document.
+	 * @param width the width of the document
+	 * @param height the height of the document
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public static void write(File file, Color background, List<DrawTextItem> items, double scale, 
+			double x, double y, int width, int height) throws IOException {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8), 1 << 16)) {
+			new SvgExporter(out).write(background, items, scale, x, y, width, height);
+		}
+	}
+
+	private final Writer out;
+	private final Graphics2D measureGraphics;  // for measuring strings, set up like the drawing area
+	private final StringBuilder buf = new StringBuilder(256);  // one item is built here, then written
+
+	/**
+	 * Create an exporter that writes to a given Writer.
+	 */
+	public SvgExporter(Writer out) {
+		this.out = out;
+		measureGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+		measureGraphics.setFont(CollageRenderer.DEFAULT_FONT);
+		measureGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+	}
+
+	/**
+	 * Write a complete SVG document for a collage.  The Writer is flushed
+	 * but not closed.
+	 */
+	public void write(Color background, List<DrawTextItem> items, int width, int height) throws IOException {
+		write(background, items, 1, 0, 0, width, height);
+	}
+
+	/**
+	 * Write a complete SVG document for an area of a collage, as described
+	 * for the static write() method.  The Writer is flushed but not closed.
+	 */
+	public void write(Color background, List<DrawTextItem> items, double scale, double x, double y, 
+			int width, int height) throws IOException {
+		if (!(scale > 0) || Double.isInfinite(scale))
+			throw new IllegalArgumentException("Scale must be positive.");
+		// The area of the collage that the document shows, with a margin for rounding.
+		int x0 = (int)Math.floor(x) - 2;
+		int x1 = (int)Math.ceil(x + width / scale) + 2;
+		int y0 = (int)Math.floor(y) - 2;
+		int y1 = (int)Math.ceil(y + height / scale) + 2;
+		Rectangle area = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+		boolean transformed = scale != 1 || x != 0 || y != 0;
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+				+ "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+		buf.setLength(0);
+		buf.append("<rect width=\"100%\" height=\"100%\"");
+		appendPaint("fill", background == null ? Color.LIGHT_GRAY : background, 0);
+		buf.append("/>\n");
+		if (transformed) {
+			buf.append("<g transform=\"scale(");
+			if (scale == (long)scale)
+				buf.append((long)scale);
+			else
+				buf.append(scale);  // not rounded, since it multiplies every coordinate
+			buf.append(") translate(");
+			appendNumber(-x);
+			buf.append(' ');
+			appendNumber(-y);
+			buf.append(")\">\n");
+		}
+		out.append(buf);
+		if (items != null)
+			for (DrawTextItem s : items)
+				if (s.getBounds(measureGraphics).intersects(area))
+					writeItem(s);
+		if (transformed)
+			out.write("</g>\n");
+		out.write("</svg>\n");
+		out.flush();
+	}
+
+	/**
+	 * Write the group of elements for one item.
+	 */
+	private void writeItem(DrawTextItem s) throws IOException {
+		String string = s.getString();
+		Font font = s.getFont();
+		if (font == null)
+			font = CollageRenderer.DEFAULT_FONT;
+		Color textColor = s.getTextColor();
+		if (textColor == null)
+			textColor = Color.BLACK;
+		Color background = s.getBackground();
+		double rotationAngle = s.getRotationAngle();
+		double magnification = s.getMagnification();
+		TextMetricsCache.Metrics fm = TextMetricsCache.getShared().get(measureGraphics, string, font);
+		int width = fm.width;
+		int height = fm.ascent + fm.descent;
+		buf.setLength(0);
+		buf.append("<g transform=\"translate(").append(s.getX()).append(' ').append(s.getY()).append(')');
+		if (magnification != 1) {
+			buf.append(" scale(");
+			appendNumber(magnification);
+			buf.append(')');
+		}
+		if (rotationAngle > 0) {
+			buf.append(" rotate(");
+			appendNumber(-rotationAngle);
+			buf.append(')');
+		}
+		buf.append("\">");
+		if (background != null) {
+			appendRect(width, height);
+			appendPaint("fill", background, s.getBackgroundTransparency());
+			buf.append("/>");
+		}
+		if (s.getBorder()) {
+			appendRect(width, height);
+			buf.append(" fill=\"none\"");
+			appendPaint("stroke", textColor, s.getTextTransparency());
+			if (magnification != 1) {  // as in draw(), the border is one pixel wide at any magnification
+				buf.append(" stroke-width=\"");
+				appendNumber(1 / magnification);
+				buf.append('"');
+			}
+			buf.append("/>");
+		}
+		buf.append("<text x=\"").append(-width/2).append("\" y=\"").append(-height/2 + fm.ascent).append('"');
+		appendFont(font);
+		appendPaint("fill", textColor, s.getTextTransparency());
+		buf.append(" xml:space=\"preserve\">");
+		appendEscaped(string);
+		buf.append("</text></g>\n");
+		out.append(buf);
+	}
+
+	/**
+	 * Append the start of a rect element for the background or border of
+	 * an item, with the same position and size as in DrawTextItem.draw().
+	 */
+	private void appendRect(int width, int height) {
+		buf.append("<rect x=\"").append(-width/2 - 3).append("\" y=\"").append(-height/2 - 3)
+			.append("\" width=\"").append(width + 6).append("\" height=\"").append(height + 6).append('"');
+	}
+
+	/**
+	 * Append a fill or stroke attribute, and an opacity attribute if the
+	 * color is not opaque.  As in DrawTextItem.draw(), a non-zero
+	 * transparency replaces the color's own alpha value.
+	 */
+	private void appendPaint(String attribute, Color c, double transparency) {
+		buf.append(' ').append(attribute).append("=\"#");
+		String hex = Integer.toHexString(c.getRGB() & 0xFFFFFF);
+		for (int i = hex.length(); i < 6; i++)
+			buf.append('0');
+		buf.append(hex).append('"');
+		int alpha = transparency == 0 ? c.getAlpha() : (int)(255*(1-transparency));
+		if (alpha < 255) {
+			buf.append(' ').append(attribute).append("-opacity=\"");
+			appendNumber(alpha / 255.0);
+			buf.append('"');
+		}
+	}
+
+	/**
+	 * Append the font attributes for a font.  Java's logical font names are
+	 * translated to the generic CSS font families.
+	 */
+	private void appendFont(Font font) {
+		String family = font.getFamily();
+		String name = font.getName();
+		if (name.equalsIgnoreCase(Font.SERIF))
+			family = "serif";
+		else if (name.equalsIgnoreCase(Font.SANS_SERIF) || name.equalsIgnoreCase(Font.DIALOG))
+			family = "sans-serif";
+		else if (name.equalsIgnoreCase(Font.MONOSPACED) || name.equalsIgnoreCase(Font.DIALOG_INPUT))
+			family = "monospace";
+		else
+			family = "'" + family.replace("'", "") + "'";
+		buf.append(" font-family=\"");
+		appendEscaped(family);
+		buf.append("\" font-size=\"");
+		appendNumber(font.getSize2D());
+		buf.append('"');
+		if (font.isBold())
+			buf.append(" font-weight=\"bold\"");
+		if (font.isItalic())
+			buf.append(" font-style=\"italic\"");
+	}
+
+	/**
+	 * Append a number with at most three digits after the decimal point,
+	 * and none if it is a whole number.
+	 */
+	private void appendNumber(double x) {
+		double rounded = Math.round(x * 1000) / 1000.0;
+		if (rounded == (long)rounded)
+			buf.append((long)rounded);
+		else
+			buf.append(rounded);
+	}
+
+	/**
+	 * Append a string with the characters that are special in XML replaced
+	 * by entities.  Control characters, which are not allowed in XML, are
+	 * replaced by spaces.
+	 */
+	private void appendEscaped(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '&':  buf.append("&amp;");  break;
+			case '<':  buf.append("&lt;");  break;
+			case '>':  buf.append("&gt;");  break;
+			case '"':  buf.append("&quot;");  break;
+			default:
+				if (ch < 0x20 && ch != '\t' || ch == 0xFFFE || ch == 0xFFFF)
+					buf.append(' ');
+				else
+					buf.append(ch);
+			}
+		}
+	}
+
+}
@@ -3,7 +3,13 @@ package textcollage;
 
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 
 /**
  * This main program simply shows a window that contains
@@ -12,17 +18,64 @@ import javax.swing.JFrame;
 public class TextCollage {
 	
 	public static void main(String[] args) {
+		RenderMetrics.registerMBean();  // so that the metrics can be seen with jconsole
 		JFrame frame = new JFrame("Picasso Text Collage");
 		DrawTextPanel panel = new DrawTextPanel();
 		frame.setContentPane( panel );
 		frame.setJMenuBar(panel.getMenuBar());
-		frame.setResizable(false);
+		frame.setResizable(true);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.pack();
 		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
 		frame.setLocation( (screenSize.width - frame.getWidth())/2, 
 				(screenSize.height - frame.getHeight())/2 );
 		frame.setVisible(true);
+		final CollageJournal journal = startAutosave(frame, panel);
+		if (journal != null) {
+			frame.addWindowListener(new WindowAdapter() {
+				public void windowClosing(WindowEvent evt) {
+					journal.discard();  // the program is ending normally, so nothing needs to be recovered
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Offer to recover a collage that was autosaved by a run of the program
+	 * that did not end normally, then start a journal that autosaves the
+	 * panel's collage.  Returns null if autosave can't be used.
+	 */
+	private static CollageJournal startAutosave(JFrame frame, DrawTextPanel panel) {
+		File dir = CollageJournal.defaultDirectory();
+		boolean recovered = false;
+		try {
+			Collage collage = CollageJournal.recover(dir);
+			if (collage != null && collage.getItems().size() > 0) {
+				int answer = JOptionPane.showConfirmDialog(frame,
+						"The program did not end normally the last time it was run.\n"
+						+ "Do you want to recover the collage that it was showing ("
+						+ collage.getItems().size() + " items)?",
+						"Recover Collage", JOptionPane.YES_NO_OPTION);
+				if (answer == JOptionPane.YES_OPTION) {
+					panel.openCollage(collage);
+					recovered = true;
+				}
+			}
+		}
+		catch (IOException e) {
+			JOptionPane.showMessageDialog(frame, 
+					"Sorry, the autosaved collage could not be recovered.\nError: " + e);
+		}
+		try {
+			CollageJournal journal = new CollageJournal(dir, recovered);
+			journal.attach(panel);
+			return journal;
+		}
+		catch (IOException e) {
+			JOptionPane.showMessageDialog(frame, 
+					"Autosave is not available, because the autosave files could not be written.\nError: " + e);
+			return null;
+		}
 	}
 
 }
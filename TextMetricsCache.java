@@ -0,0 +1,201 @@
+package textcollage;
+
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A TextMetricsCache remembers the measurements of strings and the glyphs
+ * that are used to draw them, so that DrawTextItem does not have to ask for
+ * font metrics and lay out its string again every time it is painted.
+ * Entries are keyed by the string, the font and the font render context
+ * of the graphics context (which includes its transform and its text
+ * antialiasing and fractional metrics settings).  The cache holds a limited
+ * number of entries and discards the least recently used ones.  Counts of
+ * hits and misses are kept so that the effectiveness of the cache can be
+ * checked.
+ * <p>Drawing a GlyphVector changes it, so one vector can't be drawn by
+ * two threads at the same time.  For that reason a cache is meant to be
+ * used by one thread, and getShared() returns a cache of the calling
+ * thread, which is used by all the DrawTextItems that are measured and
+ * drawn in that thread.  Threads that render at the same time, such as
+ * those of TiledRenderer, each have their own cache and never wait for
+ * each other.  The counts of hits and misses of all the threads' caches
+ * are also added up, for RenderMetrics.
+ */
+public class TextMetricsCache {
+
+	/**
+	 * The measurements and glyphs for a string drawn in a font.
+	 */
+	public static final class Metrics {
+		/** The width of the string, as given by FontMetrics.stringWidth(). */
+		public final int width;
+		/** The ascent of the font. */
+		public final int ascent;
+		/** The descent of the font. */
+		public final int descent;
+		/** The glyphs of the string, laid out with the cache key's render context; only the cache's own thread may draw them. */
+		public final GlyphVector glyphs;
+
+		Metrics(int width, int ascent, int descent, GlyphVector glyphs) {
+			this.width = width;
+			this.ascent = ascent;
+			this.descent = descent;
+			this.glyphs = glyphs;
+		}
+	}
+
+	private static final class Key {
+		String string;
+		Font font;
+		FontRenderContext frc;
+		int hash;
+		Key() {
+		}
+		Key(String string, Font font, FontRenderContext frc) {
+			set(string, font, frc);
+		}
+		Key set(String string, Font font, FontRenderContext frc) {
+			this.string = string;
+			this.font = font;
+			this.frc = frc;
+			hash = (string.hashCode()*31 + font.hashCode())*31 + frc.hashCode();
+			return this;
+		}
+		public int hashCode() {
+			return hash;
+		}
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key)obj;
+			return hash == k.hash && string.equals(k.string) && font.equals(k.font) && frc.equals(k.frc);
+		}
+	}
+
+	private static final int SHARED_SIZE = Integer.getInteger("textcollage.textMetricsCacheSize", 10000);
+
+	private static final ThreadLocal<TextMetricsCache> shared = new ThreadLocal<TextMetricsCache>() {
+		protected TextMetricsCache initialValue() {
+			return new TextMetricsCache(SHARED_SIZE);
+		}
+	};
+
+	private static final LongAdder totalHits = new LongAdder();
+	private static final LongAdder totalMisses = new LongAdder();
+
+	/**
+	 * Returns the cache that is used by DrawTextItem in the calling thread.
+	 * Each thread has a cache of its own.  Its size can be set with the
+	 * system property textcollage.textMetricsCacheSize.
+	 */
+	public static TextMetricsCache getShared() {
+		return shared.get();
+	}
+
+	/**
+	 * returns the number of lookups, in the caches of all threads, that found their entry
+	 */
+	public static long getTotalHits() {
+		return totalHits.sum();
+	}
+
+	/**
+	 * returns the number of lookups, in the caches of all threads, that had to compute a new entry
+	 */
+	public static long getTotalMisses() {
+		return totalMisses.sum();
+	}
+
+	private final int maxEntries;
+	private final LinkedHashMap<Key,Metrics> entries;
+	private final Key probe = new Key();  // reused for lookups, so that a hit creates no objects
+	private long hits, misses;
+
+	/**
+	 * Create a cache that holds at most maxEntries entries.
+	 * @throws IllegalArgumentException if maxEntries is less than 1
+	 */
+	public TextMetricsCache(int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("The cache must hold at least one entry.");
+		this.maxEntries = maxEntries;
+		entries = new LinkedHashMap<Key,Metrics>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<Key,Metrics> eldest) {
+				return size() > TextMetricsCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the metrics for a string drawn in a given font in a graphics
+	 * context, computing them if they are not in the cache.  The render
+	 * context of g, as it is when this method is called, is used both as
+	 * part of the key and for laying out the glyphs.
+	 */
+	public Metrics get(Graphics2D g, String string, Font font) {
+		return get(g, g.getFontRenderContext(), string, font);
+	}
+
+	/**
+	 * Returns the metrics for a string drawn in a given font with a given
+	 * render context, which is used instead of the render context of g.
+	 * g is only used to measure the string if it is not in the cache.
+	 * Finding an entry that is in the cache does not create any objects.
+	 */
+	public Metrics get(Graphics2D g, FontRenderContext frc, String string, Font font) {
+		Metrics m = entries.get(probe.set(string, font, frc));
+		if (m != null) {
+			hits++;
+			totalHits.increment();
+			return m;
+		}
+		misses++;
+		totalMisses.increment();
+		FontMetrics fm = g.getFontMetrics(font);
+		m = new Metrics(fm.stringWidth(string), fm.getAscent(), fm.getDescent(),
+				font.createGlyphVector(frc, string));
+		entries.put(new Key(string, font, frc), m);
+		return m;
+	}
+
+	/**
+	 * returns the number of lookups that found their entry in the cache
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * returns the number of lookups that had to compute a new entry
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * returns the number of entries in the cache
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Discard all entries and reset the hit and miss counts of this cache
+	 * to zero.  The totals of all caches are not changed.
+	 */
+	public void clear() {
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+}
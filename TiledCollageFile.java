@@ -0,0 +1,583 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A collage file in a tiled format that is meant for collages that are too
+ * big to load: it is opened by memory-mapping it, and single items, or the
+ * items in an area, can be read from it directly, without reading the rest
+ * of the file.  Opening a file takes the same short time whatever its size.
+ * DrawTextPanel shows such a file through a TiledItemList and a TiledIndex,
+ * which decode only the items that come into view.  A file can also be read
+ * from start to end, one item at a time, with openReader().
+ * <p>All numbers are big-endian.  The file consists of:
+ * <ul>
+ * <li>A 96-byte header: the magic bytes "TCLT", a 2-byte version number
+ *     (currently 1), 2 reserved bytes, the background color as an ARGB int,
+ *     the numbers of items, strings and fonts, the size of a tile, the
+ *     collage coordinates of the top left corner of the tile grid, the
+ *     numbers of columns and rows of tiles, 4 reserved bytes, and the
+ *     offsets in the file of the five sections that follow, as longs, then
+ *     the length of the file.
+ * <li>The font table: each distinct font as its name (int byte count and
+ *     UTF-8 bytes), its style as an int, and its size as a float.
+ * <li>The string table: the offset in the file of each distinct string, as
+ *     a long, and one more offset where the last string ends, followed by
+ *     the UTF-8 bytes of the strings.
+ * <li>The tile index: for each tile, row by row, the number of entries in
+ *     the tile lists before that tile's list, as a long, and one more for
+ *     the end of the last list.
+ * <li>The tile lists: for each tile, the numbers of the items whose bounds
+ *     intersect the tile, as ints, in increasing order.
+ * <li>One 76-byte record per item, in drawing order: the same fields as a
+ *     record of BinaryCollageIO, followed by the x, y, width and height of
+ *     the item's bounds, as they are computed by DrawTextItem.getBounds()
+ *     with the default font of CollageRenderer.
+ * </ul>
+ * Objects of this class are immutable, and can be used by several threads
+ * at once.
+ */
+public class TiledCollageFile {
+
+	/**
+	 * The first four bytes of every collage file in the tiled format.
+	 */
+	public static final byte[] MAGIC = { 'T', 'C', 'L', 'T' };
+
+	/**
+	 * The version of the format that is written by this class.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 96;
+	private static final int RECORD_SIZE = 76;
+	private static final int ITEM_HAS_TEXT_COLOR = 1, ITEM_HAS_BACKGROUND = 2, ITEM_BORDER = 4;
+	private static final int ITEMS_PER_TILE = 64;  // the average number of items in a tile, when writing
+	private static final int MIN_TILE_SIZE = 64;
+	private static final long MAX_TILES = 1 << 22;
+	private static final long MAX_MAPPING = 1 << 30;  // the largest single mapping of part of a file
+
+	private final File file;
+	private final String name;  // the name of the file, for error messages
+	private final Color background;
+	private final int itemCount;
+	private final Font[] fonts;
+	private final int tileSize, originX, originY, columns, rows;
+	private final Section stringOffsets, stringBytes, tileIndex, tileLists, records;
+
+	/**
+	 * Tests whether a file starts with the magic bytes of the tiled format.
+	 * Returns false if the file can't be read.
+	 */
+	public static boolean isTiledCollage(File file) {
+		if (!file.isFile())
+			return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(MAGIC.length);
+			while (buf.hasRemaining() && channel.read(buf) > 0)
+				;
+			return !buf.hasRemaining() && Arrays.equals(buf.array(), MAGIC);
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a collage to a file in the tiled format.  The items are
+	 * measured to find their bounds, which takes about as long as drawing
+	 * them, and the list is read twice.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @param background the background color of the drawing area
+	 * @param items the items to save, in drawing order.  Can be null.
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public static void write(File file, Color background, List<DrawTextItem> items) throws IOException {
+		long start = System.nanoTime();
+		int n = items == null ? 0 : items.size();
+		ArrayList<String> strings = new ArrayList<String>();
+		HashMap<String,Integer> stringNumbers = new HashMap<String,Integer>();
+		ArrayList<Font> fonts = new ArrayList<Font>();
+		HashMap<Font,Integer> fontNumbers = new HashMap<Font,Integer>();
+		int[] bounds = new int[4*n];  // x, y, width and height of each item
+		Graphics2D g2 = new BufferedImage(1,1,BufferedImage.TYPE_INT_ARGB).createGraphics();
+		g2.setFont(CollageRenderer.DEFAULT_FONT);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			DrawTextItem s = items.get(i);
+			if (!stringNumbers.containsKey(s.getString())) {
+				stringNumbers.put(s.getString(), strings.size());
+				strings.add(s.getString());
+			}
+			if (s.getFont() != null && !fontNumbers.containsKey(s.getFont())) {
+				fontNumbers.put(s.getFont(), fonts.size());
+				fonts.add(s.getFont());
+			}
+			Rectangle r = s.getBounds(g2);
+			bounds[4*i] = r.x;
+			bounds[4*i+1] = r.y;
+			bounds[4*i+2] = r.width;
+			bounds[4*i+3] = r.height;
+			minX = Math.min(minX, r.x);
+			minY = Math.min(minY, r.y);
+			maxX = Math.max(maxX, (long)r.x + r.width);
+			maxY = Math.max(maxY, (long)r.y + r.height);
+		}
+		g2.dispose();
+		if (n == 0)
+			minX = minY = maxX = maxY = 0;
+		// Choose a tile size that puts ITEMS_PER_TILE items in a tile, on average.
+		long width = Math.max(1, maxX - minX), height = Math.max(1, maxY - minY);
+		double tiles = Math.max(1, n / (double)ITEMS_PER_TILE);
+		long tileSize = Math.max(MIN_TILE_SIZE, (long)Math.ceil(Math.sqrt(width * (double)height / tiles)));
+		while (ceilDiv(width, tileSize) * ceilDiv(height, tileSize) > MAX_TILES)
+			tileSize *= 2;
+		if (tileSize > Integer.MAX_VALUE)
+			throw new IOException("The collage is too large for the tiled format.");
+		int columns = (int)ceilDiv(width, tileSize), rows = (int)ceilDiv(height, tileSize);
+		// Count the items in each tile, then list them; the lists are in increasing order.
+		long[] tileStart = new long[columns*rows + 1];
+		for (int i = 0; i < n; i++) {
+			int c0 = tileOf(bounds[4*i], minX, tileSize, columns);
+			int c1 = tileOf((long)bounds[4*i] + bounds[4*i+2] - 1, minX, tileSize, columns);
+			int r0 = tileOf(bounds[4*i+1], minY, tileSize, rows);
+			int r1 = tileOf((long)bounds[4*i+1] + bounds[4*i+3] - 1, minY, tileSize, rows);
+			for (int r = r0; r <= r1; r++)
+				for (int c = c0; c <= c1; c++)
+					tileStart[r*columns + c + 1]++;
+		}
+		for (int t = 0; t < columns*rows; t++)
+			tileStart[t+1] += tileStart[t];
+		if (tileStart[columns*rows] > Integer.MAX_VALUE - 8)
+			throw new IOException("The collage has too many items for the tiled format.");
+		int[] lists = new int[(int)tileStart[columns*rows]];
+		long[] fill = Arrays.copyOf(tileStart, columns*rows);
+		for (int i = 0; i < n; i++) {
+			int c0 = tileOf(bounds[4*i], minX, tileSize, columns);
+			int c1 = tileOf((long)bounds[4*i] + bounds[4*i+2] - 1, minX, tileSize, columns);
+			int r0 = tileOf(bounds[4*i+1], minY, tileSize, rows);
+			int r1 = tileOf((long)bounds[4*i+1] + bounds[4*i+3] - 1, minY, tileSize, rows);
+			for (int r = r0; r <= r1; r++)
+				for (int c = c0; c <= c1; c++)
+					lists[(int)fill[r*columns + c]++] = i;
+		}
+		byte[][] stringData = new byte[strings.size()][];
+		long stringLength = 0;
+		for (int i = 0; i < stringData.length; i++) {
+			stringData[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			stringLength += stringData[i].length;
+		}
+		byte[][] fontNames = new byte[fonts.size()][];
+		long fontLength = 0;
+		for (int i = 0; i < fontNames.length; i++) {
+			fontNames[i] = fonts.get(i).getName().getBytes(StandardCharsets.UTF_8);
+			fontLength += 12 + fontNames[i].length;
+		}
+		long fontsOffset = HEADER_SIZE;
+		long stringsOffset = fontsOffset + fontLength;
+		long stringDataOffset = stringsOffset + 8L*(strings.size() + 1);
+		long tileIndexOffset = stringDataOffset + stringLength;
+		long tileListsOffset = tileIndexOffset + 8L*(columns*rows + 1);
+		long recordsOffset = tileListsOffset + 4L*lists.length;
+		long fileLength = recordsOffset + (long)RECORD_SIZE*n;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 64*1024))) {
+			out.write(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(0);
+			out.writeInt(background.getRGB());
+			out.writeInt(n);
+			out.writeInt(strings.size());
+			out.writeInt(fonts.size());
+			out.writeInt((int)tileSize);
+			out.writeInt((int)minX);
+			out.writeInt((int)minY);
+			out.writeInt(columns);
+			out.writeInt(rows);
+			out.writeInt(0);
+			out.writeLong(fontsOffset);
+			out.writeLong(stringsOffset);
+			out.writeLong(tileIndexOffset);
+			out.writeLong(tileListsOffset);
+			out.writeLong(recordsOffset);
+			out.writeLong(fileLength);
+			for (int i = 0; i < fontNames.length; i++) {
+				out.writeInt(fontNames[i].length);
+				out.write(fontNames[i]);
+				out.writeInt(fonts.get(i).getStyle());
+				out.writeFloat(fonts.get(i).getSize2D());
+			}
+			long offset = stringDataOffset;
+			for (byte[] data : stringData) {
+				out.writeLong(offset);
+				offset += data.length;
+			}
+			out.writeLong(offset);
+			for (byte[] data : stringData)
+				out.write(data);
+			for (long t : tileStart)
+				out.writeLong(t);
+			for (int i : lists)
+				out.writeInt(i);
+			for (int i = 0; i < n; i++) {
+				DrawTextItem s = items.get(i);
+				Color textColor = s.getTextColor();
+				Color bg = s.getBackground();
+				out.writeInt(stringNumbers.get(s.getString()));
+				out.writeInt(s.getFont() == null ? -1 : fontNumbers.get(s.getFont()));
+				out.writeInt(s.getX());
+				out.writeInt(s.getY());
+				out.writeInt(textColor == null ? 0 : textColor.getRGB());
+				out.writeInt((textColor != null ? ITEM_HAS_TEXT_COLOR : 0)
+						| (bg != null ? ITEM_HAS_BACKGROUND : 0) | (s.getBorder() ? ITEM_BORDER : 0));
+				out.writeInt(bg == null ? 0 : bg.getRGB());
+				out.writeDouble(s.getRotationAngle());
+				out.writeDouble(s.getMagnification());
+				out.writeDouble(s.getTextTransparency());
+				out.writeDouble(s.getBackgroundTransparency());
+				for (int k = 0; k < 4; k++)
+					out.writeInt(bounds[4*i + k]);
+			}
+		}
+		RenderMetrics.getShared().saveDone(n, file.length(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Open a file in the tiled format.  Only the header and the font table
+	 * are read; the rest of the file is mapped into memory, and is read by
+	 * the operating system as it is used.
+	 * @throws IOException if the file can't be read or is not a valid
+	 *   tiled collage file.
+	 */
+	public static TiledCollageFile open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new TiledCollageFile(file, channel);  // the mappings stay valid after the channel is closed
+		}
+	}
+
+	private TiledCollageFile(File file, FileChannel channel) throws IOException {
+		this.file = file;
+		name = file.getName();
+		long length = channel.size();
+		if (length < HEADER_SIZE)
+			throw new IOException("This is not a tiled collage file.");
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (header.get(i) != MAGIC[i])
+				throw new IOException("This is not a tiled collage file.");
+		int version = header.getShort(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported tiled collage version " + version + ".");
+		background = new Color(header.getInt(8), true);
+		itemCount = header.getInt(12);
+		int stringCount = header.getInt(16);
+		int fontCount = header.getInt(20);
+		tileSize = header.getInt(24);
+		originX = header.getInt(28);
+		originY = header.getInt(32);
+		columns = header.getInt(36);
+		rows = header.getInt(40);
+		long fontsOffset = header.getLong(48);
+		long stringsOffset = header.getLong(56);
+		long tileIndexOffset = header.getLong(64);
+		long tileListsOffset = header.getLong(72);
+		long recordsOffset = header.getLong(80);
+		long fileLength = header.getLong(88);
+		long stringDataOffset = stringsOffset + 8L*(stringCount + 1);
+		if (itemCount < 0 || stringCount < 0 || fontCount < 0 || tileSize <= 0
+				|| columns <= 0 || rows <= 0 || (long)columns * rows > MAX_TILES
+				|| fontsOffset != HEADER_SIZE || stringsOffset < fontsOffset
+				|| stringDataOffset > tileIndexOffset
+				|| tileListsOffset != tileIndexOffset + 8L*(columns*rows + 1)
+				|| recordsOffset < tileListsOffset || (recordsOffset - tileListsOffset) % 4 != 0
+				|| fileLength != recordsOffset + (long)RECORD_SIZE * itemCount || fileLength != length)
+			throw new IOException("Corrupted tiled collage header in " + name + ".");
+		ByteBuffer fontTable = channel.map(FileChannel.MapMode.READ_ONLY, fontsOffset, stringsOffset - fontsOffset);
+		fonts = new Font[fontCount];
+		try {
+			for (int i = 0; i < fontCount; i++) {
+				byte[] fontName = new byte[fontTable.getInt()];
+				fontTable.get(fontName);
+				int style = fontTable.getInt();
+				float size = fontTable.getFloat();
+				String family = new String(fontName, StandardCharsets.UTF_8);
+				if (size == (int)size)
+					fonts[i] = new Font(family, style, (int)size);
+				else
+					fonts[i] = new Font(family, style, 1).deriveFont(size);
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Corrupted font table in " + name + ".", e);
+		}
+		stringOffsets = new Section(channel, stringsOffset, stringDataOffset - stringsOffset, 8);
+		stringBytes = new Section(channel, stringDataOffset, tileIndexOffset - stringDataOffset, 1);
+		tileIndex = new Section(channel, tileIndexOffset, tileListsOffset - tileIndexOffset, 8);
+		tileLists = new Section(channel, tileListsOffset, recordsOffset - tileListsOffset, 4);
+		records = new Section(channel, recordsOffset, fileLength - recordsOffset, RECORD_SIZE);
+	}
+
+	/**
+	 * returns the file that was opened
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * returns the background color of the collage
+	 */
+	public Color getBackground() {
+		return background;
+	}
+
+	/**
+	 * returns the number of items in the collage
+	 */
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * Read item i, in drawing order, from the file.  A new item is made
+	 * each time.
+	 * @throws IndexOutOfBoundsException if i is not the number of an item
+	 * @throws IllegalStateException if the record of the item is corrupted
+	 */
+	public DrawTextItem readItem(int i) {
+		long pos = recordPosition(i);
+		int stringNumber = records.getInt(pos);
+		int fontNumber = records.getInt(pos + 4);
+		if (fontNumber < -1 || fontNumber >= fonts.length)
+			throw new IllegalStateException("Corrupted item " + (i + 1) + " of " + name + ".");
+		DrawTextItem s = new DrawTextItem(readString(i, stringNumber), records.getInt(pos + 8), records.getInt(pos + 12));
+		s.setFont(fontNumber < 0 ? null : fonts[fontNumber]);
+		int textColor = records.getInt(pos + 16);
+		int flags = records.getInt(pos + 20);
+		int bg = records.getInt(pos + 24);
+		StyleRegistry registry = StyleRegistry.getShared();
+		s.setTextColor((flags & ITEM_HAS_TEXT_COLOR) != 0 ? registry.color(textColor) : null);
+		s.setBackground((flags & ITEM_HAS_BACKGROUND) != 0 ? registry.color(bg) : null);
+		s.setBorder((flags & ITEM_BORDER) != 0);
+		s.setRotationAngle(records.getDouble(pos + 28));
+		s.setMagnification(records.getDouble(pos + 36));
+		s.setTextTransparency(records.getDouble(pos + 44));
+		s.setBackgroundTransparency(records.getDouble(pos + 52));
+		return s;
+	}
+
+	/**
+	 * Returns the bounds of item i, as they were computed when the file
+	 * was written.  A new rectangle is made each time.
+	 * @throws IndexOutOfBoundsException if i is not the number of an item
+	 */
+	public Rectangle getBounds(int i) {
+		long pos = recordPosition(i) + 60;
+		return new Rectangle(records.getInt(pos), records.getInt(pos + 4),
+				records.getInt(pos + 8), records.getInt(pos + 12));
+	}
+
+	/**
+	 * Tests whether the bounds of item i intersect an area, without making
+	 * a rectangle.
+	 */
+	public boolean intersects(int i, Rectangle area) {
+		long pos = recordPosition(i) + 60;
+		int x = records.getInt(pos), y = records.getInt(pos + 4);
+		int w = records.getInt(pos + 8), h = records.getInt(pos + 12);
+		return w > 0 && h > 0 && area.width > 0 && area.height > 0
+				&& x < area.x + area.width && area.x < x + w && y < area.y + area.height && area.y < y + h;
+	}
+
+	/**
+	 * Returns the numbers of the items whose bounds intersect an area, in
+	 * increasing (drawing) order.
+	 */
+	public int[] query(Rectangle area) {
+		return query(area, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the numbers of the items whose bounds intersect an area, in
+	 * increasing (drawing) order, or an evenly spread sample of them if
+	 * the tiles that cover the area hold more than max entries.  Only the
+	 * tile lists of those tiles and the bounds of the items in them are
+	 * read.
+	 */
+	public int[] query(Rectangle area, int max) {
+		if (area.isEmpty())
+			return new int[0];
+		int c0 = tileOf(area.x, originX, tileSize, columns);
+		int c1 = tileOf((long)area.x + area.width - 1, originX, tileSize, columns);
+		int r0 = tileOf(area.y, originY, tileSize, rows);
+		int r1 = tileOf((long)area.y + area.height - 1, originY, tileSize, rows);
+		long entries = 0;
+		for (int r = r0; r <= r1; r++)
+			entries += tileStart(r*columns + c1 + 1) - tileStart(r*columns + c0);
+		long step = Math.max(1, ceilDiv(entries, Math.max(1, max)));
+		int[] found = new int[(int)Math.min(entries, max)];
+		int count = 0;
+		long entry = 0;  // the number of entries passed, for sampling
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				long end = tileStart(r*columns + c + 1);
+				for (long e = tileStart(r*columns + c); e < end; e++, entry++) {
+					if (entry % step != 0)
+						continue;
+					int i = tileLists.getInt(4*e);
+					if (count < found.length && intersects(i, area))
+						found[count++] = i;
+				}
+			}
+		}
+		if (c1 > c0 || r1 > r0) {  // items in more than one tile are listed more than once
+			Arrays.sort(found, 0, count);
+			int unique = 0;
+			for (int k = 0; k < count; k++)
+				if (unique == 0 || found[k] != found[unique - 1])
+					found[unique++] = found[k];
+			count = unique;
+		}
+		return count == found.length ? found : Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Returns a reader that reads the items of the file in drawing order,
+	 * one at a time, like the readers for the other formats.
+	 */
+	public CollageReader openReader() {
+		return new CollageReader(file) {
+			private int next;
+			public Color getBackground() {
+				return background;
+			}
+			public int getItemCount() {
+				return itemCount;
+			}
+			public long getBytesRead() {
+				return (long)RECORD_SIZE * next;
+			}
+			protected DrawTextItem readItem() {
+				return next < itemCount ? TiledCollageFile.this.readItem(next++) : null;
+			}
+			public void close() {
+			}
+		};
+	}
+
+	private long recordPosition(int i) {
+		if (i < 0 || i >= itemCount)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + itemCount);
+		return (long)RECORD_SIZE * i;
+	}
+
+	private String readString(int item, int stringNumber) {
+		if (stringNumber < 0 || 8L*stringNumber + 16 > stringOffsets.length)
+			throw new IllegalStateException("Corrupted item " + (item + 1) + " of " + name + ".");
+		long base = stringOffsets.getLong(0);
+		long start = stringOffsets.getLong(8L*stringNumber) - base;
+		long end = stringOffsets.getLong(8L*stringNumber + 8) - base;
+		if (start < 0 || end < start || end > stringBytes.length || end - start > Integer.MAX_VALUE)
+			throw new IllegalStateException("Corrupted string table in " + name + ".");
+		byte[] bytes = new byte[(int)(end - start)];
+		stringBytes.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the number of entries in the tile lists before the list of tile t.
+	 */
+	private long tileStart(int t) {
+		return tileIndex.getLong(8L*t);
+	}
+
+	/**
+	 * Returns the column of the tile that holds coordinate x, or the row
+	 * of the tile that holds a y coordinate, clamped to the grid.
+	 */
+	private static int tileOf(long x, long origin, long tileSize, int columns) {
+		long c = Math.floorDiv(x - origin, tileSize);
+		return (int)Math.max(0, Math.min(columns - 1, c));
+	}
+
+	private static long ceilDiv(long a, long b) {
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * A part of the file that is mapped into memory.  A section that is
+	 * longer than MAX_MAPPING is mapped in several pieces, each of which
+	 * holds a whole number of elements, so that an element never crosses
+	 * from one piece to the next.  Reads use absolute positions, so a
+	 * section can be read by several threads at once.
+	 */
+	private static final class Section {
+		final long length;
+		private final long pieceSize;
+		private final ByteBuffer[] pieces;
+
+		Section(FileChannel channel, long offset, long length, int elementSize) throws IOException {
+			this.length = length;
+			pieceSize = MAX_MAPPING / elementSize * elementSize;
+			pieces = new ByteBuffer[(int)ceilDiv(length, pieceSize)];
+			for (int i = 0; i < pieces.length; i++) {
+				long start = i * pieceSize;
+				pieces[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+						Math.min(pieceSize, length - start));
+			}
+		}
+
+		int getInt(long pos) {
+			return pieces[(int)(pos / pieceSize)].getInt((int)(pos % pieceSize));
+		}
+
+		long getLong(long pos) {
+			return pieces[(int)(pos / pieceSize)].getLong((int)(pos % pieceSize));
+		}
+
+		double getDouble(long pos) {
+			return pieces[(int)(pos / pieceSize)].getDouble((int)(pos % pieceSize));
+		}
+
+		/**
+		 * Copy bytes starting at a position into an array, which can
+		 * cross from one piece to the next.
+		 */
+		void get(long pos, byte[] dst) {
+			int done = 0;
+			while (done < dst.length) {
+				ByteBuffer piece = pieces[(int)(pos / pieceSize)];
+				int offset = (int)(pos % pieceSize);
+				int n = Math.min(dst.length - done, piece.limit() - offset);
+				if (n <= 0)
+					throw new IllegalStateException(new EOFException("Unexpected end of tiled collage file."));
+				piece.get(offset, dst, done, n);
+				done += n;
+				pos += n;
+			}
+		}
+	}
+
+}
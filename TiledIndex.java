@@ -0,0 +1,99 @@
+package textcollage;
+
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A TiledIndex is the spatial index of a collage that is shown from a
+ * TiledCollageFile, and goes with a TiledItemList.  The bounds of the items
+ * of the file are found with the file's tile grid, and are not held in
+ * memory.  Ids that are added to the index, including ids of items of the
+ * file whose bounds change, are kept by the quadtree of SpatialIndex, and
+ * the results of the two are merged.
+ */
+public class TiledIndex extends SpatialIndex {
+
+	private final TiledCollageFile file;
+	private final int fileItems;
+	private final BitSet overridden;  // ids of the file that were removed, or that the quadtree holds
+
+	/**
+	 * Create an index that holds the ids of all the items of a file.
+	 */
+	public TiledIndex(TiledCollageFile file) {
+		this.file = file;
+		fileItems = file.getItemCount();
+		overridden = new BitSet();
+	}
+
+	public void clear() {
+		super.clear();
+		if (overridden != null)  // the constructor of SpatialIndex calls clear()
+			overridden.set(0, fileItems);
+	}
+
+	public int size() {
+		return fileItems - overridden.cardinality() + super.size();
+	}
+
+	/**
+	 * Returns the rectangle for an id, or null if the id is not in the
+	 * index.  For an item of the file, a new rectangle is made each time.
+	 */
+	public Rectangle getBounds(int id) {
+		if (id >= 0 && id < fileItems && !overridden.get(id))
+			return file.getBounds(id);
+		return super.getBounds(id);
+	}
+
+	public void insert(int id, Rectangle r) {
+		if (id >= 0 && id < fileItems)
+			overridden.set(id);
+		super.insert(id, r);
+	}
+
+	public void remove(int id) {
+		if (id >= 0 && id < fileItems && !overridden.get(id))
+			overridden.set(id);
+		else
+			super.remove(id);
+	}
+
+	public int[] query(Rectangle area) {
+		return query(area, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the ids whose rectangles intersect an area, in increasing
+	 * order.  If the tiles of the file that cover the area hold more than
+	 * max entries, only an evenly spread sample of the file's items is
+	 * included, as described for TiledCollageFile.query().  If the area is
+	 * null, all ids are returned.
+	 */
+	public int[] query(Rectangle area, int max) {
+		int[] fromFile;
+		if (area != null)
+			fromFile = file.query(area, max);
+		else {
+			fromFile = new int[fileItems];
+			for (int i = 0; i < fileItems; i++)
+				fromFile[i] = i;
+		}
+		int count = 0;
+		for (int i : fromFile)
+			if (!overridden.get(i))
+				fromFile[count++] = i;
+		int[] fromTree = super.query(area);
+		if (fromTree.length == 0)
+			return Arrays.copyOf(fromFile, count);
+		// Merge the two sorted lists; they have no ids in common.
+		int[] result = new int[count + fromTree.length];
+		int a = 0, b = 0;
+		for (int k = 0; k < result.length; k++)
+			result[k] = b == fromTree.length || (a < count && fromFile[a] < fromTree[b]) ? fromFile[a++] : fromTree[b++];
+		return result;
+	}
+
+}
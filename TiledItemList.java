@@ -0,0 +1,216 @@
+package textcollage;
+
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A TiledItemList is the list of items of a collage that is shown from a
+ * TiledCollageFile without being loaded.  The items of the file are only
+ * read when get() is called for them, and the ones that have been read
+ * are kept in a cache of limited size, in which the items that have not
+ * been used for the longest time are dropped to make room, so the memory
+ * that the list uses depends on how many items are in view, not on the
+ * size of the file.
+ * <p>The list can be changed the way that DrawTextPanel changes its list:
+ * items can be added and removed at the end, and an item of the file can
+ * be replaced with set().  Items that are added, and items of the file
+ * that are replaced, are kept in memory; the file itself is never changed.
+ * Like the other lists of items, this list is meant to be used by one
+ * thread.
+ */
+public class TiledItemList extends AbstractList<DrawTextItem> implements RandomAccess {
+
+	/**
+	 * The number of items of the file that are kept in the cache, unless
+	 * another number is given to the constructor.  It can be set with the
+	 * system property textcollage.tiledCacheItems.
+	 */
+	public static final int DEFAULT_CACHE_ITEMS = Integer.getInteger("textcollage.tiledCacheItems", 200000);
+
+	private final TiledCollageFile file;
+	private final int cacheItems;
+	private int baseSize;  // the number of items of the file that are in the list; they come first
+	private final ArrayList<DrawTextItem> added = new ArrayList<DrawTextItem>();  // the items after those
+	private final HashMap<Integer,DrawTextItem> replaced = new HashMap<Integer,DrawTextItem>();  // by set()
+	private final LinkedHashMap<Integer,DrawTextItem> cache;  // items read from the file, least recently used first
+	private long itemsRead;
+
+	/**
+	 * Create a list that holds the items of a file, with a cache of the
+	 * default size.
+	 */
+	public TiledItemList(TiledCollageFile file) {
+		this(file, DEFAULT_CACHE_ITEMS);
+	}
+
+	/**
+	 * Create a list that holds the items of a file.
+	 * @param cacheItems the largest number of items of the file that are
+	 *   kept in memory after they are read
+	 */
+	public TiledItemList(TiledCollageFile file, int cacheItems) {
+		if (cacheItems < 1)
+			throw new IllegalArgumentException("The cache must hold at least one item.");
+		this.file = file;
+		this.cacheItems = cacheItems;
+		baseSize = file.getItemCount();
+		cache = new LinkedHashMap<Integer,DrawTextItem>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer,DrawTextItem> eldest) {
+				return size() > TiledItemList.this.cacheItems;
+			}
+		};
+	}
+
+	/**
+	 * Returns a new list that holds the same items as this one and is not
+	 * changed by later changes to this list, so that it can be saved in
+	 * another thread while this list is used.  The file is shared, but the
+	 * new list has its own cache of cacheItems items.  The added and
+	 * replaced items themselves are shared, not copied, so an item that
+	 * is in the list must be replaced, not changed, while the snapshot is
+	 * in use.
+	 */
+	public TiledItemList snapshot(int cacheItems) {
+		TiledItemList copy = new TiledItemList(file, cacheItems);
+		copy.baseSize = baseSize;
+		copy.added.addAll(added);
+		copy.replaced.putAll(replaced);
+		return copy;
+	}
+
+	/**
+	 * returns the file that the list shows
+	 */
+	public TiledCollageFile getFile() {
+		return file;
+	}
+
+	/**
+	 * returns the largest number of items of the file that are kept in the cache
+	 */
+	public int getCacheItems() {
+		return cacheItems;
+	}
+
+	/**
+	 * Returns the number of items that are held in memory: the ones in the
+	 * cache, and the ones that were added or replaced.
+	 */
+	public int getResidentCount() {
+		return cache.size() + replaced.size() + added.size();
+	}
+
+	/**
+	 * returns the number of times that an item has been read from the file
+	 */
+	public long getItemsRead() {
+		return itemsRead;
+	}
+
+	/**
+	 * returns the number of items of the file that are in the list; they come first
+	 */
+	int getBaseSize() {
+		return baseSize;
+	}
+
+	/**
+	 * Returns the positions of the items of the file that have been
+	 * replaced with set(), in increasing order.  Together with the base size
+	 * and the items after it, they describe how the list differs from the
+	 * file, without reading the file.
+	 */
+	int[] getReplacedPositions() {
+		int[] positions = new int[replaced.size()];
+		int i = 0;
+		for (int position : replaced.keySet())
+			positions[i++] = position;
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	public int size() {
+		return baseSize + added.size();
+	}
+
+	/**
+	 * Returns the item at a position.  An item of the file is read from the
+	 * file if it is not in the cache, so the same item is returned each time
+	 * only while it stays in the cache.
+	 */
+	public DrawTextItem get(int index) {
+		if (index >= baseSize)
+			return added.get(index - baseSize);
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		DrawTextItem item = replaced.get(index);
+		if (item == null) {
+			item = cache.get(index);
+			if (item == null) {
+				item = file.readItem(index);
+				itemsRead++;
+				cache.put(index, item);
+			}
+		}
+		return item;
+	}
+
+	/**
+	 * Replace the item at a position.  An item that replaces an item of the
+	 * file is kept in memory for as long as it is in the list.
+	 */
+	public DrawTextItem set(int index, DrawTextItem item) {
+		if (index >= baseSize)
+			return added.set(index - baseSize, item);
+		DrawTextItem old = get(index);
+		cache.remove(index);
+		replaced.put(index, item);
+		return old;
+	}
+
+	/**
+	 * Add an item.  Items can only be added at the end of the list.
+	 * @throws UnsupportedOperationException if index is not the size of the list
+	 */
+	public void add(int index, DrawTextItem item) {
+		if (index != size())
+			throw new UnsupportedOperationException("Items can only be added at the end of a TiledItemList.");
+		added.add(item);
+		modCount++;
+	}
+
+	/**
+	 * Remove an item.  Only the last item of the list can be removed.
+	 * @throws UnsupportedOperationException if index is not the last position
+	 */
+	public DrawTextItem remove(int index) {
+		if (index != size() - 1)
+			throw new UnsupportedOperationException("Only the last item of a TiledItemList can be removed.");
+		modCount++;
+		if (!added.isEmpty())
+			return added.remove(added.size() - 1);
+		DrawTextItem item = get(index);
+		baseSize--;
+		cache.remove(index);
+		replaced.remove(index);
+		return item;
+	}
+
+	/**
+	 * Remove all the items, including those of the file, from the list.
+	 */
+	public void clear() {
+		modCount++;
+		baseSize = 0;
+		added.clear();
+		replaced.clear();
+		cache.clear();
+	}
+
+}
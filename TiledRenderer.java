@@ -0,0 +1,435 @@
+package textcollage;
+
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders a collage to a PNG file at any size, using several threads and
+ * a bounded amount of memory.  The output image is divided into strips:
+ * bands of rows that run the full width of the image.  Each strip is
+ * rendered on a ForkJoinPool by drawing only the items whose bounds
+ * overlap it, which are found with a SpatialIndex, and is then filtered
+ * and compressed by the same task.  The compressed strips are written to
+ * the file in order as they become ready, so the whole image never exists
+ * in memory; at most a few strips per thread are held at any time.
+ * <p>The items of each strip are got from the list by the thread that
+ * calls writePNG(), before the strip's task is submitted, so the list is
+ * only used by one thread.  This matters for lists such as TiledItemList,
+ * whose get() changes the list's cache.
+ * <p>Each strip is compressed as a separate piece of a single deflate
+ * stream, ending with a sync flush, so the pieces can simply be written
+ * one after the other.  (This is the same trick that is used by parallel
+ * versions of gzip.)  The checksum of the whole stream is put together
+ * from the checksums of the strips.
+ */
+public class TiledRenderer {
+
+	/**
+	 * The number of pixels in a strip.  A strip of this size takes 4 MB
+	 * as an image, and about as much again while it is being compressed.
+	 */
+	private static final int STRIP_PIXELS = 1 << 20;
+
+	private static final byte[] PNG_SIGNATURE = { (byte)137, 'P', 'N', 'G', 13, 10, 26, 10 };
+
+	/**
+	 * A ProgressListener is told how much of an image has been written.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called by writePNG(), in the thread that called it, each time a
+		 * strip has been written.  The listener can stop writePNG() by
+		 * throwing a RuntimeException, which writePNG() passes on.
+		 * @param rows the number of rows of the image that have been written
+		 * @param imageHeight the number of rows in the image
+		 */
+		void rowsWritten(int rows, int imageHeight);
+	}
+
+	private final ForkJoinPool pool;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private ProgressListener progressListener;
+
+	/**
+	 * Create a renderer that uses the common ForkJoinPool.
+	 */
+	public TiledRenderer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a renderer that runs its tasks on a given pool.
+	 */
+	public TiledRenderer(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the level of compression, from 0 (none) to 9 (best), or -1 for
+	 * the default level.
+	 */
+	public void setCompressionLevel(int level) {
+		if (level < -1 || level > 9)
+			throw new IllegalArgumentException("Compression level must be between -1 and 9.");
+		compressionLevel = level;
+	}
+
+	/**
+	 * returns the level of compression, as set by setCompressionLevel()
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Set the listener that is told about the progress of writePNG(), or
+	 * null for none.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+	}
+
+	/**
+	 * Returns the scale factor that makes an area of a given size as large
+	 * as possible while still fitting inside an image of a given size.
+	 */
+	public static double scaleToFit(int width, int height, int imageWidth, int imageHeight) {
+		return Math.min((double)imageWidth / width, (double)imageHeight / height);
+	}
+
+	/**
+	 * Write a collage as a PNG image of a given size.  The collage is drawn
+	 * magnified by the scale factor, starting at the top left corner of
+	 * the image.  To draw an area of the collage that is width by height,
+	 * the image size should be width*scale by height*scale, rounded up.
+	 * @param collage the collage to draw.
+	 * @param scale the magnification, which must be positive.
+	 * @param imageWidth the width of the image, in pixels.
+	 * @param imageHeight the height of the image, in pixels.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public void writePNG(Collage collage, double scale, int imageWidth, int imageHeight, File file)
+			throws IOException {
+		writePNG(collage, scale, 0, 0, imageWidth, imageHeight, file);
+	}
+
+	/**
+	 * Write an area of a collage as a PNG image of a given size.  The point
+	 * (x,y) of the collage is drawn at the top left corner of the image,
+	 * and the collage is magnified by the scale factor, the way that the
+	 * canvas of a DrawTextPanel shows its view of the collage.
+	 * @param collage the collage to draw.
+	 * @param scale the magnification, which must be positive.
+	 * @param x the x-coordinate in the collage of the left edge of the image.
+	 * @param y the y-coordinate in the collage of the top edge of the image.
+	 * @param imageWidth the width of the image, in pixels.
+	 * @param imageHeight the height of the image, in pixels.
+	 * @param file the file to write.  If it exists, it is replaced.
+	 * @throws IOException if an error occurs while writing the file.
+	 */
+	public void writePNG(Collage collage, double scale, double x, double y, int imageWidth, int imageHeight,
+			File file) throws IOException {
+		if (!(scale > 0) || Double.isInfinite(scale))
+			throw new IllegalArgumentException("Scale must be positive.");
+		if (imageWidth <= 0 || imageHeight <= 0)
+			throw new IllegalArgumentException("Image size must be positive.");
+		if ((long)imageWidth * 3 + 1 > Integer.MAX_VALUE / 2)
+			throw new IllegalArgumentException("Image is too wide.");
+		List<DrawTextItem> items = collage.getItems();
+		SpatialIndex index = indexItems(items);
+		int stripHeight = Math.max(1, Math.min(imageHeight, STRIP_PIXELS / imageWidth));
+		int stripCount = (imageHeight + stripHeight - 1) / stripHeight;
+		int window = pool.getParallelism() + 2;  // strips that can be in progress at the same time
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.write(PNG_SIGNATURE);
+			ChunkWriter header = new ChunkWriter(data, "IHDR");
+			header.writeInt(imageWidth);
+			header.writeInt(imageHeight);
+			header.write(new byte[] { 8, 2, 0, 0, 0 });  // 8 bits, RGB, deflate, no interlace
+			header.finish();
+			ArrayDeque<ForkJoinTask<Strip>> pending = new ArrayDeque<ForkJoinTask<Strip>>();
+			long adler = 1;
+			int next = 0, written = 0;
+			boolean first = true;
+			try {
+				while (next < stripCount || !pending.isEmpty()) {
+					while (next < stripCount && pending.size() < window) {
+						int top = next * stripHeight;
+						int h = Math.min(stripHeight, imageHeight - top);
+						pending.add(pool.submit(new StripTask(collage.getBackground(), 
+								stripItems(items, index, scale, x, y, imageWidth, top, h), scale, x, y,
+								imageWidth, top, h, next == stripCount - 1)));
+						next++;
+					}
+					Strip strip = pending.remove().join();
+					ChunkWriter idat = new ChunkWriter(data, "IDAT");
+					if (first) {
+						idat.write(new byte[] { 0x78, (byte)0x9C });  // zlib header
+						first = false;
+					}
+					idat.write(strip.compressed, 0, strip.compressedLength);
+					adler = combineAdler(adler, strip.adler, strip.rawLength);
+					if (next == stripCount && pending.isEmpty())
+						idat.writeInt((int)adler);  // zlib trailer
+					idat.finish();
+					written++;
+					if (progressListener != null)
+						progressListener.rowsWritten(Math.min(imageHeight, written * stripHeight), imageHeight);
+				}
+			}
+			finally {
+				for (ForkJoinTask<Strip> task : pending)
+					task.cancel(false);  // if writing stopped early, the strips in progress are not needed
+			}
+			new ChunkWriter(data, "IEND").finish();
+			data.flush();
+		}
+	}
+
+	/**
+	 * Put the bounds of the items into a SpatialIndex, in the coordinates
+	 * of the collage.  The bounds are measured in a graphics context that
+	 * has the same settings as the ones that are used for drawing.
+	 */
+	private static SpatialIndex indexItems(List<DrawTextItem> items) {
+		SpatialIndex index = new SpatialIndex();
+		if (items == null)
+			return index;
+		Graphics2D g2 = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+		g2.setFont(CollageRenderer.DEFAULT_FONT);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		int i = 0;
+		for (DrawTextItem s : items)  // for-each, so a PackedItemList is read in one pass
+			index.insert(i++, s.getBounds(g2));
+		g2.dispose();
+		return index;
+	}
+
+	/**
+	 * Returns the items that overlap a strip of the image, in drawing order.
+	 */
+	private static DrawTextItem[] stripItems(List<DrawTextItem> items, SpatialIndex index, double scale,
+			double x, double y, int width, int top, int height) {
+		if (items == null)
+			return new DrawTextItem[0];
+		// The area of the collage that the strip shows, with a margin for rounding.
+		int x0 = (int)Math.floor(x) - 2;
+		int x1 = (int)Math.ceil(x + width / scale) + 2;
+		int y0 = (int)Math.floor(y + top / scale) - 2;
+		int y1 = (int)Math.ceil(y + (top + height) / scale) + 2;
+		Rectangle area = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+		int[] ids = index.query(area);
+		DrawTextItem[] stripItems = new DrawTextItem[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			stripItems[i] = items.get(ids[i]);
+		return stripItems;
+	}
+
+	/**
+	 * A strip of the image, filtered and compressed, ready to be written.
+	 */
+	private static final class Strip {
+		final byte[] compressed;
+		final int compressedLength;
+		final long adler;  // checksum of the uncompressed data
+		final int rawLength;
+		Strip(byte[] compressed, int compressedLength, long adler, int rawLength) {
+			this.compressed = compressed;
+			this.compressedLength = compressedLength;
+			this.adler = adler;
+			this.rawLength = rawLength;
+		}
+	}
+
+	/**
+	 * Renders, filters and compresses one strip of the image.
+	 */
+	private class StripTask extends RecursiveTask<Strip> {
+		private static final long serialVersionUID = 1L;
+		private final Color background;
+		private final DrawTextItem[] items;  // the items that overlap the strip
+		private final double scale;
+		private final double x, y;  // the point of the collage at the top left corner of the image
+		private final int width, top, height;
+		private final boolean last;  // the last strip finishes the deflate stream
+
+		StripTask(Color background, DrawTextItem[] items, double scale, double x, double y,
+				int width, int top, int height, boolean last) {
+			this.background = background;
+			this.items = items;
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.top = top;
+			this.height = height;
+			this.last = last;
+		}
+
+		protected Strip compute() {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2 = image.createGraphics();
+			g2.setColor(background);
+			g2.fillRect(0, 0, width, height);
+			g2.translate(0, -top);
+			g2.scale(scale, scale);
+			g2.translate(-x, -y);
+			g2.setFont(CollageRenderer.DEFAULT_FONT);
+			g2.setColor(Color.BLACK);
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			ItemPainter painter = new ItemPainter(g2);
+			for (DrawTextItem item : items)
+				painter.paint(item);
+			g2.dispose();
+			int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			byte[] raw = filterRows(pixels, width, height);
+			image = null;
+			pixels = null;
+			Adler32 checksum = new Adler32();
+			checksum.update(raw, 0, raw.length);
+			Deflater deflater = new Deflater(compressionLevel, true);
+			try {
+				deflater.setInput(raw);
+				if (last)
+					deflater.finish();
+				byte[] out = new byte[Math.max(1024, raw.length / 8)];
+				int length = 0;
+				while (true) {
+					if (length == out.length)
+						out = Arrays.copyOf(out, 2*out.length);
+					int n = last ? deflater.deflate(out, length, out.length - length)
+							: deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+					length += n;
+					if (last ? deflater.finished() : length < out.length)
+						break;
+				}
+				return new Strip(out, length, checksum.getValue(), raw.length);
+			}
+			finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Convert RGB pixels to PNG scanlines, each starting with a filter
+	 * type byte.  The "Sub" filter is used, which stores each byte as the
+	 * difference from the byte of the pixel to its left.  It only looks at
+	 * the row itself, so strips can be filtered independently.
+	 */
+	private static byte[] filterRows(int[] pixels, int width, int height) {
+		int rowLength = 3*width + 1;
+		byte[] raw = new byte[rowLength * height];
+		int p = 0;
+		for (int row = 0; row < height; row++) {
+			int pos = row * rowLength;
+			raw[pos++] = 1;  // filter type Sub
+			int prevR = 0, prevG = 0, prevB = 0;
+			for (int col = 0; col < width; col++) {
+				int rgb = pixels[p++];
+				int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+				raw[pos++] = (byte)(r - prevR);
+				raw[pos++] = (byte)(g - prevG);
+				raw[pos++] = (byte)(b - prevB);
+				prevR = r;
+				prevG = g;
+				prevB = b;
+			}
+		}
+		return raw;
+	}
+
+	/**
+	 * Returns the Adler-32 checksum of two pieces of data, one after the
+	 * other, given the checksum of each piece and the length of the second.
+	 * (This follows adler32_combine() in zlib.)
+	 */
+	private static long combineAdler(long adler1, long adler2, long length2) {
+		final long BASE = 65521;
+		long rem = length2 % BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % BASE;
+		sum1 += (adler2 & 0xFFFF) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + BASE - rem;
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum2 >= 2*BASE)
+			sum2 -= 2*BASE;
+		if (sum2 >= BASE)
+			sum2 -= BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Collects the pieces of a PNG chunk, without copying them, so that the
+	 * length of the chunk can be written before its data and the CRC after it.
+	 */
+	private static final class ChunkWriter {
+		private final DataOutputStream out;
+		private final byte[] type;
+		private byte[][] parts = new byte[4][];
+		private int[] offsets = new int[4], lengths = new int[4];
+		private int partCount;
+		private int length;
+
+		ChunkWriter(DataOutputStream out, String type) {
+			this.out = out;
+			this.type = type.getBytes(StandardCharsets.US_ASCII);
+		}
+		void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+		void write(byte[] b, int offset, int len) {
+			if (partCount == parts.length) {
+				parts = Arrays.copyOf(parts, 2*partCount);
+				offsets = Arrays.copyOf(offsets, 2*partCount);
+				lengths = Arrays.copyOf(lengths, 2*partCount);
+			}
+			parts[partCount] = b;
+			offsets[partCount] = offset;
+			lengths[partCount] = len;
+			partCount++;
+			length += len;
+		}
+		void writeInt(int v) {
+			write(new byte[] { (byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8), (byte)v });
+		}
+		void finish() throws IOException {
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			out.writeInt(length);
+			out.write(type);
+			for (int i = 0; i < partCount; i++) {
+				crc.update(parts[i], offsets[i], lengths[i]);
+				out.write(parts[i], offsets[i], lengths[i]);
+			}
+			out.writeInt((int)crc.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package textcollage;
+
+
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * An UndoManager that limits the memory used by its edits, instead of
+ * (or as well as) their number.  Edits that hold on to items, such as the
+ * edit for "Clear", which keeps the items that were cleared, report the
+ * memory that they use by implementing UndoHistory.Sized.  When an edit
+ * is added and the total is over the limit, the oldest edits are
+ * discarded until it is not, so the history never holds more than about
+ * the limit.  An edit that is bigger than the limit by itself is
+ * discarded too, so that change can't be undone.  Edits that don't
+ * implement Sized are counted as using no memory.
+ * <p>The limit can be set with the system property textcollage.undoMemoryMB;
+ * the default is 64 MB.
+ */
+public class UndoHistory extends UndoManager {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * An edit that can report how much memory it is holding on to.
+	 */
+	public interface Sized {
+		/**
+		 * Returns an estimate of the memory, in bytes, that would be freed
+		 * if this edit was discarded.
+		 */
+		long getMemoryBytes();
+	}
+
+	private long maxBytes;
+
+	/**
+	 * Create a history with the memory limit given by the system property
+	 * textcollage.undoMemoryMB, or 64 MB.  The number of edits is not limited.
+	 */
+	public UndoHistory() {
+		this(Long.getLong("textcollage.undoMemoryMB", 64) * 1024 * 1024);
+	}
+
+	/**
+	 * Create a history that holds edits that use at most maxBytes bytes.
+	 * The number of edits is not limited.
+	 */
+	public UndoHistory(long maxBytes) {
+		setLimit(Integer.MAX_VALUE);
+		setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Set the memory limit, and discard old edits if they use more than that.
+	 * @throws IllegalArgumentException if maxBytes is negative
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("The memory limit can't be negative.");
+		this.maxBytes = maxBytes;
+		trimToMaxBytes();
+	}
+
+	/**
+	 * returns the memory limit, as set by setMaxBytes()
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the estimated memory used by all the edits in the history.
+	 */
+	public synchronized long getMemoryBytes() {
+		long total = 0;
+		for (UndoableEdit edit : edits)
+			total += memoryBytes(edit);
+		return total;
+	}
+
+	public synchronized boolean addEdit(UndoableEdit edit) {
+		boolean added = super.addEdit(edit);
+		trimToMaxBytes();
+		return added;
+	}
+
+	/**
+	 * Discard the oldest edits until the rest fit within the memory limit.
+	 */
+	private void trimToMaxBytes() {
+		long total = getMemoryBytes();
+		int count = 0;  // the number of edits to discard
+		while (total > maxBytes && count < edits.size()) {
+			total -= memoryBytes(edits.get(count));
+			count++;
+		}
+		if (count > 0)
+			trimEdits(0, count - 1);
+	}
+
+	private static long memoryBytes(UndoableEdit edit) {
+		return edit instanceof Sized ? ((Sized)edit).getMemoryBytes() : 0;
+	}
+
+}